@@ -0,0 +1,235 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mongodb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A driver collection keeping its documents in memory, for the benchmarks that
+ * measure the connection services without a running mongod.
+ * <p>
+ * It is in the driver package to implement the package private {@code __find} the
+ * driver cursors call, so a change of the driver signatures breaks its compilation.
+ * The queries support only what the connection services issue: equality, {@code $in},
+ * {@code $or}, {@code $and}, sort, limit, field projection and {@code $set} updates.
+ * The writes return no {@link WriteResult}.
+ */
+public class InMemoryCollection extends DBCollection {
+
+	private final List<DBObject> documents = new ArrayList<DBObject>();
+
+	public InMemoryCollection(DB db, String name) {
+		super(db, name);
+	}
+
+	/**
+	 * Removes all the documents.
+	 */
+	public synchronized void clear() {
+		documents.clear();
+	}
+
+	@Override
+	public synchronized WriteResult insert(DBObject[] arr, WriteConcern concern, DBEncoder encoder) {
+		for (DBObject dbo : arr) {
+			documents.add(copy(dbo));
+		}
+		return null;
+	}
+
+	@Override
+	public synchronized WriteResult update(DBObject q, DBObject o, boolean upsert, boolean multi, 
+			WriteConcern concern, DBEncoder encoder) {
+		DBObject set = (DBObject) o.get("$set");
+		for (DBObject doc : documents) {
+			if (matches(doc, q)) {
+				if (set != null) {
+					doc.putAll(set);
+				}
+				if (!multi) {
+					break;
+				}
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public synchronized WriteResult remove(DBObject o, WriteConcern concern, DBEncoder encoder) {
+		for (Iterator<DBObject> it = documents.iterator(); it.hasNext();) {
+			if (matches(it.next(), o)) {
+				it.remove();
+			}
+		}
+		return null;
+	}
+
+	@Override
+	synchronized Iterator<DBObject> __find(DBObject ref, DBObject fields, int numToSkip, int batchSize, 
+			int limit, int options, ReadPreference readPref, DBDecoder decoder) {
+		DBObject query = ref;
+		DBObject orderBy = null;
+		// the cursor wraps the query when it has a sort
+		if (ref.containsField("query") || ref.containsField("$query")) {
+			query = (DBObject) (ref.containsField("query") ? ref.get("query") : ref.get("$query"));
+			orderBy = (DBObject) (ref.containsField("orderby") ? ref.get("orderby") : ref.get("$orderby"));
+		}
+
+		query = prepare(query);
+		List<DBObject> results = new ArrayList<DBObject>();
+		for (DBObject doc : documents) {
+			if (matches(doc, query)) {
+				results.add(doc);
+			}
+		}
+		if (orderBy != null) {
+			Collections.sort(results, new SortComparator(orderBy));
+		}
+		limit = Math.abs(limit);
+		if (limit > 0 && results.size() > limit) {
+			results = results.subList(0, limit);
+		}
+
+		List<DBObject> projected = new ArrayList<DBObject>(results.size());
+		for (DBObject doc : results) {
+			projected.add(project(doc, fields));
+		}
+		return projected.iterator();
+	}
+
+	@Override
+	public void createIndex(DBObject keys, DBObject options, DBEncoder encoder) {
+		// the scans of the lists need no index
+	}
+
+	@Override
+	protected void doapply(DBObject o) {
+	}
+
+	// helper methods
+
+	private static boolean matches(DBObject doc, DBObject query) {
+		for (String key : query.keySet()) {
+			Object condition = query.get(key);
+			if ("$or".equals(key)) {
+				boolean any = false;
+				for (Object q : (Collection<?>) condition) {
+					any = any || matches(doc, (DBObject) q);
+				}
+				if (!any) return false;
+			} else if ("$and".equals(key)) {
+				for (Object q : (Collection<?>) condition) {
+					if (!matches(doc, (DBObject) q)) return false;
+				}
+			} else if (condition instanceof DBObject && ((DBObject) condition).containsField("$in")) {
+				if (!values(((DBObject) condition).get("$in")).contains(doc.get(key))) return false;
+			} else if (condition == null ? doc.get(key) != null : !condition.equals(doc.get(key))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Copies the query with its {@code $in} values in hash sets, as the large ones
+	 * would otherwise dominate the benchmarks.
+	 */
+	private static DBObject prepare(DBObject query) {
+		DBObject prepared = new BasicDBObject();
+		for (String key : query.keySet()) {
+			Object condition = query.get(key);
+			if ("$or".equals(key) || "$and".equals(key)) {
+				List<DBObject> queries = new ArrayList<DBObject>();
+				for (Object q : (Collection<?>) condition) {
+					queries.add(prepare((DBObject) q));
+				}
+				condition = queries;
+			} else if (condition instanceof DBObject && ((DBObject) condition).containsField("$in")) {
+				condition = new BasicDBObject("$in", new HashSet<Object>(values(((DBObject) condition).get("$in"))));
+			}
+			prepared.put(key, condition);
+		}
+		return prepared;
+	}
+
+	private static Collection<?> values(Object in) {
+		return in instanceof Object[] ? Arrays.asList((Object[]) in) : (Collection<?>) in;
+	}
+
+	private static DBObject project(DBObject doc, DBObject fields) {
+		if (fields == null || fields.keySet().isEmpty()) {
+			return copy(doc);
+		}
+
+		boolean inclusive = false;
+		for (String key : fields.keySet()) {
+			inclusive = inclusive || (!"_id".equals(key) && isIncluded(fields.get(key)));
+		}
+
+		DBObject result = new BasicDBObject();
+		for (String key : doc.keySet()) {
+			boolean listed = fields.containsField(key);
+			boolean included = inclusive ?
+					(listed ? isIncluded(fields.get(key)) : "_id".equals(key)) :
+					!listed || isIncluded(fields.get(key));
+			if (included) {
+				result.put(key, doc.get(key));
+			}
+		}
+		return result;
+	}
+
+	private static boolean isIncluded(Object flag) {
+		return flag instanceof Number ? ((Number) flag).intValue() != 0 : Boolean.TRUE.equals(flag);
+	}
+
+	private static DBObject copy(DBObject doc) {
+		// as the driver decodes a new document for every read
+		DBObject copy = new BasicDBObject();
+		copy.putAll(doc);
+		return copy;
+	}
+
+	private static class SortComparator implements Comparator<DBObject> {
+
+		private final DBObject orderBy;
+
+		public SortComparator(DBObject orderBy) {
+			this.orderBy = orderBy;
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		public int compare(DBObject o1, DBObject o2) {
+			for (String key : orderBy.keySet()) {
+				int direction = ((Number) orderBy.get(key)).intValue();
+				Comparable v1 = (Comparable) o1.get(key);
+				Comparable v2 = (Comparable) o2.get(key);
+				int c = v1 == null ? (v2 == null ? 0 : -1) : (v2 == null ? 1 : v1.compareTo(v2));
+				if (c != 0) {
+					return direction * c;
+				}
+			}
+			return 0;
+		}
+	}
+}
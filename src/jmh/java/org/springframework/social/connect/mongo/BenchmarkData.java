@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.test.FakeConnectionFactory;
+
+/**
+ * The connections shared by the benchmarks.
+ */
+final class BenchmarkData {
+
+	static final String USER_ID = "joey";
+
+	static final String[] PROVIDERS = { "twitter", "facebook", "linkedin" };
+
+	/** The other users stored with the measured one, as a real collection has. */
+	static final int OTHER_USERS = 200;
+
+	private static final FakeConnectionFactory<Object> factory = new FakeConnectionFactory<Object>("fake", null, null);
+
+	private BenchmarkData() {
+	}
+
+	static TextEncryptor encryptor() {
+		return Encryptors.text("benchmark", "5c0744940b5c369b");
+	}
+
+	/**
+	 * Returns the connections of a user, spread over the providers.
+	 */
+	static List<Connection<?>> connections(String userId, int count) {
+		List<Connection<?>> connections = new ArrayList<Connection<?>>(count);
+		for (int i = 0; i < count; i++) {
+			String providerUserId = userId + "." + i;
+			connections.add(factory.createConnection(PROVIDERS[i % PROVIDERS.length], providerUserId, userId + " " + i));
+		}
+		return connections;
+	}
+
+	/**
+	 * Stores the connections of the measured user, with the given count, and of the other users.
+	 */
+	static List<Connection<?>> populate(ConnectionService service, int count) {
+		for (int u = 0; u < OTHER_USERS; u++) {
+			for (Connection<?> connection : connections("user" + u, PROVIDERS.length)) {
+				service.create("user" + u, connection);
+			}
+		}
+
+		List<Connection<?>> connections = connections(USER_ID, count);
+		for (Connection<?> connection : connections) {
+			service.create(USER_ID, connection);
+		}
+		return connections;
+	}
+}
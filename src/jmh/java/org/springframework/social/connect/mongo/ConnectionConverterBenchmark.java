@@ -0,0 +1,65 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.test.FakeConnectionFactoryLocator;
+
+/**
+ * Measures the connection converter in both directions, with a real AES
+ * text encryptor on the tokens.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionConverterBenchmark {
+
+	private ConnectionConverter converter;
+	private Connection<?> connection;
+	private MongoConnection document;
+
+	@Setup
+	public void setup() {
+		converter = new ConnectionConverter(new FakeConnectionFactoryLocator(), BenchmarkData.encryptor());
+		connection = BenchmarkData.connections(BenchmarkData.USER_ID, 1).get(0);
+		document = converter.convert(connection);
+	}
+
+	@Benchmark
+	public MongoConnection toDocument() {
+		return converter.convert(connection);
+	}
+
+	@Benchmark
+	public Connection<?> toConnection() {
+		return converter.convert(document);
+	}
+}
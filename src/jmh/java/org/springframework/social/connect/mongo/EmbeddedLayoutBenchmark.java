@@ -0,0 +1,120 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.test.FakeConnectionFactory;
+import org.springframework.social.test.FakeConnectionFactoryLocator;
+
+import com.mongodb.Mongo;
+import com.mongodb.WriteConcern;
+
+/**
+ * Compares the connections collection with the user documents, on the listing of all 
+ * the user connections and on an add followed by a remove.
+ * <p>
+ * Unlike the other benchmarks it needs a running mongod, given by the 
+ * {@code benchmark.mongo.host} and {@code benchmark.mongo.port} system properties; 
+ * its data is written to the {@code connections_benchmark} database, dropped at the end.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmbeddedLayoutBenchmark {
+
+	@Param({"1", "10", "50"})
+	public int connections;
+
+	private Mongo mongo;
+	private MongoTemplate mongoTemplate;
+	private MongoConnectionService separate;
+	private EmbeddedConnectionService embedded;
+	private Connection<?> added;
+
+	@Setup
+	public void setup() throws UnknownHostException {
+		mongo = new Mongo(System.getProperty("benchmark.mongo.host", "localhost"), 
+				Integer.getInteger("benchmark.mongo.port", 27017));
+		mongoTemplate = new MongoTemplate(mongo, "connections_benchmark");
+		mongoTemplate.setWriteConcern(WriteConcern.SAFE);
+		mongoTemplate.getDb().dropDatabase();
+
+		ConnectionConverter converter = new ConnectionConverter(new FakeConnectionFactoryLocator(), 
+				BenchmarkData.encryptor());
+		separate = new MongoConnectionService(mongoTemplate, converter);
+		new ConnectionIndexManager(mongoTemplate).ensureIndexes();
+		embedded = new EmbeddedConnectionService(mongoTemplate, converter);
+		embedded.ensureIndexes();
+
+		BenchmarkData.populate(separate, connections);
+		BenchmarkData.populate(embedded, connections);
+		added = new FakeConnectionFactory<Object>("fake", null, null)
+				.createConnection(BenchmarkData.PROVIDERS[0], "added", "added");
+	}
+
+	@TearDown
+	public void tearDown() {
+		mongoTemplate.getDb().dropDatabase();
+		mongo.close();
+	}
+
+	@Benchmark
+	public List<Connection<?>> findAllSeparate() {
+		return separate.getConnections(BenchmarkData.USER_ID);
+	}
+
+	@Benchmark
+	public List<Connection<?>> findAllEmbedded() {
+		return embedded.getConnections(BenchmarkData.USER_ID);
+	}
+
+	@Benchmark
+	public int addRemoveSeparate() {
+		return addRemove(separate);
+	}
+
+	@Benchmark
+	public int addRemoveEmbedded() {
+		return addRemove(embedded);
+	}
+
+	private int addRemove(ConnectionService service) {
+		int rank = service.create(BenchmarkData.USER_ID, added);
+		service.remove(BenchmarkData.USER_ID, new ConnectionKey(BenchmarkData.PROVIDERS[0], "added"));
+		return rank;
+	}
+}
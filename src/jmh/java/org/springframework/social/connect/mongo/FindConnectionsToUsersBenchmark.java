@@ -0,0 +1,141 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.test.FakeConnectionFactoryLocator;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import com.mongodb.Mongo;
+import com.mongodb.WriteConcern;
+
+/**
+ * Measures findConnectionsToUsers for a growing number of requested provider users,
+ * one in ten connected to the user, against the placement by List.indexOf it replaced.
+ * The average time of findConnectionsToUsers grows linearly with the request.
+ * <p>
+ * The repository runs on the in-memory connection service, which matches the provider
+ * users by hash as the chunked queries do on connections_primary_idx; the in-memory
+ * template would scan its whole collection for every chunk. The {@code mongo} store runs
+ * it on the MongoConnectionService against a running mongod, given by the 
+ * {@code benchmark.mongo.host} and {@code benchmark.mongo.port} system properties; 
+ * its data is written to the {@code connections_benchmark} database, dropped at the end.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FindConnectionsToUsersBenchmark {
+
+	@Param({"1000", "10000", "100000"})
+	public int providerUsers;
+
+	@Param({"memory", "mongo"})
+	public String store;
+
+	private Mongo mongo;
+	private MongoTemplate mongoTemplate;
+	private MongoConnectionRepository repository;
+	private ConnectionService service;
+	private MultiValueMap<String, String> request;
+
+	@Setup
+	public void setup() throws UnknownHostException {
+		FakeConnectionFactoryLocator locator = new FakeConnectionFactoryLocator();
+		ConnectionConverter converter = new ConnectionConverter(locator, BenchmarkData.encryptor());
+		// the tokens are not read, so only the placement is measured
+		converter.setLazyDecryption(true);
+		if ("mongo".equals(store)) {
+			mongo = new Mongo(System.getProperty("benchmark.mongo.host", "localhost"), 
+					Integer.getInteger("benchmark.mongo.port", 27017));
+			mongoTemplate = new MongoTemplate(mongo, "connections_benchmark");
+			mongoTemplate.setWriteConcern(WriteConcern.SAFE);
+			mongoTemplate.getDb().dropDatabase();
+			new ConnectionIndexManager(mongoTemplate).ensureIndexes();
+			service = new MongoConnectionService(mongoTemplate, converter);
+		} else {
+			service = new InMemoryConnectionService(converter);
+		}
+		repository = new MongoConnectionRepository(BenchmarkData.USER_ID, service, locator);
+
+		request = new LinkedMultiValueMap<String, String>();
+		List<Connection<?>> connected = new ArrayList<Connection<?>>();
+		for (Connection<?> connection : BenchmarkData.connections("friend", providerUsers)) {
+			String providerId = connection.getKey().getProviderId();
+			List<String> providerUserIds = request.get(providerId);
+			if (providerUserIds != null && providerUserIds.size() % 10 == 0) {
+				connected.add(connection);
+			}
+			request.add(providerId, connection.getKey().getProviderUserId());
+		}
+		service.create(BenchmarkData.USER_ID, connected);
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (mongo != null) {
+			mongoTemplate.getDb().dropDatabase();
+			mongo.close();
+		}
+	}
+
+	@Benchmark
+	public MultiValueMap<String, Connection<?>> findConnectionsToUsers() {
+		return repository.findConnectionsToUsers(request);
+	}
+
+	@Benchmark
+	public MultiValueMap<String, Connection<?>> findConnectionsToUsersByIndexOf() {
+		List<Connection<?>> resultList = service.getConnections(BenchmarkData.USER_ID, request);
+
+		MultiValueMap<String, Connection<?>> connectionsForUsers = new LinkedMultiValueMap<String, Connection<?>>();
+		for (Connection<?> connection : resultList) {
+			String providerId = connection.getKey().getProviderId();
+			List<String> userIds = request.get(providerId);
+			List<Connection<?>> connections = connectionsForUsers.get(providerId);
+			if (connections == null) {
+				connections = new ArrayList<Connection<?>>(userIds.size());
+				for (int i = 0; i < userIds.size(); i++) {
+					connections.add(null);
+				}
+				connectionsForUsers.put(providerId, connections);
+			}
+			connections.set(userIds.indexOf(connection.getKey().getProviderUserId()), connection);
+		}
+		return connectionsForUsers;
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.data.mongodb.core.CollectionCallback;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.InMemoryCollection;
+import com.mongodb.Mongo;
+
+/**
+ * A {@link MongoTemplate} that runs the collection callbacks on in-memory
+ * collections, so the service benchmarks measure this project code without
+ * a running mongod.
+ * <p>
+ * The collections are {@link InMemoryCollection}s, read through the real driver 
+ * cursors. The driver instance is never connected: it only gives the collections
+ * their database and codecs.
+ */
+public class InMemoryMongoTemplate extends MongoTemplate {
+
+	private static final String DATABASE_NAME = "benchmark";
+
+	private final DB db;
+	private final Map<String, InMemoryCollection> collections = new HashMap<String, InMemoryCollection>();
+
+	public InMemoryMongoTemplate() {
+		this(mongo());
+	}
+
+	private InMemoryMongoTemplate(Mongo mongo) {
+		super(mongo, DATABASE_NAME);
+		this.db = mongo.getDB(DATABASE_NAME);
+	}
+
+	@Override
+	public <T> T execute(String collectionName, CollectionCallback<T> callback) {
+		return callback.doInCollection(getCollection(collectionName));
+	}
+
+	@Override
+	public synchronized DBCollection getCollection(String collectionName) {
+		InMemoryCollection collection = collections.get(collectionName);
+		if (collection == null) {
+			collection = new InMemoryCollection(db, collectionName);
+			collections.put(collectionName, collection);
+		}
+		return collection;
+	}
+
+	/**
+	 * Removes all the documents of all the collections.
+	 */
+	public synchronized void clear() {
+		for (InMemoryCollection collection : collections.values()) {
+			collection.clear();
+		}
+	}
+
+	// helper methods
+
+	private static Mongo mongo() {
+		try {
+			// connects lazily, on the first operation, which these collections never issue
+			return new Mongo();
+		} catch (UnknownHostException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
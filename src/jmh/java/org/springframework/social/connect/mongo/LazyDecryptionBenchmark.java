@@ -0,0 +1,104 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.test.FakeConnectionFactoryLocator;
+
+/**
+ * Compares the eager and the lazy token decryption on a listing of the
+ * user connections that only reads the profile attributes, as the
+ * "connected accounts" pages do, with a real AES text encryptor.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LazyDecryptionBenchmark {
+
+	@Param({"1", "10", "50"})
+	public int connections;
+
+	private List<MongoConnection> documents;
+	private ConnectionConverter eager;
+	private ConnectionConverter lazy;
+
+	@Setup
+	public void setup() {
+		TextEncryptor encryptor = Encryptors.text("benchmark", "5c0744940b5c369b");
+		FakeConnectionFactoryLocator locator = new FakeConnectionFactoryLocator();
+
+		eager = new ConnectionConverter(locator, encryptor);
+		lazy = new ConnectionConverter(locator, encryptor);
+		lazy.setLazyDecryption(true);
+
+		documents = new ArrayList<MongoConnection>(connections);
+		for (int i = 0; i < connections; i++) {
+			MongoConnection mc = new MongoConnection();
+			mc.setUserId("joey");
+			mc.setProviderId("fake");
+			mc.setProviderUserId("user" + i);
+			mc.setRank(i + 1);
+			mc.setDisplayName("joey r.");
+			mc.setProfileUrl("http://profile/user" + i);
+			mc.setImageUrl("http://image/user" + i);
+			mc.setAccessToken(encryptor.encrypt("access-token-" + i));
+			mc.setSecret(encryptor.encrypt("secret-" + i));
+			mc.setRefreshToken(encryptor.encrypt("refresh-token-" + i));
+			mc.setExpireTime(System.currentTimeMillis());
+			documents.add(mc);
+		}
+	}
+
+	@Benchmark
+	public void listEager(Blackhole bh) {
+		list(eager, bh);
+	}
+
+	@Benchmark
+	public void listLazy(Blackhole bh) {
+		list(lazy, bh);
+	}
+
+	private void list(ConnectionConverter converter, Blackhole bh) {
+		for (MongoConnection mc : documents) {
+			Connection<?> connection = converter.convert(mc);
+			bh.consume(connection.getDisplayName());
+			bh.consume(connection.getProfileUrl());
+			bh.consume(connection.getImageUrl());
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.mongodb.MongoDbFactory;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Compares the hand-written connection codec with the reflective Spring Data
+ * mapping converter it replaced, reading and writing one connection document.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MongoConnectionCodecBenchmark {
+
+	private MongoConnectionCodec codec;
+	private MappingMongoConverter mappingConverter;
+	private MongoConnection document;
+	private DBObject dbo;
+
+	@Setup
+	public void setup() {
+		codec = new MongoConnectionCodec();
+		mappingConverter = new MappingMongoConverter(mock(MongoDbFactory.class), new MongoMappingContext());
+		mappingConverter.afterPropertiesSet();
+
+		document = new MongoConnection();
+		document.setId(new ObjectId());
+		document.setUserId("joey");
+		document.setProviderId("fake");
+		document.setProviderUserId("joey.ramones");
+		document.setRank(1);
+		document.setDisplayName("joey r.");
+		document.setProfileUrl("http://profile/joey.ramones");
+		document.setImageUrl("http://image/joey.ramones");
+		document.setAccessToken("access-token");
+		document.setSecret("secret");
+		document.setRefreshToken("refresh-token");
+		document.setExpireTime(System.currentTimeMillis());
+
+		dbo = codec.write(document);
+	}
+
+	@Benchmark
+	public MongoConnection readMapping() {
+		return mappingConverter.read(MongoConnection.class, dbo);
+	}
+
+	@Benchmark
+	public MongoConnection readCodec() {
+		return codec.read(dbo);
+	}
+
+	@Benchmark
+	public DBObject writeMapping() {
+		DBObject result = new BasicDBObject();
+		mappingConverter.write(document, result);
+		return result;
+	}
+
+	@Benchmark
+	public DBObject writeCodec() {
+		return codec.write(document);
+	}
+}
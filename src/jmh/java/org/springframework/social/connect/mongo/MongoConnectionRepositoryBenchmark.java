@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.test.FakeConnectionFactoryLocator;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * Measures the connection repository listings, on an in-memory template,
+ * for users with a growing number of connections.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MongoConnectionRepositoryBenchmark {
+
+	@Param({"1", "10", "50"})
+	public int connections;
+
+	private MongoConnectionRepository repository;
+	private MultiValueMap<String, String> providerUsers;
+
+	@Setup
+	public void setup() {
+		FakeConnectionFactoryLocator locator = new FakeConnectionFactoryLocator();
+		TextEncryptor encryptor = BenchmarkData.encryptor();
+		MongoConnectionService service = new MongoConnectionService(new InMemoryMongoTemplate(),
+				new ConnectionConverter(locator, encryptor));
+		repository = new MongoUsersConnectionRepository(service, locator)
+				.createConnectionRepository(BenchmarkData.USER_ID);
+
+		providerUsers = new LinkedMultiValueMap<String, String>();
+		for (Connection<?> connection : BenchmarkData.populate(service, connections)) {
+			providerUsers.add(connection.getKey().getProviderId(), connection.getKey().getProviderUserId());
+		}
+	}
+
+	@Benchmark
+	public MultiValueMap<String, Connection<?>> findAllConnections() {
+		return repository.findAllConnections();
+	}
+
+	@Benchmark
+	public MultiValueMap<String, Connection<?>> findConnectionsToUsers() {
+		return repository.findConnectionsToUsers(providerUsers);
+	}
+
+	@Benchmark
+	public List<Connection<?>> findProviderConnections() {
+		return repository.findConnections(BenchmarkData.PROVIDERS[0]);
+	}
+}
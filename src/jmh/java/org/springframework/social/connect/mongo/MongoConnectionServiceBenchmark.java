@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.test.FakeConnectionFactoryLocator;
+
+import static org.springframework.social.connect.mongo.BenchmarkData.PROVIDERS;
+import static org.springframework.social.connect.mongo.BenchmarkData.USER_ID;
+
+/**
+ * Measures the query paths of the connection service, on an in-memory
+ * template, for users with a growing number of connections.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MongoConnectionServiceBenchmark {
+
+	@Param({"1", "10", "50"})
+	public int connections;
+
+	private MongoConnectionService service;
+	private String providerUserId;
+	private Set<String> providerUserIds;
+
+	@Setup
+	public void setup() {
+		ConnectionConverter converter = new ConnectionConverter(new FakeConnectionFactoryLocator(), BenchmarkData.encryptor());
+		service = new MongoConnectionService(new InMemoryMongoTemplate(), converter);
+
+		List<Connection<?>> stored = BenchmarkData.populate(service, connections);
+		providerUserId = stored.get(0).getKey().getProviderUserId();
+		providerUserIds = new HashSet<String>();
+		for (Connection<?> connection : stored) {
+			if (PROVIDERS[0].equals(connection.getKey().getProviderId())) {
+				providerUserIds.add(connection.getKey().getProviderUserId());
+			}
+		}
+	}
+
+	@Benchmark
+	public List<Connection<?>> getConnections() {
+		return service.getConnections(USER_ID);
+	}
+
+	@Benchmark
+	public List<Connection<?>> getProviderConnections() {
+		return service.getConnections(USER_ID, PROVIDERS[0]);
+	}
+
+	@Benchmark
+	public List<ConnectionSummary> getConnectionSummaries() {
+		return service.getConnectionSummaries(USER_ID);
+	}
+
+	@Benchmark
+	public Connection<?> getPrimaryConnection() {
+		return service.getPrimaryConnection(USER_ID, PROVIDERS[0]);
+	}
+
+	@Benchmark
+	public Connection<?> getConnection() {
+		return service.getConnection(USER_ID, PROVIDERS[0], providerUserId);
+	}
+
+	@Benchmark
+	public int getMaxRank() {
+		return service.getMaxRank(USER_ID, PROVIDERS[0]);
+	}
+
+	@Benchmark
+	public List<String> getUserIds() {
+		return service.getUserIds(PROVIDERS[0], providerUserId);
+	}
+
+	@Benchmark
+	public Set<String> getUserIdsConnectedTo() {
+		return service.getUserIds(PROVIDERS[0], providerUserIds);
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.social.test.FakeConnectionFactory;
+import org.springframework.social.test.FakeConnectionFactoryLocator;
+
+/**
+ * Compares the single query with the chunked queries of findUserIdsConnectedTo,
+ * for a friend list where one provider user in ten uses the application.
+ * The chunk size 0 stands for the single query.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserIdsConnectedToBenchmark {
+
+	@Param({"5000", "50000"})
+	public int friends;
+
+	@Param({"0", "1000", "5000"})
+	public int chunkSize;
+
+	@Param({"4"})
+	public int parallelism;
+
+	private MongoUsersConnectionRepository repository;
+	private ExecutorService executor;
+	private Set<String> providerUserIds;
+
+	@Setup
+	public void setup() {
+		FakeConnectionFactoryLocator locator = new FakeConnectionFactoryLocator();
+		MongoConnectionService service = new MongoConnectionService(new InMemoryMongoTemplate(),
+				new ConnectionConverter(locator, BenchmarkData.encryptor()));
+		repository = new MongoUsersConnectionRepository(service, locator);
+
+		executor = Executors.newFixedThreadPool(parallelism);
+		if (chunkSize > 0) {
+			repository.setUserIdsChunkSize(chunkSize);
+			repository.setUserIdsExecutor(executor);
+		} else {
+			repository.setUserIdsChunkSize(Integer.MAX_VALUE);
+		}
+
+		FakeConnectionFactory<Object> factory = new FakeConnectionFactory<Object>("facebook", null, null);
+		providerUserIds = new HashSet<String>();
+		for (int i = 0; i < friends; i++) {
+			providerUserIds.add("fb" + i);
+			if (i % 10 == 0) {
+				service.create("user" + i, factory.createConnection("fb" + i, "user " + i), 1);
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Benchmark
+	public Set<String> findUserIdsConnectedTo() {
+		return repository.findUserIdsConnectedTo("facebook", providerUserIds);
+	}
+}
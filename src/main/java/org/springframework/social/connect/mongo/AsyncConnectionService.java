@@ -0,0 +1,249 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * Runs the operations of a {@link ConnectionService} on a dedicated executor,
+ * returning their futures, so that a caller can issue several lookups at once.
+ * <p>
+ * The executor created by this service has a bounded queue; when it is full
+ * the operation runs on the calling thread, slowing down the callers rather
+ * than queuing without limits.
+ *
+ * @see BlockingConnectionService
+ */
+public class AsyncConnectionService implements DisposableBean {
+
+	private final ConnectionService connectionService;
+	private final ExecutorService executor;
+	private final boolean ownExecutor;
+
+	/**
+	 * Creates a service running the operations on its own executor.
+	 * 
+	 * @param connectionService the service running the operations
+	 * @param threads the number of threads of the executor
+	 * @param queueCapacity the number of operations waiting for a thread
+	 */
+	public AsyncConnectionService(ConnectionService connectionService, int threads, int queueCapacity) {
+		this(connectionService, new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), new ServiceThreadFactory(),
+				new ThreadPoolExecutor.CallerRunsPolicy()), true);
+	}
+
+	/**
+	 * Creates a service running the operations on the given executor, which is
+	 * not shut down by this service.
+	 */
+	public AsyncConnectionService(ConnectionService connectionService, ExecutorService executor) {
+		this(connectionService, executor, false);
+	}
+
+	private AsyncConnectionService(ConnectionService connectionService, ExecutorService executor, boolean ownExecutor) {
+		this.connectionService = connectionService;
+		this.executor = executor;
+		this.ownExecutor = ownExecutor;
+	}
+
+	/**
+	 * Shuts down the executor created by this service.
+	 */
+	public void destroy() {
+		if (ownExecutor) {
+			executor.shutdown();
+		}
+	}
+
+	public Future<Integer> getMaxRank(final String userId, final String providerId) {
+		return executor.submit(new Callable<Integer>() {
+			public Integer call() {
+				return connectionService.getMaxRank(userId, providerId);
+			}
+		});
+	}
+
+	public Future<Void> create(final String userId, final Connection<?> userConn, final int rank) {
+		return executor.submit(new Callable<Void>() {
+			public Void call() {
+				connectionService.create(userId, userConn, rank);
+				return null;
+			}
+		});
+	}
+
+	public Future<Integer> create(final String userId, final Connection<?> userConn) {
+		return executor.submit(new Callable<Integer>() {
+			public Integer call() {
+				return connectionService.create(userId, userConn);
+			}
+		});
+	}
+
+	public Future<List<ConnectionKey>> create(final String userId, final List<Connection<?>> userConns) {
+		return executor.submit(new Callable<List<ConnectionKey>>() {
+			public List<ConnectionKey> call() {
+				return connectionService.create(userId, userConns);
+			}
+		});
+	}
+
+	public Future<Void> update(final String userId, final Connection<?> userConn) {
+		return executor.submit(new Callable<Void>() {
+			public Void call() {
+				connectionService.update(userId, userConn);
+				return null;
+			}
+		});
+	}
+
+	public Future<Void> remove(final String userId, final ConnectionKey connectionKey) {
+		return executor.submit(new Callable<Void>() {
+			public Void call() {
+				connectionService.remove(userId, connectionKey);
+				return null;
+			}
+		});
+	}
+
+	public Future<Void> remove(final String userId, final String providerId) {
+		return executor.submit(new Callable<Void>() {
+			public Void call() {
+				connectionService.remove(userId, providerId);
+				return null;
+			}
+		});
+	}
+
+	public Future<Connection<?>> getPrimaryConnection(final String userId, final String providerId) {
+		return executor.submit(new Callable<Connection<?>>() {
+			public Connection<?> call() {
+				return connectionService.getPrimaryConnection(userId, providerId);
+			}
+		});
+	}
+
+	public Future<Connection<?>> getConnection(final String userId, final String providerId, final String providerUserId) {
+		return executor.submit(new Callable<Connection<?>>() {
+			public Connection<?> call() {
+				return connectionService.getConnection(userId, providerId, providerUserId);
+			}
+		});
+	}
+
+	public Future<List<Connection<?>>> getConnections(final String userId) {
+		return executor.submit(new Callable<List<Connection<?>>>() {
+			public List<Connection<?>> call() {
+				return connectionService.getConnections(userId);
+			}
+		});
+	}
+
+	public Future<List<Connection<?>>> getConnections(final String userId, final String providerId) {
+		return executor.submit(new Callable<List<Connection<?>>>() {
+			public List<Connection<?>> call() {
+				return connectionService.getConnections(userId, providerId);
+			}
+		});
+	}
+
+	public Future<List<ConnectionSummary>> getConnectionSummaries(final String userId) {
+		return executor.submit(new Callable<List<ConnectionSummary>>() {
+			public List<ConnectionSummary> call() {
+				return connectionService.getConnectionSummaries(userId);
+			}
+		});
+	}
+
+	public Future<List<ConnectionSummary>> getConnectionSummaries(final String userId, final String providerId) {
+		return executor.submit(new Callable<List<ConnectionSummary>>() {
+			public List<ConnectionSummary> call() {
+				return connectionService.getConnectionSummaries(userId, providerId);
+			}
+		});
+	}
+
+	public Future<List<Connection<?>>> getConnections(final String userId, 
+			final MultiValueMap<String, String> providerUsers) {
+		return executor.submit(new Callable<List<Connection<?>>>() {
+			public List<Connection<?>> call() {
+				return connectionService.getConnections(userId, providerUsers);
+			}
+		});
+	}
+
+	public Future<MultiValueMap<String, Connection<?>>> getConnectionsForUsers(final Collection<String> userIds, 
+			final String providerId) {
+		return executor.submit(new Callable<MultiValueMap<String, Connection<?>>>() {
+			public MultiValueMap<String, Connection<?>> call() {
+				return connectionService.getConnectionsForUsers(userIds, providerId);
+			}
+		});
+	}
+
+	public Future<Map<String, Connection<?>>> getPrimaryConnectionsForUsers(final Collection<String> userIds, 
+			final String providerId) {
+		return executor.submit(new Callable<Map<String, Connection<?>>>() {
+			public Map<String, Connection<?>> call() {
+				return connectionService.getPrimaryConnectionsForUsers(userIds, providerId);
+			}
+		});
+	}
+
+	public Future<Set<String>> getUserIds(final String providerId, final Set<String> providerUserIds) {
+		return executor.submit(new Callable<Set<String>>() {
+			public Set<String> call() {
+				return connectionService.getUserIds(providerId, providerUserIds);
+			}
+		});
+	}
+
+	public Future<List<String>> getUserIds(final String providerId, final String providerUserId) {
+		return executor.submit(new Callable<List<String>>() {
+			public List<String> call() {
+				return connectionService.getUserIds(providerId, providerUserId);
+			}
+		});
+	}
+
+	private static class ServiceThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "connection-service-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
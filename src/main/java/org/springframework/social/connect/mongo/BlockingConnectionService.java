@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * Exposes an {@link AsyncConnectionService} as a {@link ConnectionService}, 
+ * waiting for the result of every operation, so that the connection repositories 
+ * can share the executor of the asynchronous callers.
+ * <p>
+ * The exceptions of the operations are rethrown as they are.
+ */
+public class BlockingConnectionService implements ConnectionService {
+
+	private final AsyncConnectionService asyncService;
+
+	public BlockingConnectionService(AsyncConnectionService asyncService) {
+		this.asyncService = asyncService;
+	}
+
+	public int getMaxRank(String userId, String providerId) {
+		return get(asyncService.getMaxRank(userId, providerId));
+	}
+
+	public void create(String userId, Connection<?> userConn, int rank) {
+		get(asyncService.create(userId, userConn, rank));
+	}
+
+	public int create(String userId, Connection<?> userConn) {
+		return get(asyncService.create(userId, userConn));
+	}
+
+	public List<ConnectionKey> create(String userId, List<Connection<?>> userConns) {
+		return get(asyncService.create(userId, userConns));
+	}
+
+	public void update(String userId, Connection<?> userConn) {
+		get(asyncService.update(userId, userConn));
+	}
+
+	public void remove(String userId, ConnectionKey connectionKey) {
+		get(asyncService.remove(userId, connectionKey));
+	}
+
+	public void remove(String userId, String providerId) {
+		get(asyncService.remove(userId, providerId));
+	}
+
+	public Connection<?> getPrimaryConnection(String userId, String providerId) {
+		return get(asyncService.getPrimaryConnection(userId, providerId));
+	}
+
+	public Connection<?> getConnection(String userId, String providerId, String providerUserId) {
+		return get(asyncService.getConnection(userId, providerId, providerUserId));
+	}
+
+	public List<Connection<?>> getConnections(String userId) {
+		return get(asyncService.getConnections(userId));
+	}
+
+	public List<Connection<?>> getConnections(String userId, String providerId) {
+		return get(asyncService.getConnections(userId, providerId));
+	}
+
+	public List<ConnectionSummary> getConnectionSummaries(String userId) {
+		return get(asyncService.getConnectionSummaries(userId));
+	}
+
+	public List<ConnectionSummary> getConnectionSummaries(String userId, String providerId) {
+		return get(asyncService.getConnectionSummaries(userId, providerId));
+	}
+
+	public List<Connection<?>> getConnections(String userId, MultiValueMap<String, String> providerUsers) {
+		return get(asyncService.getConnections(userId, providerUsers));
+	}
+
+	public MultiValueMap<String, Connection<?>> getConnectionsForUsers(Collection<String> userIds, String providerId) {
+		return get(asyncService.getConnectionsForUsers(userIds, providerId));
+	}
+
+	public Map<String, Connection<?>> getPrimaryConnectionsForUsers(Collection<String> userIds, String providerId) {
+		return get(asyncService.getPrimaryConnectionsForUsers(userIds, providerId));
+	}
+
+	public Set<String> getUserIds(String providerId, Set<String> providerUserIds) {
+		return get(asyncService.getUserIds(providerId, providerUserIds));
+	}
+
+	public List<String> getUserIds(String providerId, String providerUserId) {
+		return get(asyncService.getUserIds(providerId, providerUserId));
+	}
+
+	// helper methods
+
+	private static <T> T get(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the connection service", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException("The connection service failed", cause);
+		}
+	}
+}
@@ -22,6 +22,7 @@ import org.springframework.social.connect.ConnectionData;
 import org.springframework.social.connect.ConnectionFactory;
 import org.springframework.social.connect.ConnectionFactoryLocator;
 import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
 
 /**
  * A converter class between Mongo document and
@@ -33,6 +34,8 @@ import org.springframework.stereotype.Component;
 public class ConnectionConverter {
 	private final ConnectionFactoryLocator connectionFactoryLocator;
 	private final TextEncryptor textEncryptor;
+	
+	private boolean lazyDecryption;
 
 	@Autowired
 	public ConnectionConverter(ConnectionFactoryLocator connectionFactoryLocator,
@@ -42,9 +45,29 @@ public class ConnectionConverter {
 		this.textEncryptor = textEncryptor;
 	}
 	
+	/**
+	 * Sets whether the tokens are decrypted only when the connection is first used.
+	 * <p>
+	 * When enabled the converted connections answer their key, display name, profile
+	 * and image url from the document, and the provider connection is created, 
+	 * decrypting each token once, on the first call to any other method. 
+	 * The listing pages that only show the profile attributes never decrypt a token.
+	 * The returned connections are not instances of the provider connection classes.
+	 */
+	public void setLazyDecryption(boolean lazyDecryption) {
+		this.lazyDecryption = lazyDecryption;
+	}
+	
 	public Connection<?> convert(MongoConnection cnn) {
 		if (cnn==null) return null;
 		
+		if (lazyDecryption) {
+			return new LazyConnection<Object>(cnn, this);
+		}
+		return createConnection(cnn);
+	}
+	
+	Connection<?> createConnection(MongoConnection cnn) {
 		ConnectionData connectionData = fillConnectionData(cnn);
 		ConnectionFactory<?> connectionFactory = connectionFactoryLocator.getConnectionFactory(connectionData.getProviderId());
 		return connectionFactory.createConnection(connectionData);
@@ -73,11 +96,21 @@ public class ConnectionConverter {
 		userConn.setImageUrl(data.getImageUrl());
 		userConn.setAccessToken(encrypt(data.getAccessToken()));
 		userConn.setSecret(encrypt(data.getSecret()));
-		userConn.setRefreshToken(encrypt(data.getRefreshToken()));
+		// stored as null when empty: the encrypted value no longer tells, and the token
+		// refresh and the purge match the connections without a refresh token on null
+		userConn.setRefreshToken(StringUtils.hasLength(data.getRefreshToken()) ? encrypt(data.getRefreshToken()) : null);
 		userConn.setExpireTime(data.getExpireTime());
 		return userConn;
 	}
 	
+	/**
+	 * Checks whether the connection has a refresh token, decrypting it: the connections
+	 * written before the empty tokens were stored as null hold an encrypted empty token.
+	 */
+	boolean hasRefreshToken(MongoConnection cnn) {
+		return StringUtils.hasLength(decrypt(cnn.getRefreshToken()));
+	}
+	
 	// helper methods
 	
 	private String decrypt(String encryptedText) {
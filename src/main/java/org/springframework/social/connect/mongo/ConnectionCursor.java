@@ -0,0 +1,104 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.support.PersistenceExceptionTranslator;
+
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Iterates the connections of a query straight from the driver cursor, which fetches 
+ * them a batch at a time, mapping every document only when it is returned. The memory 
+ * used does not depend on the number of connections.
+ * <p>
+ * The cursor is closed when the iteration ends; a caller leaving it earlier must
+ * close it. The driver exceptions of the fetches, as a cursor timed out on the server, 
+ * are translated as by the template.
+ */
+public class ConnectionCursor<T> implements Iterator<T>, Closeable {
+
+	/**
+	 * Maps the documents to the iterated objects.
+	 */
+	public interface Mapper<T> {
+		T map(MongoConnection mc);
+	}
+
+	private final DBCursor cursor;
+	private final MongoConnectionCodec codec;
+	private final Mapper<T> mapper;
+	private final PersistenceExceptionTranslator exceptionTranslator;
+
+	ConnectionCursor(DBCursor cursor, MongoConnectionCodec codec, Mapper<T> mapper, 
+			PersistenceExceptionTranslator exceptionTranslator) {
+		this.cursor = cursor;
+		this.codec = codec;
+		this.mapper = mapper;
+		this.exceptionTranslator = exceptionTranslator;
+	}
+
+	public boolean hasNext() {
+		boolean hasNext;
+		try {
+			// fetches the next batch when the current one is consumed
+			hasNext = cursor.hasNext();
+		} catch (RuntimeException e) {
+			throw translate(e);
+		}
+		if (!hasNext) {
+			close();
+		}
+		return hasNext;
+	}
+
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		DBObject dbo;
+		try {
+			dbo = cursor.next();
+		} catch (RuntimeException e) {
+			throw translate(e);
+		}
+		return mapper.map(codec.read(dbo));
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	public void close() {
+		try {
+			cursor.close();
+		} catch (RuntimeException e) {
+			throw translate(e);
+		}
+	}
+
+	// helper methods
+
+	private RuntimeException translate(RuntimeException e) {
+		DataAccessException translated = exceptionTranslator.translateExceptionIfPossible(e);
+		return translated != null ? translated : e;
+	}
+}
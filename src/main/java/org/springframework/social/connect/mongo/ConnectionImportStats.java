@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+/**
+ * The outcome of a {@link ConnectionImporter} run.
+ */
+public class ConnectionImportStats {
+
+	private final long skippedRows;
+	private final long importedRows;
+	private final long duplicateRows;
+	private final long batches;
+	private final long duplicateBatches;
+	private final long elapsedMillis;
+
+	public ConnectionImportStats(long skippedRows, long importedRows, long duplicateRows, long batches, 
+			long duplicateBatches, long elapsedMillis) {
+		this.skippedRows = skippedRows;
+		this.importedRows = importedRows;
+		this.duplicateRows = duplicateRows;
+		this.batches = batches;
+		this.duplicateBatches = duplicateBatches;
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	/**
+	 * Returns the rows read up to the checkpoint by the previous runs.
+	 */
+	public long getSkippedRows() {
+		return skippedRows;
+	}
+
+	/**
+	 * Returns the rows inserted by this run.
+	 */
+	public long getImportedRows() {
+		return importedRows;
+	}
+
+	/**
+	 * Returns the rows read by this run and rejected as already in the collection.
+	 */
+	public long getDuplicateRows() {
+		return duplicateRows;
+	}
+
+	public long getBatches() {
+		return batches;
+	}
+
+	/**
+	 * Returns the batches with some connection already in the collection.
+	 */
+	public long getDuplicateBatches() {
+		return duplicateBatches;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	/**
+	 * Returns the rows read by this run per second, the duplicates included.
+	 */
+	public double getRowsPerSecond() {
+		return elapsedMillis > 0 ? (importedRows + duplicateRows) * 1000d / elapsedMillis : 0d;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d rows imported, %d duplicates (%d skipped) in %d batches, %d with duplicates, " +
+				"in %d ms (%.0f rows/s)", importedRows, duplicateRows, skippedRows, batches, duplicateBatches, 
+				elapsedMillis, getRowsPerSecond());
+	}
+}
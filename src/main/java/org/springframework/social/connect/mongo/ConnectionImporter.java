@@ -0,0 +1,429 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.CollectionCallback;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+
+import static org.springframework.social.connect.mongo.MongoConnectionCodec.PROVIDER_ID;
+import static org.springframework.social.connect.mongo.MongoConnectionCodec.PROVIDER_USER_ID;
+import static org.springframework.social.connect.mongo.MongoConnectionCodec.USER_ID;
+
+/**
+ * Imports the connections of a {@link ConnectionSource} into the connections collection.
+ * <p>
+ * The calling thread reads the source and queues the connections in batches; a bounded 
+ * queue keeps the reader at most a few batches ahead of the writer threads, which insert 
+ * them. Only the queued batches are held in memory.
+ * <p>
+ * Every import has an id, under which the key of the last row imported without gaps is 
+ * saved in the {@value #CHECKPOINT_COLLECTION} collection as the batches complete. A new 
+ * run with the same id resumes the source after that key. The rows written after the 
+ * checkpoint by an interrupted run are rejected by the unique indexes of the collection 
+ * and counted as duplicates, so the indexes must exist before the import.
+ * <p>
+ * The {@link ConnectionChangeListener}s are notified of every batch written, so that 
+ * the services can drop what they cached for the imported users.
+ */
+public class ConnectionImporter {
+
+	public static final String CHECKPOINT_COLLECTION = "connection_imports";
+
+	private static final Logger log = LoggerFactory.getLogger(ConnectionImporter.class);
+
+	private final MongoTemplate mongoTemplate;
+	private final List<ConnectionChangeListener> listeners = new CopyOnWriteArrayList<ConnectionChangeListener>();
+
+	private int batchSize = 1000;
+	private int writers = 4;
+	private int queueCapacity = 8;
+	private long progressInterval = 100000;
+	private WriteConcern writeConcern = WriteConcern.SAFE;
+	private ConnectionSchema schema = ConnectionSchema.FULL;
+	private MongoConnectionCodec codec = new MongoConnectionCodec();
+
+	public ConnectionImporter(MongoTemplate mongoTemplate) {
+		this.mongoTemplate = mongoTemplate;
+	}
+
+	/**
+	 * Sets the number of connections in each insert. Defaults to 1000.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets the number of writer threads. Defaults to 4.
+	 */
+	public void setWriters(int writers) {
+		this.writers = writers;
+	}
+
+	/**
+	 * Sets the number of batches read ahead of the writers. Defaults to 8.
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * Sets every how many rows the progress is logged. Defaults to 100000.
+	 */
+	public void setProgressInterval(long progressInterval) {
+		this.progressInterval = progressInterval;
+	}
+
+	/**
+	 * Sets the write concern of the inserts. Defaults to {@link WriteConcern#SAFE}; 
+	 * the duplicates of a resumed import are only detected by an acknowledged write.
+	 */
+	public void setWriteConcern(WriteConcern writeConcern) {
+		this.writeConcern = writeConcern;
+	}
+
+	/**
+	 * Sets the on-disk schema the connections are written with, the one of the services. 
+	 * Defaults to {@link ConnectionSchema#FULL}.
+	 */
+	public void setSchema(ConnectionSchema schema) {
+		this.schema = schema;
+		this.codec = new MongoConnectionCodec(schema);
+	}
+
+	/**
+	 * Adds a listener notified of the connections of every batch written.
+	 */
+	public void addChangeListener(ConnectionChangeListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Imports the connections of the source, resuming from the checkpoint of the import, 
+	 * and closes the source.
+	 * 
+	 * @param importId the id of the import checkpoint
+	 * @param source the connections to import
+	 * @return the rows imported and the throughput
+	 */
+	public ConnectionImportStats importConnections(String importId, ConnectionSource source) {
+		long start = System.currentTimeMillis();
+		DBObject checkpoint = mongoTemplate.getCollection(CHECKPOINT_COLLECTION)
+				.findOne(new BasicDBObject("_id", importId));
+		Progress progress = new Progress(importId, checkpoint != null ? rows(checkpoint) : 0L, start);
+		
+		ExecutorService pool = Executors.newFixedThreadPool(writers, new ImporterThreadFactory());
+		BlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(queueCapacity);
+		try {
+			for (int i = 0; i < writers; i++) {
+				pool.execute(new Writer(queue, progress));
+			}
+			
+			MongoConnection mc = resume(importId, checkpoint, source);
+			
+			long firstRow = 0;
+			List<MongoConnection> connections = new ArrayList<MongoConnection>(batchSize);
+			for (; progress.getFailure() == null && mc != null; mc = source.next()) {
+				connections.add(mc);
+				if (connections.size() == batchSize) {
+					put(queue, new Batch(firstRow, connections), progress);
+					firstRow += connections.size();
+					connections = new ArrayList<MongoConnection>(batchSize);
+				}
+			}
+			if (!connections.isEmpty()) {
+				put(queue, new Batch(firstRow, connections), progress);
+			}
+			for (int i = 0; i < writers; i++) {
+				put(queue, Batch.END, progress);
+			}
+			
+			pool.shutdown();
+			while (!pool.awaitTermination(1, TimeUnit.SECONDS)) {
+				// waits for the writers
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Import " + importId + " interrupted", e);
+		} finally {
+			pool.shutdownNow();
+			source.close();
+		}
+		
+		if (progress.getFailure() != null) {
+			throw progress.getFailure();
+		}
+		
+		ConnectionImportStats stats = progress.getStats(System.currentTimeMillis() - start);
+		log.info("Import {} completed: {}", importId, stats);
+		return stats;
+	}
+
+	/**
+	 * Returns the number of rows read up to the checkpoint by the previous runs of the import.
+	 */
+	public long getCheckpoint(String importId) {
+		DBObject checkpoint = mongoTemplate.getCollection(CHECKPOINT_COLLECTION)
+				.findOne(new BasicDBObject("_id", importId));
+		return checkpoint != null ? rows(checkpoint) : 0L;
+	}
+
+	/**
+	 * Removes the checkpoint, so that the next run imports all the rows.
+	 */
+	public void resetCheckpoint(String importId) {
+		mongoTemplate.getCollection(CHECKPOINT_COLLECTION).remove(new BasicDBObject("_id", importId));
+	}
+
+	// helper methods
+
+	private void put(BlockingQueue<Batch> queue, Batch batch, Progress progress) throws InterruptedException {
+		// stops waiting when all the writers have failed
+		while (!queue.offer(batch, 1, TimeUnit.SECONDS)) {
+			if (progress.getFailure() != null) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Positions the source after the key of the checkpoint, and returns its first connection.
+	 */
+	private MongoConnection resume(String importId, DBObject checkpoint, ConnectionSource source) {
+		if (checkpoint == null || !checkpoint.containsField(USER_ID)) {
+			return source.next();
+		}
+		
+		String userId = (String) checkpoint.get(USER_ID);
+		String providerId = (String) checkpoint.get(PROVIDER_ID);
+		String providerUserId = (String) checkpoint.get(PROVIDER_USER_ID);
+		log.info("Import {} resumed after {}", importId, Arrays.asList(userId, providerId, providerUserId));
+		
+		MongoConnection mc;
+		if (source.resumeAfter(userId, providerId, providerUserId)) {
+			mc = source.next();
+		} else {
+			do {
+				mc = source.next();
+			} while (mc != null && compareKeys(mc, userId, providerId, providerUserId) <= 0);
+		}
+		return mc;
+	}
+
+	private void saveCheckpoint(String importId, long rows, MongoConnection last) {
+		DBObject checkpoint = new BasicDBObject("_id", importId)
+			.append(USER_ID, last.getUserId())
+			.append(PROVIDER_ID, last.getProviderId())
+			.append(PROVIDER_USER_ID, last.getProviderUserId())
+			.append("rows", rows)
+			.append("updated", new Date());
+		mongoTemplate.getCollection(CHECKPOINT_COLLECTION).save(checkpoint, WriteConcern.SAFE);
+	}
+
+	/**
+	 * Inserts the connections and returns how many were written, the others being duplicates.
+	 */
+	private int insert(List<MongoConnection> connections) {
+		final List<DBObject> dbos = new ArrayList<DBObject>(connections.size());
+		List<ObjectId> ids = new ArrayList<ObjectId>(connections.size());
+		for (MongoConnection mc : connections) {
+			DBObject dbo = codec.write(mc);
+			// the ids set here tell the documents written from the ones already there
+			ObjectId id = new ObjectId();
+			dbo.put(MongoConnectionCodec.ID, id);
+			ids.add(id);
+			dbos.add(dbo);
+		}
+		
+		try {
+			mongoTemplate.execute(schema.getCollectionName(), new CollectionCallback<WriteResult>() {
+				public WriteResult doInCollection(DBCollection collection) 
+						throws MongoException, DataAccessException {
+					return collection.insert(dbos, writeConcern.continueOnErrorForInsert(true));
+				}
+			});
+			return dbos.size();
+		} catch (DuplicateKeyException e) {
+			// the servers do not count the documents of a bulk insert
+			DBObject written = new BasicDBObject(MongoConnectionCodec.ID, new BasicDBObject("$in", ids));
+			return (int) mongoTemplate.getCollection(schema.getCollectionName()).count(written);
+		}
+	}
+
+	private static long rows(DBObject checkpoint) {
+		return ((Number) checkpoint.get("rows")).longValue();
+	}
+
+	private static int compareKeys(MongoConnection mc, String userId, String providerId, String providerUserId) {
+		int c = mc.getUserId().compareTo(userId);
+		if (c == 0) {
+			c = mc.getProviderId().compareTo(providerId);
+		}
+		if (c == 0) {
+			c = mc.getProviderUserId().compareTo(providerUserId);
+		}
+		return c;
+	}
+
+	private static class Batch {
+
+		static final Batch END = new Batch(-1, null);
+
+		final long firstRow;
+		final List<MongoConnection> connections;
+
+		Batch(long firstRow, List<MongoConnection> connections) {
+			this.firstRow = firstRow;
+			this.connections = connections;
+		}
+	}
+
+	private class Writer implements Runnable {
+
+		private final BlockingQueue<Batch> queue;
+		private final Progress progress;
+
+		Writer(BlockingQueue<Batch> queue, Progress progress) {
+			this.queue = queue;
+			this.progress = progress;
+		}
+
+		public void run() {
+			try {
+				Batch batch;
+				while ((batch = queue.take()) != Batch.END && progress.getFailure() == null) {
+					int inserted = insert(batch.connections);
+					for (ConnectionChangeListener listener : listeners) {
+						listener.connectionsChanged(batch.connections);
+					}
+					progress.completed(batch, inserted);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (RuntimeException e) {
+				progress.fail(e);
+			}
+		}
+	}
+
+	/**
+	 * Tracks the completed batches, advancing the checkpoint over the rows written without gaps.
+	 */
+	private class Progress {
+
+		private final String importId;
+		private final long skippedRows;
+		private final long start;
+		private final TreeMap<Long, Batch> completed = new TreeMap<Long, Batch>();
+		private final AtomicLong rows = new AtomicLong();
+		private final AtomicLong insertedRows = new AtomicLong();
+		private final AtomicLong batches = new AtomicLong();
+		private final AtomicLong duplicateBatches = new AtomicLong();
+
+		// the rows of this run written without gaps
+		private long checkpoint;
+		private volatile RuntimeException failure;
+
+		Progress(String importId, long skippedRows, long start) {
+			this.importId = importId;
+			this.skippedRows = skippedRows;
+			this.start = start;
+		}
+
+		void completed(Batch batch, int inserted) {
+			int size = batch.connections.size();
+			long read = rows.addAndGet(size);
+			insertedRows.addAndGet(inserted);
+			batches.incrementAndGet();
+			if (inserted < size) {
+				duplicateBatches.incrementAndGet();
+			}
+			
+			synchronized (this) {
+				completed.put(batch.firstRow, batch);
+				Batch last = null;
+				while (completed.containsKey(checkpoint)) {
+					last = completed.remove(checkpoint);
+					checkpoint += last.connections.size();
+				}
+				if (last != null) {
+					saveCheckpoint(importId, skippedRows + checkpoint, 
+							last.connections.get(last.connections.size() - 1));
+				}
+			}
+			
+			if (read / progressInterval != (read - size) / progressInterval) {
+				long elapsed = System.currentTimeMillis() - start;
+				log.info("Import {}: {} rows, {} rows/s", new Object[] { importId, read, 
+						elapsed > 0 ? read * 1000 / elapsed : read });
+			}
+		}
+
+		void fail(RuntimeException e) {
+			if (failure == null) {
+				failure = e;
+			}
+		}
+
+		RuntimeException getFailure() {
+			return failure;
+		}
+
+		ConnectionImportStats getStats(long elapsedMillis) {
+			long inserted = insertedRows.get();
+			return new ConnectionImportStats(skippedRows, inserted, rows.get() - inserted, batches.get(), 
+					duplicateBatches.get(), elapsedMillis);
+		}
+	}
+
+	private static class ImporterThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "connection-importer-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
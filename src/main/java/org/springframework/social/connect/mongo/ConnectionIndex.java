@@ -0,0 +1,88 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * The definition of an ascending index on the connections collection.
+ */
+public class ConnectionIndex {
+
+	private final String name;
+	private final List<String> fields;
+	private final boolean unique;
+
+	public ConnectionIndex(String name, boolean unique, String... fields) {
+		this.name = name;
+		this.unique = unique;
+		this.fields = Collections.unmodifiableList(Arrays.asList(fields));
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public List<String> getFields() {
+		return fields;
+	}
+
+	public boolean isUnique() {
+		return unique;
+	}
+
+	/**
+	 * Returns the index key document, with the fields in declaration order.
+	 */
+	public DBObject getKeys() {
+		DBObject keys = new BasicDBObject();
+		for (String field : fields) {
+			keys.put(field, 1);
+		}
+		return keys;
+	}
+
+	/**
+	 * Checks whether an existing index has the same key pattern as this one.
+	 *
+	 * @param keys the key document of the existing index
+	 */
+	public boolean matches(DBObject keys) {
+		if (keys == null || keys.keySet().size() != fields.size()) {
+			return false;
+		}
+
+		int i = 0;
+		for (String key : keys.keySet()) {
+			Object direction = keys.get(key);
+			if (!key.equals(fields.get(i++)) || !(direction instanceof Number)
+					|| ((Number) direction).intValue() != 1) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s %s", name, getKeys());
+	}
+}
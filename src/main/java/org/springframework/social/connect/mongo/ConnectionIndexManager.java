@@ -0,0 +1,202 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.mongodb.core.CollectionCallback;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * Checks at startup that the connections collection has every index
+ * the {@link MongoConnectionService} queries rely on, and builds the
+ * missing ones. The unique indexes, which the rank allocation and the 
+ * duplicate checks of the service rely on, are built before the service 
+ * takes writes, and the startup fails when they cannot be; the others are 
+ * built in the background. The index keys are the stored field names of 
+ * the {@link ConnectionSchema}, the full names by default.
+ */
+@Component
+public class ConnectionIndexManager implements InitializingBean {
+
+	public static final String RANK_INDEX = "connections_rank_idx";
+	public static final String PRIMARY_INDEX = "connections_primary_idx";
+	public static final String PROVIDER_USER_INDEX = "connections_provider_user_idx";
+	public static final String EXPIRE_TIME_INDEX = "connections_expire_time_idx";
+
+	private static final Logger log = LoggerFactory.getLogger(ConnectionIndexManager.class);
+
+	private final MongoTemplate mongoTemplate;
+	private final ConnectionSchema schema;
+	private final List<ConnectionIndex> indexes;
+
+	private boolean createMissingIndexes = true;
+
+	@Autowired
+	public ConnectionIndexManager(MongoTemplate mongoTemplate) {
+		this(mongoTemplate, ConnectionSchema.FULL);
+	}
+
+	public ConnectionIndexManager(MongoTemplate mongoTemplate, ConnectionSchema schema) {
+		this.mongoTemplate = mongoTemplate;
+		this.schema = schema;
+		this.indexes = Collections.unmodifiableList(Arrays.asList(
+				// getMaxRank, getPrimaryConnection and the per-user listings
+				index(RANK_INDEX, true, "userId", "providerId", "rank"),
+				// getConnection, update and remove
+				index(PRIMARY_INDEX, true, "userId", "providerId", "providerUserId"),
+				// getUserIds: covers the reverse lookups on sign in
+				index(PROVIDER_USER_INDEX, false, "providerId", "providerUserId", "userId"),
+				// the expiring connections of the token refresh, in expiry order
+				index(EXPIRE_TIME_INDEX, false, "expireTime")));
+	}
+
+	/**
+	 * Sets whether the missing non-unique indexes are built at startup.
+	 * When disabled they are only reported; the unique indexes are always built.
+	 * Defaults to true.
+	 */
+	public void setCreateMissingIndexes(boolean createMissingIndexes) {
+		this.createMissingIndexes = createMissingIndexes;
+	}
+
+	/**
+	 * Returns the indexes required by the connection service.
+	 */
+	public List<ConnectionIndex> getRequiredIndexes() {
+		return indexes;
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		final List<ConnectionIndex> missing = findMissingIndexes();
+		if (missing.isEmpty()) {
+			return;
+		}
+
+		log.warn("Missing indexes on the connections collection: {}", missing);
+		final List<ConnectionIndex> unique = new ArrayList<ConnectionIndex>();
+		final List<ConnectionIndex> others = new ArrayList<ConnectionIndex>();
+		for (ConnectionIndex index : missing) {
+			if (index.isUnique()) {
+				unique.add(index);
+			} else {
+				others.add(index);
+			}
+		}
+		
+		if (!unique.isEmpty()) {
+			createIndexes(unique, false);
+			for (ConnectionIndex index : findMissingIndexes()) {
+				if (index.isUnique()) {
+					throw new IllegalStateException("Unable to build the unique index " + index);
+				}
+			}
+		}
+		if (others.isEmpty() || !createMissingIndexes) {
+			return;
+		}
+
+		Thread builder = new Thread(new Runnable() {
+			public void run() {
+				try {
+					createIndexes(others, true);
+				} catch (DataAccessException e) {
+					log.error("Unable to build the connections indexes", e);
+				}
+			}
+		}, "connection-index-builder");
+		builder.setDaemon(true);
+		builder.start();
+	}
+
+	/**
+	 * Returns the required indexes that do not exist on the collection.
+	 */
+	public List<ConnectionIndex> findMissingIndexes() {
+		List<DBObject> existing = mongoTemplate.execute(schema.getCollectionName(),
+				new CollectionCallback<List<DBObject>>() {
+			public List<DBObject> doInCollection(DBCollection collection)
+					throws MongoException, DataAccessException {
+				return collection.getIndexInfo();
+			}
+		});
+
+		List<ConnectionIndex> missing = new ArrayList<ConnectionIndex>();
+		for (ConnectionIndex index : indexes) {
+			if (!exists(index, existing)) {
+				missing.add(index);
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * Builds all the missing indexes, waiting for the builds to complete.
+	 */
+	public void ensureIndexes() {
+		createIndexes(findMissingIndexes(), true);
+	}
+
+	// helper methods
+
+	private ConnectionIndex index(String name, boolean unique, String... fields) {
+		String[] stored = new String[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			stored[i] = schema.field(fields[i]);
+		}
+		return new ConnectionIndex(name, unique, stored);
+	}
+
+	private void createIndexes(final List<ConnectionIndex> missing, final boolean background) {
+		mongoTemplate.execute(schema.getCollectionName(), new CollectionCallback<Void>() {
+			public Void doInCollection(DBCollection collection)
+					throws MongoException, DataAccessException {
+				for (ConnectionIndex index : missing) {
+					log.info("Building index {}", index);
+					DBObject options = new BasicDBObject("name", index.getName())
+						.append("unique", index.isUnique())
+						.append("background", background);
+					collection.ensureIndex(index.getKeys(), options);
+				}
+				return null;
+			}
+		});
+	}
+
+	private boolean exists(ConnectionIndex index, List<DBObject> existing) {
+		for (DBObject info : existing) {
+			if (index.matches((DBObject) info.get("key"))) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
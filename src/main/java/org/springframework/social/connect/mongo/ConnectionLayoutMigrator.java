@@ -0,0 +1,195 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.social.connect.mongo.ConnectionServicePolicy.Write;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+import static org.springframework.social.connect.mongo.EmbeddedConnectionService.CONNECTIONS;
+import static org.springframework.social.connect.mongo.MongoConnectionCodec.*;
+
+/**
+ * Copies the connections between the connections collection of the
+ * {@link MongoConnectionService} and the user documents of the 
+ * {@link EmbeddedConnectionService}.
+ * <p>
+ * The source is read with a cursor and left unchanged. The connections already 
+ * present in the target are skipped, so a copy stopped half way can be run again; 
+ * the writes made to the source during the copy may be missed, so the applications 
+ * should stop writing, or write to both layouts, until the copy completes.
+ */
+public class ConnectionLayoutMigrator {
+
+	private static final Logger log = LoggerFactory.getLogger(ConnectionLayoutMigrator.class);
+
+	private final MongoTemplate mongoTemplate;
+	private final MongoConnectionCodec codec = new MongoConnectionCodec();
+
+	private int batchSize = 500;
+	private ConnectionServicePolicy policy = new ConnectionServicePolicy();
+
+	public ConnectionLayoutMigrator(MongoTemplate mongoTemplate) {
+		this.mongoTemplate = mongoTemplate;
+	}
+
+	/**
+	 * Sets the number of documents read and inserted at a time. Defaults to 500.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets the policy of the services, whose {@link Write#CREATE} write concern the copies 
+	 * are written with. It must be acknowledged, as the connections already copied are 
+	 * told by the duplicate key errors and the update counts.
+	 */
+	public void setPolicy(ConnectionServicePolicy policy) {
+		if (!policy.getWriteConcern(Write.CREATE).callGetLastError()) {
+			throw new IllegalArgumentException("The copies need an acknowledged write concern");
+		}
+		this.policy = policy;
+	}
+
+	/**
+	 * Copies the connections collection to the user documents. The connections are read 
+	 * in the order of connections_rank_idx and every new user document is written at once, 
+	 * with its connections grouped by provider and ordered by rank.
+	 * 
+	 * @return the number of connections copied
+	 */
+	public long toEmbedded() {
+		DBCollection source = mongoTemplate.getCollection(MongoConnection.COLLECTION_NAME);
+		DBCollection target = mongoTemplate.getCollection(EmbeddedConnectionService.COLLECTION_NAME);
+		
+		// order by userId, providerId, rank
+		DBCursor cursor = source.find()
+			.sort(new BasicDBObject(USER_ID, 1).append(PROVIDER_ID, 1).append(RANK, 1))
+			.batchSize(batchSize);
+		
+		long copied = 0;
+		long read = 0;
+		String userId = null;
+		List<DBObject> elements = new ArrayList<DBObject>();
+		try {
+			while (cursor.hasNext()) {
+				DBObject dbo = cursor.next();
+				read++;
+				if (userId != null && !userId.equals(dbo.get(USER_ID))) {
+					copied += writeUser(target, userId, elements);
+					elements = new ArrayList<DBObject>();
+				}
+				userId = (String) dbo.get(USER_ID);
+				dbo.removeField(ID);
+				dbo.removeField(USER_ID);
+				elements.add(dbo);
+			}
+			if (userId != null) {
+				copied += writeUser(target, userId, elements);
+			}
+		} finally {
+			cursor.close();
+		}
+		
+		log.info("Copied {} of {} connections to the user documents", copied, read);
+		return copied;
+	}
+
+	/**
+	 * Copies the user documents to the connections collection, with batched inserts
+	 * going on past the connections already there.
+	 * 
+	 * @return the number of connections read, including those already in the collection
+	 */
+	public long toSeparate() {
+		DBCollection source = mongoTemplate.getCollection(EmbeddedConnectionService.COLLECTION_NAME);
+		DBCollection target = mongoTemplate.getCollection(MongoConnection.COLLECTION_NAME);
+		
+		DBCursor cursor = source.find().batchSize(batchSize);
+		long read = 0;
+		List<DBObject> batch = new ArrayList<DBObject>(batchSize);
+		try {
+			while (cursor.hasNext()) {
+				DBObject user = cursor.next();
+				if (!(user.get(CONNECTIONS) instanceof List)) {
+					continue;
+				}
+				for (Object element : (List<?>) user.get(CONNECTIONS)) {
+					MongoConnection mc = codec.read((DBObject) element);
+					mc.setUserId((String) user.get(ID));
+					batch.add(codec.write(mc));
+					read++;
+					if (batch.size() == batchSize) {
+						insert(target, batch);
+						batch = new ArrayList<DBObject>(batchSize);
+					}
+				}
+			}
+			if (!batch.isEmpty()) {
+				insert(target, batch);
+			}
+		} finally {
+			cursor.close();
+		}
+		
+		log.info("Copied {} connections to the connections collection", read);
+		return read;
+	}
+
+	// helper methods
+
+	private int writeUser(DBCollection target, String userId, List<DBObject> elements) {
+		try {
+			// where _id = ? and connections is missing: a new user document, written at once
+			target.update(new BasicDBObject(ID, userId).append(CONNECTIONS, new BasicDBObject("$exists", false)), 
+					new BasicDBObject("$set", new BasicDBObject(CONNECTIONS, elements)), 
+					true, false, policy.getWriteConcern(Write.CREATE));
+			return elements.size();
+		} catch (MongoException.DuplicateKey e) {
+			// the user document exists: pushes the connections it does not have
+			int copied = 0;
+			for (DBObject element : elements) {
+				DBObject key = new BasicDBObject(PROVIDER_ID, element.get(PROVIDER_ID))
+					.append(PROVIDER_USER_ID, element.get(PROVIDER_USER_ID));
+				DBObject query = new BasicDBObject(ID, userId).append("$nor", 
+						Collections.singletonList(new BasicDBObject(CONNECTIONS, new BasicDBObject("$elemMatch", key))));
+				copied += target.update(query, new BasicDBObject("$push", new BasicDBObject(CONNECTIONS, element)), 
+						false, false, policy.getWriteConcern(Write.CREATE)).getN();
+			}
+			return copied;
+		}
+	}
+
+	private void insert(DBCollection target, List<DBObject> batch) {
+		try {
+			target.insert(batch, policy.getWriteConcern(Write.CREATE).continueOnErrorForInsert(true));
+		} catch (MongoException.DuplicateKey e) {
+			// copied by a previous run
+		}
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the operations a connection service issues to the database. An operation 
+ * is counted right before its driver call, whether the call then succeeds or not.
+ */
+public class ConnectionMetrics {
+
+	private final AtomicLong queries = new AtomicLong();
+	private final AtomicLong inserts = new AtomicLong();
+	private final AtomicLong updates = new AtomicLong();
+	private final AtomicLong removes = new AtomicLong();
+
+	void queried() {
+		queries.incrementAndGet();
+	}
+
+	void inserted() {
+		inserts.incrementAndGet();
+	}
+
+	void updated() {
+		updates.incrementAndGet();
+	}
+
+	void removed() {
+		removes.incrementAndGet();
+	}
+
+	public long getQueryCount() {
+		return queries.get();
+	}
+
+	public long getInsertCount() {
+		return inserts.get();
+	}
+
+	public long getUpdateCount() {
+		return updates.get();
+	}
+
+	public long getRemoveCount() {
+		return removes.get();
+	}
+
+	/**
+	 * Returns the total number of write operations.
+	 */
+	public long getWriteCount() {
+		return getInsertCount() + getUpdateCount() + getRemoveCount();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("{queries: %d, inserts: %d, updates: %d, removes: %d}",
+				getQueryCount(), getInsertCount(), getUpdateCount(), getRemoveCount());
+	}
+}
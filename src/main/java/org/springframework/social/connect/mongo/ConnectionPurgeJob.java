@@ -0,0 +1,285 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.mongodb.core.CollectionCallback;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.social.connect.mongo.ConnectionServicePolicy.Write;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * Removes the dead connections: those expired for longer than the max age, 
+ * with no refresh token to renew them.
+ * <p>
+ * The connections are removed in batches, in expiry order, with a pause between 
+ * two batches to limit the load on the database. After every batch the last expire 
+ * time removed is saved under the purge id in the {@value #CHECKPOINT_COLLECTION} 
+ * collection, and a new run with the same id starts from there. The 
+ * {@link ConnectionRemovalListener}s are notified of the connections every batch 
+ * removed, without those refreshed since they were read.
+ */
+public class ConnectionPurgeJob {
+
+	public static final String CHECKPOINT_COLLECTION = "connection_purges";
+
+	private static final Logger log = LoggerFactory.getLogger(ConnectionPurgeJob.class);
+
+	private final MongoTemplate mongoTemplate;
+	private final List<ConnectionRemovalListener> listeners = new CopyOnWriteArrayList<ConnectionRemovalListener>();
+
+	private int batchSize = 500;
+	private long pauseMillis = 100;
+	private long maxAgeMillis = TimeUnit.DAYS.toMillis(30);
+	private ConnectionServicePolicy policy = new ConnectionServicePolicy();
+	private ConnectionSchema schema = ConnectionSchema.FULL;
+	private MongoConnectionCodec codec = new MongoConnectionCodec();
+
+	public ConnectionPurgeJob(MongoTemplate mongoTemplate) {
+		this.mongoTemplate = mongoTemplate;
+	}
+
+	/**
+	 * Sets the number of connections removed by each batch. Defaults to 500.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets the pause between two batches. Defaults to 100 milliseconds.
+	 */
+	public void setPause(long pause, TimeUnit unit) {
+		this.pauseMillis = unit.toMillis(pause);
+	}
+
+	/**
+	 * Sets how long a connection without a refresh token is kept after it has expired. 
+	 * Defaults to 30 days.
+	 */
+	public void setMaxAge(long maxAge, TimeUnit unit) {
+		this.maxAgeMillis = unit.toMillis(maxAge);
+	}
+
+	/**
+	 * Sets the policy of the services, whose {@link Write#REMOVE} write concern the removes 
+	 * and the checkpoints are written with. It must be acknowledged, as the removes are counted.
+	 */
+	public void setPolicy(ConnectionServicePolicy policy) {
+		if (!policy.getWriteConcern(Write.REMOVE).callGetLastError()) {
+			throw new IllegalArgumentException("The purge needs an acknowledged write concern");
+		}
+		this.policy = policy;
+	}
+
+	/**
+	 * Sets the on-disk schema of the connections, the one of the services. 
+	 * Defaults to {@link ConnectionSchema#FULL}.
+	 */
+	public void setSchema(ConnectionSchema schema) {
+		this.schema = schema;
+		this.codec = new MongoConnectionCodec(schema);
+	}
+
+	/**
+	 * Adds a listener notified of the removed connections, as the
+	 * {@link MongoConnectionService} to invalidate its caches.
+	 */
+	public void addRemovalListener(ConnectionRemovalListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Removes all the dead connections, resuming from the checkpoint of the purge.
+	 * 
+	 * @param purgeId the id of the purge checkpoint
+	 * @return the documents and the index entries removed
+	 */
+	public ConnectionPurgeStats purge(String purgeId) {
+		long start = System.currentTimeMillis();
+		long cutoff = start - maxAgeMillis;
+		long from = getCheckpoint(purgeId);
+		// the connection indexes are neither sparse nor multikey: one entry per document
+		int indexes = countIndexes();
+		
+		long documents = 0;
+		long batches = 0;
+		List<MongoConnection> batch;
+		while (!(batch = findDeadConnections(from, cutoff)).isEmpty()) {
+			int removed = remove(batch, cutoff);
+			documents += removed;
+			batches++;
+			from = batch.get(batch.size() - 1).getExpireTime();
+			saveCheckpoint(purgeId, from);
+			
+			// the connections refreshed since they were read are still there
+			List<MongoConnection> gone = removed == batch.size() ? batch : findRemoved(batch);
+			for (ConnectionRemovalListener listener : listeners) {
+				listener.connectionsRemoved(gone);
+			}
+			if (batch.size() < batchSize || !pause()) {
+				break;
+			}
+		}
+		
+		ConnectionPurgeStats stats = new ConnectionPurgeStats(documents, documents * indexes, batches, 
+				System.currentTimeMillis() - start);
+		log.info("Purge {} completed: {}", purgeId, stats);
+		return stats;
+	}
+
+	/**
+	 * Returns the last expire time removed by the previous runs of the purge.
+	 */
+	public long getCheckpoint(String purgeId) {
+		DBObject checkpoint = mongoTemplate.getCollection(CHECKPOINT_COLLECTION)
+				.findOne(new BasicDBObject("_id", purgeId));
+		return checkpoint != null ? ((Number) checkpoint.get("expireTime")).longValue() : Long.MIN_VALUE;
+	}
+
+	// helper methods
+
+	private DBObject deadQuery(long from, long cutoff) {
+		// where expireTime between ? and ? and (refreshToken is null or refreshToken = '')
+		return new BasicDBObject(MongoConnectionCodec.EXPIRE_TIME, new BasicDBObject("$gte", from).append("$lt", cutoff))
+			.append(MongoConnectionCodec.REFRESH_TOKEN, new BasicDBObject("$in", Arrays.asList(null, "")));
+	}
+
+	private List<MongoConnection> findDeadConnections(final long from, final long cutoff) {
+		return mongoTemplate.execute(schema.getCollectionName(), new CollectionCallback<List<MongoConnection>>() {
+			public List<MongoConnection> doInCollection(DBCollection collection) 
+					throws MongoException, DataAccessException {
+				DBObject fields = new BasicDBObject(MongoConnectionCodec.USER_ID, 1)
+					.append(MongoConnectionCodec.PROVIDER_ID, 1)
+					.append(MongoConnectionCodec.PROVIDER_USER_ID, 1)
+					.append(MongoConnectionCodec.EXPIRE_TIME, 1);
+				// follows connections_expire_time_idx
+				DBCursor cursor = collection.find(schema.map(deadQuery(from, cutoff)), schema.map(fields))
+					.sort(schema.map(new BasicDBObject(MongoConnectionCodec.EXPIRE_TIME, 1)))
+					.limit(batchSize);
+				
+				List<MongoConnection> batch = new ArrayList<MongoConnection>();
+				try {
+					while (cursor.hasNext()) {
+						batch.add(codec.read(cursor.next()));
+					}
+				} finally {
+					cursor.close();
+				}
+				return batch;
+			}
+		});
+	}
+
+	/**
+	 * Removes the connections of the batch still dead, and returns how many were removed.
+	 */
+	int remove(List<MongoConnection> batch, final long cutoff) {
+		final List<ObjectId> ids = new ArrayList<ObjectId>(batch.size());
+		for (MongoConnection mc : batch) {
+			ids.add(mc.getId());
+		}
+		
+		return mongoTemplate.execute(schema.getCollectionName(), new CollectionCallback<Integer>() {
+			public Integer doInCollection(DBCollection collection) 
+					throws MongoException, DataAccessException {
+				// the dead conditions again, for the connections refreshed in the meantime
+				DBObject query = deadQuery(Long.MIN_VALUE, cutoff);
+				query.put(MongoConnectionCodec.ID, new BasicDBObject("$in", ids));
+				return collection.remove(schema.map(query), policy.getWriteConcern(Write.REMOVE)).getN();
+			}
+		});
+	}
+
+	private int countIndexes() {
+		return mongoTemplate.execute(schema.getCollectionName(), new CollectionCallback<Integer>() {
+			public Integer doInCollection(DBCollection collection) 
+					throws MongoException, DataAccessException {
+				return collection.getIndexInfo().size();
+			}
+		});
+	}
+
+	private List<MongoConnection> findRemoved(List<MongoConnection> batch) {
+		final List<ObjectId> ids = new ArrayList<ObjectId>(batch.size());
+		for (MongoConnection mc : batch) {
+			ids.add(mc.getId());
+		}
+		
+		Set<Object> remaining = mongoTemplate.execute(schema.getCollectionName(), new CollectionCallback<Set<Object>>() {
+			public Set<Object> doInCollection(DBCollection collection) 
+					throws MongoException, DataAccessException {
+				// select _id where _id in (?, ?, ...), covered by the _id index
+				DBCursor cursor = collection.find(new BasicDBObject(MongoConnectionCodec.ID, new BasicDBObject("$in", ids)), 
+						new BasicDBObject(MongoConnectionCodec.ID, 1));
+				Set<Object> found = new HashSet<Object>();
+				try {
+					while (cursor.hasNext()) {
+						found.add(cursor.next().get(MongoConnectionCodec.ID));
+					}
+				} finally {
+					cursor.close();
+				}
+				return found;
+			}
+		});
+		
+		List<MongoConnection> removed = new ArrayList<MongoConnection>(batch.size());
+		for (MongoConnection mc : batch) {
+			if (!remaining.contains(mc.getId())) {
+				removed.add(mc);
+			}
+		}
+		return removed;
+	}
+
+	private void saveCheckpoint(String purgeId, long expireTime) {
+		DBObject checkpoint = new BasicDBObject("_id", purgeId)
+			.append("expireTime", expireTime)
+			.append("updated", new Date());
+		mongoTemplate.getCollection(CHECKPOINT_COLLECTION).save(checkpoint, policy.getWriteConcern(Write.REMOVE));
+	}
+
+	private boolean pause() {
+		if (pauseMillis <= 0) {
+			return true;
+		}
+		try {
+			Thread.sleep(pauseMillis);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
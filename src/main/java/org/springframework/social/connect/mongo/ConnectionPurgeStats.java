@@ -0,0 +1,63 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+/**
+ * The outcome of a {@link ConnectionPurgeJob} run.
+ */
+public class ConnectionPurgeStats {
+
+	private final long documents;
+	private final long indexEntries;
+	private final long batches;
+	private final long elapsedMillis;
+
+	public ConnectionPurgeStats(long documents, long indexEntries, long batches, long elapsedMillis) {
+		this.documents = documents;
+		this.indexEntries = indexEntries;
+		this.batches = batches;
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	/**
+	 * Returns the number of documents removed.
+	 */
+	public long getDocuments() {
+		return documents;
+	}
+
+	/**
+	 * Returns the number of index entries removed with the documents, one in each 
+	 * index of the collection for every document.
+	 */
+	public long getIndexEntries() {
+		return indexEntries;
+	}
+
+	public long getBatches() {
+		return batches;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d documents and %d index entries removed in %d batches, in %d ms",
+				documents, indexEntries, batches, elapsedMillis);
+	}
+}
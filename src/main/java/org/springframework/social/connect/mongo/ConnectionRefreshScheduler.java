@@ -0,0 +1,214 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.social.connect.Connection;
+
+/**
+ * Refreshes in the background the provider tokens about to expire, so that the
+ * user requests do not pay the provider round trip.
+ * <p>
+ * At a fixed rate it walks, in expiry order, the connections with a refresh token 
+ * expiring within the window from now; the expired ones are left to the refreshes on 
+ * use. Each is claimed for the lease time with {@link MongoConnectionService#claimRefresh}, 
+ * so that the schedulers of the other nodes skip it, then created through its connection 
+ * factory, refreshed and written back with {@link ConnectionService#update}, which 
+ * invalidates the cached connections of the user. At most <code>concurrency</code> 
+ * refreshes run at once. A failed refresh is logged and retried once the lease is over, 
+ * while the connection is in the window.
+ */
+public class ConnectionRefreshScheduler implements DisposableBean {
+
+	private static final Logger log = LoggerFactory.getLogger(ConnectionRefreshScheduler.class);
+
+	private final MongoConnectionService mongoService;
+	private final ConnectionService connectionService;
+	private final ConnectionConverter converter;
+	private final long window;
+	private final int concurrency;
+	private final ScheduledExecutorService scheduler;
+	private final ExecutorService refreshers;
+	private final AtomicLong refreshed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	
+	private volatile long leaseMillis = TimeUnit.MINUTES.toMillis(5);
+
+	/**
+	 * Creates a scheduler refreshing the connections of the service, and writing them
+	 * back through it.
+	 * 
+	 * @param mongoService the service reading the expiring connections
+	 * @param converter the converter creating the connections
+	 * @param window the time after now of the refreshed expire times
+	 * @param interval the time between two runs
+	 * @param unit the unit of the window and the interval
+	 * @param concurrency the refreshes running at once, at most
+	 */
+	public ConnectionRefreshScheduler(MongoConnectionService mongoService, ConnectionConverter converter,
+			long window, long interval, TimeUnit unit, int concurrency) {
+		this(mongoService, mongoService, converter, window, interval, unit, concurrency);
+	}
+
+	/**
+	 * Creates a scheduler writing the refreshed connections through another service, as a 
+	 * {@link WriteBehindConnectionService} wrapping the Mongo one.
+	 */
+	public ConnectionRefreshScheduler(MongoConnectionService mongoService, ConnectionService connectionService,
+			ConnectionConverter converter, long window, long interval, TimeUnit unit, int concurrency) {
+		this.mongoService = mongoService;
+		this.connectionService = connectionService;
+		this.converter = converter;
+		this.window = unit.toMillis(window);
+		this.concurrency = concurrency;
+		this.refreshers = Executors.newFixedThreadPool(concurrency, new RefreshThreadFactory("connection-refresher-"));
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new RefreshThreadFactory("connection-refresh-scheduler-"));
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					refreshExpiringConnections();
+				} catch (RuntimeException e) {
+					log.error("Unable to refresh the expiring connections", e);
+				}
+			}
+		}, interval, interval, unit);
+	}
+
+	/**
+	 * Sets the time a node holds the refresh of a connection, after which another one may 
+	 * retry it. It must be longer than a refresh and shorter than the window. Defaults to 
+	 * 5 minutes.
+	 */
+	public void setLeaseTime(long leaseTime, TimeUnit unit) {
+		this.leaseMillis = unit.toMillis(leaseTime);
+	}
+
+	/**
+	 * Returns the number of connections refreshed.
+	 */
+	public long getRefreshedCount() {
+		return refreshed.get();
+	}
+
+	/**
+	 * Returns the number of refreshes failed.
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * Refreshes the connections in the window, waiting for the refreshes to complete.
+	 * 
+	 * @return the number of connections refreshed
+	 */
+	public int refreshExpiringConnections() {
+		long now = System.currentTimeMillis();
+		final Semaphore permits = new Semaphore(concurrency);
+		final AtomicInteger count = new AtomicInteger();
+		
+		ConnectionCursor<MongoConnection> cursor = mongoService.streamRefreshableConnectionDocuments(now, now + window);
+		try {
+			while (cursor.hasNext()) {
+				final MongoConnection mc = cursor.next();
+				permits.acquire();
+				refreshers.execute(new Runnable() {
+					public void run() {
+						try {
+							if (refresh(mc)) {
+								count.incrementAndGet();
+							}
+						} finally {
+							permits.release();
+						}
+					}
+				});
+			}
+			// waits for the last refreshes
+			permits.acquire(concurrency);
+			permits.release(concurrency);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			cursor.close();
+		}
+		
+		if (count.get() > 0) {
+			log.info("Refreshed {} expiring connections", count.get());
+		}
+		return count.get();
+	}
+
+	/**
+	 * Stops the scheduled runs and the running refreshes.
+	 */
+	public void destroy() {
+		scheduler.shutdownNow();
+		refreshers.shutdownNow();
+	}
+
+	// helper methods
+
+	private boolean refresh(MongoConnection mc) {
+		try {
+			if (!converter.hasRefreshToken(mc)) {
+				// an encrypted empty token, stored before they were stored as null
+				return false;
+			}
+			if (!mongoService.claimRefresh(mc, leaseMillis)) {
+				// refreshed by another node
+				return false;
+			}
+			Connection<?> connection = converter.convert(mc);
+			connection.refresh();
+			connectionService.update(mc.getUserId(), connection);
+			refreshed.incrementAndGet();
+			return true;
+		} catch (RuntimeException e) {
+			failed.incrementAndGet();
+			log.warn("Unable to refresh the connection " + mc.getProviderId() + "/" + mc.getProviderUserId() 
+					+ " of " + mc.getUserId(), e);
+			return false;
+		}
+	}
+
+	private static class RefreshThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		RefreshThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, prefix + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
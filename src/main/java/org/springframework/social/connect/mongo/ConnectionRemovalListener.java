@@ -0,0 +1,30 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.List;
+
+/**
+ * Notified of the connections removed outside of the {@link ConnectionService}
+ * operations, as by the {@link ConnectionPurgeJob}, so that the caches can drop them.
+ */
+public interface ConnectionRemovalListener {
+
+	/**
+	 * Called after the connections have been removed.
+	 */
+	void connectionsRemoved(List<MongoConnection> removed);
+}
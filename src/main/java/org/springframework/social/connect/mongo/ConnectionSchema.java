@@ -0,0 +1,142 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import static org.springframework.social.connect.mongo.MongoConnectionCodec.*;
+
+/**
+ * The on-disk schema of the connection documents: the collection they are stored in
+ * and the stored name of each field.
+ * <p>
+ * The {@link #FULL} schema stores the fields under their {@link MongoConnection} names, 
+ * in the connections collection. The {@link #COMPACT} schema stores them under one or two 
+ * letter names in the connections_compact collection, which shrinks the documents, 
+ * and so the data files and the working set, as {@link ConnectionSchemaMigrator#report()} 
+ * measures. The index entries only hold the values, whatever the schema. The {@link MongoConnectionService} 
+ * builds its queries with the full names and maps them with {@link #map(DBObject)}; the 
+ * {@link ConnectionSchemaMigrator} copies the connections from one schema to the other.
+ * <p>
+ * The {@link MongoConnectionService}, the {@link ConnectionIndexManager}, the 
+ * {@link ConnectionSharding}, the {@link ConnectionPurgeJob}, the {@link ConnectionImporter} 
+ * and the {@link ProviderUserMappingRepairJob} take the schema, and must all be given the 
+ * same. The {@link ConnectionLayoutMigrator} only copies the full schema.
+ */
+public class ConnectionSchema {
+
+	public static final ConnectionSchema FULL = 
+			new ConnectionSchema(MongoConnection.COLLECTION_NAME, Collections.<String, String>emptyMap());
+
+	public static final ConnectionSchema COMPACT = new ConnectionSchema("connections_compact", compactFields());
+
+	private final String collectionName;
+	private final Map<String, String> fields;
+
+	/**
+	 * Creates a schema.
+	 * 
+	 * @param collectionName the collection of the connection documents
+	 * @param fields the stored names by {@link MongoConnectionCodec} field name; 
+	 * the fields not listed keep their name
+	 */
+	public ConnectionSchema(String collectionName, Map<String, String> fields) {
+		this.collectionName = collectionName;
+		this.fields = new HashMap<String, String>(fields);
+	}
+
+	public String getCollectionName() {
+		return collectionName;
+	}
+
+	/**
+	 * Returns the stored name of a field.
+	 */
+	public String field(String name) {
+		String stored = fields.get(name);
+		return stored != null ? stored : name;
+	}
+
+	/**
+	 * Returns a copy of a query, a projection, a sort or an update document with its
+	 * field names replaced by the stored names, through the {@code $and}, {@code $or} 
+	 * and the operator documents, including those Spring Data keeps as plain maps, as
+	 * the {@code $set} of an {@code Update}. Returns the document itself when no field 
+	 * is renamed.
+	 */
+	public DBObject map(DBObject dbo) {
+		if (dbo == null || fields.isEmpty()) {
+			return dbo;
+		}
+		
+		DBObject mapped = new BasicDBObject();
+		for (String key : dbo.keySet()) {
+			String name = key.startsWith("$") ? key : field(key);
+			mapped.put(name, mapValue(dbo.get(key)));
+		}
+		return mapped;
+	}
+
+	@Override
+	public String toString() {
+		return collectionName;
+	}
+
+	// helper methods
+
+	private Object mapValue(Object value) {
+		if (value instanceof List) {
+			// the $and and $or branches, or the values of an $in
+			BasicDBList mapped = new BasicDBList();
+			for (Object element : (List<?>) value) {
+				mapped.add(mapValue(element));
+			}
+			return mapped;
+		}
+		if (value instanceof DBObject) {
+			return map((DBObject) value);
+		}
+		if (value instanceof Map) {
+			// the operator documents of an Update
+			return map(new BasicDBObject((Map<?, ?>) value));
+		}
+		return value;
+	}
+
+	private static Map<String, String> compactFields() {
+		Map<String, String> fields = new HashMap<String, String>();
+		fields.put(USER_ID, "u");
+		fields.put(PROVIDER_ID, "p");
+		fields.put(PROVIDER_USER_ID, "pu");
+		fields.put(RANK, "r");
+		fields.put(DISPLAY_NAME, "dn");
+		fields.put(PROFILE_URL, "pr");
+		fields.put(IMAGE_URL, "im");
+		fields.put(ACCESS_TOKEN, "at");
+		fields.put(SECRET, "s");
+		fields.put(REFRESH_TOKEN, "rt");
+		fields.put(EXPIRE_TIME, "e");
+		fields.put(REFRESH_LEASE, "rl");
+		return fields;
+	}
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+
+import static org.springframework.social.connect.mongo.MongoConnectionCodec.ID;
+
+/**
+ * Copies the connections from the collection of a {@link ConnectionSchema} to the 
+ * collection of another, renaming their fields, while the services keep running 
+ * on the source.
+ * <p>
+ * Every run removes from the target the connections no longer in the source, then 
+ * replaces the target documents that differ from their source, so a run catches up the 
+ * writes made to the source since the previous one and rewrites only those. The source
+ * is compared a batch at a time with the target documents of the same ids. The applications switch to the target schema 
+ * after a last run made with the writes stopped; the migrator must not run once they 
+ * write to the target.
+ */
+public class ConnectionSchemaMigrator {
+
+	private static final Logger log = LoggerFactory.getLogger(ConnectionSchemaMigrator.class);
+
+	private final MongoTemplate mongoTemplate;
+	private final ConnectionSchema source;
+	private final ConnectionSchema target;
+	private final MongoConnectionCodec sourceCodec;
+	private final MongoConnectionCodec targetCodec;
+
+	private int batchSize = 500;
+
+	public ConnectionSchemaMigrator(MongoTemplate mongoTemplate, ConnectionSchema source, ConnectionSchema target) {
+		this.mongoTemplate = mongoTemplate;
+		this.source = source;
+		this.target = target;
+		this.sourceCodec = new MongoConnectionCodec(source);
+		this.targetCodec = new MongoConnectionCodec(target);
+	}
+
+	/**
+	 * Sets the number of documents read at a time. Defaults to 500.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Builds the indexes of the target schema, removes the target connections no longer
+	 * in the source and copies the source connections new or changed since the last run.
+	 * 
+	 * @return the number of connections copied
+	 */
+	public long migrate() {
+		new ConnectionIndexManager(mongoTemplate, target).ensureIndexes();
+		
+		DBCollection from = mongoTemplate.getCollection(source.getCollectionName());
+		DBCollection to = mongoTemplate.getCollection(target.getCollectionName());
+		long removed = removeOrphans(from, to);
+		
+		DBCursor cursor = from.find().sort(new BasicDBObject(ID, 1)).batchSize(batchSize);
+		long copied = 0;
+		long unchanged = 0;
+		long conflicts = 0;
+		List<DBObject> batch = new ArrayList<DBObject>(batchSize);
+		try {
+			while (cursor.hasNext()) {
+				batch.add(targetCodec.write(sourceCodec.read(cursor.next())));
+				if (batch.size() < batchSize && cursor.hasNext()) {
+					continue;
+				}
+				List<DBObject> changed = findChanged(to, batch);
+				unchanged += batch.size() - changed.size();
+				for (DBObject dbo : changed) {
+					try {
+						to.update(new BasicDBObject(ID, dbo.get(ID)), dbo, true, false, WriteConcern.SAFE);
+						copied++;
+					} catch (MongoException.DuplicateKey e) {
+						// the rank or the provider user of a connection removed since the orphans 
+						// were: copied by the next run
+						conflicts++;
+					}
+				}
+				batch = new ArrayList<DBObject>(batchSize);
+			}
+		} finally {
+			cursor.close();
+		}
+		
+		log.info("Copied {} connections from {} to {}, removed {}, {} unchanged and {} skipped in conflict", 
+				new Object[] { copied, source, target, removed, unchanged, conflicts });
+		return copied;
+	}
+
+	/**
+	 * Returns the size of the connections stored with a schema.
+	 */
+	public ConnectionSchemaStats getStats(ConnectionSchema schema) {
+		CommandResult result = mongoTemplate.getDb().command(new BasicDBObject("collStats", schema.getCollectionName()));
+		if (!result.ok()) {
+			// no collection yet
+			return new ConnectionSchemaStats(schema.getCollectionName(), 0, 0, 0, 0);
+		}
+		return new ConnectionSchemaStats(schema.getCollectionName(), 
+				number(result, "count"), number(result, "size"), 
+				number(result, "storageSize"), number(result, "totalIndexSize"));
+	}
+
+	/**
+	 * Compares the size of the connections in the source and the target schemas.
+	 */
+	public String report() {
+		ConnectionSchemaStats from = getStats(source);
+		ConnectionSchemaStats to = getStats(target);
+		String report = String.format("%s%n%s%ndocuments %d%% and indexes %d%% smaller", from, to, 
+				saving(from.getAverageDocumentSize(), to.getAverageDocumentSize()), 
+				saving(from.getIndexSize(), to.getIndexSize()));
+		log.info(report);
+		return report;
+	}
+
+	// helper methods
+
+	/**
+	 * Returns the documents of the batch missing from the target or different from their
+	 * target document.
+	 */
+	private List<DBObject> findChanged(DBCollection to, List<DBObject> batch) {
+		List<Object> ids = new ArrayList<Object>(batch.size());
+		for (DBObject dbo : batch) {
+			ids.add(dbo.get(ID));
+		}
+		
+		Map<Object, DBObject> current = new HashMap<Object, DBObject>();
+		DBCursor cursor = to.find(new BasicDBObject(ID, new BasicDBObject("$in", ids)));
+		try {
+			while (cursor.hasNext()) {
+				DBObject dbo = cursor.next();
+				current.put(dbo.get(ID), dbo);
+			}
+		} finally {
+			cursor.close();
+		}
+		
+		List<DBObject> changed = new ArrayList<DBObject>();
+		for (DBObject dbo : batch) {
+			// field by field, whatever their order
+			if (!dbo.equals(current.get(dbo.get(ID)))) {
+				changed.add(dbo);
+			}
+		}
+		return changed;
+	}
+
+	private long removeOrphans(DBCollection from, DBCollection to) {
+		DBCursor cursor = to.find(new BasicDBObject(), new BasicDBObject(ID, 1)).batchSize(batchSize);
+		long removed = 0;
+		List<Object> batch = new ArrayList<Object>(batchSize);
+		try {
+			while (cursor.hasNext()) {
+				batch.add(cursor.next().get(ID));
+				if (batch.size() == batchSize) {
+					removed += removeOrphans(from, to, batch);
+					batch = new ArrayList<Object>(batchSize);
+				}
+			}
+			if (!batch.isEmpty()) {
+				removed += removeOrphans(from, to, batch);
+			}
+		} finally {
+			cursor.close();
+		}
+		return removed;
+	}
+
+	private int removeOrphans(DBCollection from, DBCollection to, List<Object> ids) {
+		// select _id where _id in (?, ?, ...), covered by the _id index
+		DBCursor cursor = from.find(new BasicDBObject(ID, new BasicDBObject("$in", ids)), new BasicDBObject(ID, 1));
+		Set<Object> found = new HashSet<Object>();
+		try {
+			while (cursor.hasNext()) {
+				found.add(cursor.next().get(ID));
+			}
+		} finally {
+			cursor.close();
+		}
+		
+		List<Object> orphans = new ArrayList<Object>();
+		for (Object id : ids) {
+			if (!found.contains(id)) {
+				orphans.add(id);
+			}
+		}
+		if (orphans.isEmpty()) {
+			return 0;
+		}
+		return to.remove(new BasicDBObject(ID, new BasicDBObject("$in", orphans)), WriteConcern.SAFE).getN();
+	}
+
+	private static long number(DBObject dbo, String key) {
+		Object value = dbo.get(key);
+		return value instanceof Number ? ((Number) value).longValue() : 0;
+	}
+
+	private static long saving(long from, long to) {
+		return from == 0 ? 0 : Math.round(100.0 * (from - to) / from);
+	}
+}
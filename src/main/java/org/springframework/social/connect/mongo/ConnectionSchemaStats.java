@@ -0,0 +1,79 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+/**
+ * The size of the connections stored with a {@link ConnectionSchema},
+ * as reported by the collStats command.
+ */
+public class ConnectionSchemaStats {
+
+	private final String collectionName;
+	private final long documents;
+	private final long dataSize;
+	private final long storageSize;
+	private final long indexSize;
+
+	public ConnectionSchemaStats(String collectionName, long documents, long dataSize, long storageSize, long indexSize) {
+		this.collectionName = collectionName;
+		this.documents = documents;
+		this.dataSize = dataSize;
+		this.storageSize = storageSize;
+		this.indexSize = indexSize;
+	}
+
+	public String getCollectionName() {
+		return collectionName;
+	}
+
+	public long getDocuments() {
+		return documents;
+	}
+
+	/**
+	 * Returns the size of the documents, in bytes.
+	 */
+	public long getDataSize() {
+		return dataSize;
+	}
+
+	/**
+	 * Returns the space allocated to the documents, in bytes.
+	 */
+	public long getStorageSize() {
+		return storageSize;
+	}
+
+	/**
+	 * Returns the size of all the indexes, in bytes.
+	 */
+	public long getIndexSize() {
+		return indexSize;
+	}
+
+	/**
+	 * Returns the average document size, in bytes.
+	 */
+	public long getAverageDocumentSize() {
+		return documents == 0 ? 0 : dataSize / documents;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %d documents of %d bytes on average, %d bytes of data, %d bytes of storage, %d bytes of indexes",
+				collectionName, documents, getAverageDocumentSize(), dataSize, storageSize, indexSize);
+	}
+}
@@ -15,7 +15,9 @@
  */
 package org.springframework.social.connect.mongo;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.springframework.social.connect.Connection;
@@ -28,6 +30,10 @@ public interface ConnectionService {
 
 	void create(String userId, Connection<?> userConn, int rank);
 
+	int create(String userId, Connection<?> userConn);
+
+	List<ConnectionKey> create(String userId, List<Connection<?>> userConns);
+
 	void update(String userId, Connection<?> userConn);
 
 	void remove(String userId, ConnectionKey connectionKey);
@@ -45,9 +51,20 @@ public interface ConnectionService {
 	List<Connection<?>> getConnections(String userId,
 			String providerId);
 
+	List<ConnectionSummary> getConnectionSummaries(String userId);
+
+	List<ConnectionSummary> getConnectionSummaries(String userId,
+			String providerId);
+
 	List<Connection<?>> getConnections(String userId,
 			MultiValueMap<String, String> providerUsers);
 
+	MultiValueMap<String, Connection<?>> getConnectionsForUsers(Collection<String> userIds,
+			String providerId);
+
+	Map<String, Connection<?>> getPrimaryConnectionsForUsers(Collection<String> userIds,
+			String providerId);
+
 	Set<String> getUserIds(String providerId,
 			Set<String> providerUserIds);
 
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+
+/**
+ * The write concern of each write and the read preference of each query
+ * issued by the {@link MongoConnectionService}.
+ * <p>
+ * The settings are applied to the single operation, so the shared
+ * <code>MongoTemplate</code> is never changed. By default the writes are
+ * acknowledged ({@link WriteConcern#SAFE}) and the queries use the read
+ * preference of the collection.
+ */
+public class ConnectionServicePolicy {
+
+	/**
+	 * The write operations.
+	 */
+	public enum Write {
+		CREATE, UPDATE, REMOVE
+	}
+
+	/**
+	 * The queries.
+	 */
+	public enum Read {
+		/** The reads of the inserts: the max rank lookups and the checks of the bulk inserts. */
+		MAX_RANK,
+		/** The lookups of a single connection. */
+		CONNECTION,
+		/** The listings of the user connections. */
+		CONNECTIONS,
+		/** The user ids lookups for provider users. */
+		USER_IDS
+	}
+
+	private final Map<Write, WriteConcern> writeConcerns = new EnumMap<Write, WriteConcern>(Write.class);
+	private final Map<Read, ReadPreference> readPreferences = new EnumMap<Read, ReadPreference>(Read.class);
+
+	public ConnectionServicePolicy() {
+		for (Write write : Write.values()) {
+			writeConcerns.put(write, WriteConcern.SAFE);
+		}
+	}
+
+	public WriteConcern getWriteConcern(Write write) {
+		return writeConcerns.get(write);
+	}
+
+	public void setWriteConcern(Write write, WriteConcern writeConcern) {
+		if (writeConcern == null) {
+			throw new IllegalArgumentException("writeConcern cannot be null");
+		}
+		writeConcerns.put(write, writeConcern);
+	}
+
+	/**
+	 * Returns the read preference for the query, or null to use the collection one.
+	 */
+	public ReadPreference getReadPreference(Read read) {
+		return readPreferences.get(read);
+	}
+
+	public void setReadPreference(Read read, ReadPreference readPreference) {
+		readPreferences.put(read, readPreference);
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.InvalidDataAccessResourceUsageException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+
+/**
+ * Shards the connections collection on the user id.
+ * <p>
+ * Every per-user operation of the {@link MongoConnectionService} matches the user id, 
+ * so a mongos routes it to the single shard holding the user; a {@link ShardKeyGuard} 
+ * set on the service checks it. The reverse lookups match the provider users and go 
+ * to every shard, unless the service reads them from a {@link ProviderUserMapping}; 
+ * the streams scan every shard by design.
+ * <p>
+ * The key is ranged, {@code { userId: 1 }}, which keeps the unique connections_rank_idx 
+ * and connections_primary_idx, both prefixed by the key, so the ranks and the provider 
+ * users stay unique per user. A hashed key would leave no unique index but {@code _id},
+ * and the service would no longer detect the rank conflicts nor the duplicate connections.
+ */
+public class ConnectionSharding {
+
+	public static final String SHARD_KEY = MongoConnectionCodec.USER_ID;
+
+	private static final Logger log = LoggerFactory.getLogger(ConnectionSharding.class);
+
+	private final MongoTemplate mongoTemplate;
+	private final ConnectionSchema schema;
+
+	public ConnectionSharding(MongoTemplate mongoTemplate) {
+		this(mongoTemplate, ConnectionSchema.FULL);
+	}
+
+	public ConnectionSharding(MongoTemplate mongoTemplate, ConnectionSchema schema) {
+		this.mongoTemplate = mongoTemplate;
+		this.schema = schema;
+	}
+
+	/**
+	 * Returns the shard key of the connections collection, with the stored name of the user id.
+	 */
+	public DBObject shardKey() {
+		return new BasicDBObject(schema.field(SHARD_KEY), 1);
+	}
+
+	/**
+	 * Enables the sharding of the database and shards the connections collection,
+	 * through a mongos. Does nothing for a collection already sharded.
+	 */
+	public void shardCollection() {
+		DB db = mongoTemplate.getDb();
+		DB admin = db.getSisterDB("admin");
+		String namespace = db.getName() + "." + schema.getCollectionName();
+		
+		command(admin, new BasicDBObject("enableSharding", db.getName()));
+		command(admin, new BasicDBObject("shardCollection", namespace).append("key", shardKey()));
+		log.info("Sharded {} on {}", namespace, shardKey());
+	}
+
+	// helper methods
+
+	private void command(DB admin, DBObject command) {
+		CommandResult result = admin.command(command);
+		String message = result.getErrorMessage();
+		if (!result.ok() && (message == null || !message.contains("already"))) {
+			throw new InvalidDataAccessResourceUsageException("Unable to run " + command + ": " + message);
+		}
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+/**
+ * The connections read from an external store by the {@link ConnectionImporter}, 
+ * one at a time.
+ * <p>
+ * A source must return its connections ordered by userId, providerId and providerUserId, 
+ * as an interrupted import resumes after the key of the last connection it imported.
+ */
+public interface ConnectionSource {
+
+	/**
+	 * Positions the source after the connection with the given key, before the first 
+	 * call to {@link #next()}, when an import resumes.
+	 * 
+	 * @return true if the source starts after the key, false if the importer must read 
+	 * and skip the connections up to it, comparing the keys as strings
+	 */
+	boolean resumeAfter(String userId, String providerId, String providerUserId);
+
+	/**
+	 * Returns the next connection, or null when there are no more.
+	 */
+	MongoConnection next();
+
+	/**
+	 * Releases the resources of the source.
+	 */
+	void close();
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import org.springframework.social.connect.ConnectionKey;
+
+/**
+ * The profile attributes of a connection, without its tokens,
+ * for the screens that only list the user connections.
+ */
+public class ConnectionSummary {
+
+	private final String providerId;
+	private final String providerUserId;
+	private final String displayName;
+	private final String profileUrl;
+	private final String imageUrl;
+	private final int rank;
+
+	public ConnectionSummary(String providerId, String providerUserId,
+			String displayName, String profileUrl, String imageUrl, int rank) {
+		this.providerId = providerId;
+		this.providerUserId = providerUserId;
+		this.displayName = displayName;
+		this.profileUrl = profileUrl;
+		this.imageUrl = imageUrl;
+		this.rank = rank;
+	}
+
+	ConnectionSummary(MongoConnection mc) {
+		this(mc.getProviderId(), mc.getProviderUserId(), mc.getDisplayName(),
+				mc.getProfileUrl(), mc.getImageUrl(), mc.getRank());
+	}
+
+	public ConnectionKey getKey() {
+		return new ConnectionKey(providerId, providerUserId);
+	}
+
+	public String getProviderId() {
+		return providerId;
+	}
+
+	public String getProviderUserId() {
+		return providerUserId;
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+
+	public String getProfileUrl() {
+		return profileUrl;
+	}
+
+	public String getImageUrl() {
+		return imageUrl;
+	}
+
+	public int getRank() {
+		return rank;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("{%s, %s, %s}", providerId, providerUserId, displayName);
+	}
+}
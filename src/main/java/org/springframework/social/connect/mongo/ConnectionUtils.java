@@ -0,0 +1,54 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Helpers shared by the connection services and the users connection repository.
+ */
+abstract class ConnectionUtils {
+
+	/**
+	 * Orders the connections by provider id, then by rank.
+	 */
+	static final Comparator<MongoConnection> PROVIDER_RANK_ORDER = new Comparator<MongoConnection>() {
+		public int compare(MongoConnection c1, MongoConnection c2) {
+			int c = c1.getProviderId().compareTo(c2.getProviderId());
+			return c != 0 ? c : (c1.getRank() < c2.getRank() ? -1 : (c1.getRank() == c2.getRank() ? 0 : 1));
+		}
+	};
+
+	/**
+	 * Splits the ids in lists of at most the chunk size, in their iteration order.
+	 * An empty collection gives no chunk.
+	 */
+	static List<List<String>> chunk(Collection<String> ids, int chunkSize) {
+		List<List<String>> chunks = new ArrayList<List<String>>();
+		List<String> chunk = null;
+		for (String id : ids) {
+			if (chunk == null || chunk.size() == chunkSize) {
+				chunk = new ArrayList<String>(Math.min(chunkSize, ids.size()));
+				chunks.add(chunk);
+			}
+			chunk.add(id);
+		}
+		return chunks;
+	}
+}
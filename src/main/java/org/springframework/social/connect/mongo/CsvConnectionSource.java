@@ -0,0 +1,170 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.springframework.dao.DataRetrievalFailureException;
+
+/**
+ * Reads a CSV export of the spring-social <code>UserConnection</code> table.
+ * <p>
+ * The first record names the columns, as in the table; the userId, providerId, providerUserId 
+ * and rank columns are required. The fields may be quoted, with the quotes doubled inside them; 
+ * an empty field that is not quoted is read as null. The tokens are copied as they are, so the 
+ * Mongo repository must use the text encryptor of the JDBC one. An import resumes only if the 
+ * records are ordered by userId, providerId and providerUserId.
+ */
+public class CsvConnectionSource implements ConnectionSource {
+
+	private static final String[] REQUIRED_COLUMNS = { "userId", "providerId", "providerUserId", "rank" };
+
+	private final BufferedReader reader;
+	private final Map<String, Integer> columns = new HashMap<String, Integer>();
+	private long record;
+
+	/**
+	 * Reads the CSV from the reader, which is closed with this source.
+	 */
+	public CsvConnectionSource(Reader reader) {
+		this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+		
+		List<String> header = readRecord();
+		if (header == null) {
+			throw new DataRetrievalFailureException("The CSV has no header");
+		}
+		for (int i = 0; i < header.size(); i++) {
+			columns.put(header.get(i).trim().toLowerCase(Locale.ENGLISH), i);
+		}
+		for (String column : REQUIRED_COLUMNS) {
+			if (!columns.containsKey(column.toLowerCase(Locale.ENGLISH))) {
+				throw new DataRetrievalFailureException("The CSV has no " + column + " column");
+			}
+		}
+	}
+
+	public boolean resumeAfter(String userId, String providerId, String providerUserId) {
+		// a file is only read from the start
+		return false;
+	}
+
+	public MongoConnection next() {
+		List<String> fields = readRecord();
+		if (fields == null) {
+			return null;
+		}
+		
+		try {
+			MongoConnection mc = new MongoConnection();
+			mc.setUserId(field(fields, "userId"));
+			mc.setProviderId(field(fields, "providerId"));
+			mc.setProviderUserId(field(fields, "providerUserId"));
+			mc.setRank(Integer.parseInt(field(fields, "rank")));
+			mc.setDisplayName(field(fields, "displayName"));
+			mc.setProfileUrl(field(fields, "profileUrl"));
+			mc.setImageUrl(field(fields, "imageUrl"));
+			mc.setAccessToken(field(fields, "accessToken"));
+			mc.setSecret(field(fields, "secret"));
+			mc.setRefreshToken(field(fields, "refreshToken"));
+			String expireTime = field(fields, "expireTime");
+			mc.setExpireTime(expireTime != null ? Long.valueOf(expireTime) : null);
+			return mc;
+		} catch (NumberFormatException e) {
+			throw new DataRetrievalFailureException("Invalid number in the CSV record " + record, e);
+		}
+	}
+
+	public void close() {
+		try {
+			reader.close();
+		} catch (IOException e) {
+			throw new DataRetrievalFailureException("Unable to close the CSV", e);
+		}
+	}
+
+	// helper methods
+
+	private String field(List<String> fields, String column) {
+		Integer index = columns.get(column.toLowerCase(Locale.ENGLISH));
+		return index != null && index < fields.size() ? fields.get(index) : null;
+	}
+
+	private List<String> readRecord() {
+		try {
+			int c = reader.read();
+			// skips the blank lines between the records
+			while (c == '\r' || c == '\n') {
+				c = reader.read();
+			}
+			if (c == -1) {
+				return null;
+			}
+			
+			record++;
+			List<String> fields = new ArrayList<String>();
+			StringBuilder field = new StringBuilder();
+			boolean quoted = false;
+			boolean inQuotes = false;
+			while (true) {
+				if (inQuotes) {
+					if (c == -1) {
+						throw new DataRetrievalFailureException("Unterminated quote in the CSV record " + record);
+					}
+					if (c == '"') {
+						reader.mark(1);
+						int next = reader.read();
+						if (next == '"') {
+							field.append('"');
+						} else {
+							inQuotes = false;
+							reader.reset();
+						}
+					} else {
+						field.append((char) c);
+					}
+				} else if (c == '"' && field.length() == 0) {
+					quoted = true;
+					inQuotes = true;
+				} else if (c == ',' || c == '\r' || c == '\n' || c == -1) {
+					fields.add(field.length() == 0 && !quoted ? null : field.toString());
+					field.setLength(0);
+					quoted = false;
+					if (c != ',') {
+						if (c == '\r') {
+							reader.mark(1);
+							if (reader.read() != '\n') {
+								reader.reset();
+							}
+						}
+						return fields;
+					}
+				} else {
+					field.append((char) c);
+				}
+				c = reader.read();
+			}
+		} catch (IOException e) {
+			throw new DataRetrievalFailureException("Unable to read the CSV record " + (record + 1), e);
+		}
+	}
+}
@@ -0,0 +1,519 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Map.Entry;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.CollectionCallback;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.mongo.ConnectionServicePolicy.Read;
+import org.springframework.social.connect.mongo.ConnectionServicePolicy.Write;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteResult;
+
+import static org.springframework.social.connect.mongo.ConnectionUtils.*;
+import static org.springframework.social.connect.mongo.MongoConnectionCodec.*;
+
+/**
+ * A connection service storing all the connections of a user in one document 
+ * of the {@value #COLLECTION_NAME} collection, as an array of connections: 
+ * <pre>
+ * { _id: userId, connections: [ { providerId, providerUserId, rank, ... }, ... ] }
+ * </pre>
+ * The listings of a user read a single document, and the connections are ordered
+ * by provider and rank once read. A connection is added with a single {@code $push},
+ * guarded by the absence of the same provider user and of the same rank, updated 
+ * with a positional {@code $set} and removed with a {@code $pull}; the guards play 
+ * the part of the unique indexes of the connections collection and need the 
+ * acknowledged write concerns of the default {@link ConnectionServicePolicy}.
+ * <p>
+ * The reverse lookups of {@link #getUserIds} use the multikey index built by
+ * {@link #ensureIndexes()}. The {@link ConnectionLayoutMigrator} copies the connections 
+ * between this layout and the connections collection.
+ */
+public class EmbeddedConnectionService implements ConnectionService {
+
+	public static final String COLLECTION_NAME = "user_connections";
+
+	public static final String CONNECTIONS = "connections";
+
+	public static final String PROVIDER_USER_INDEX = "user_connections_provider_user_idx";
+
+	private static final int MAX_RANK_ATTEMPTS = 50;
+
+	private final MongoTemplate mongoTemplate;
+	private final ConnectionConverter converter;
+	private final MongoConnectionCodec codec = new MongoConnectionCodec();
+	private final ConnectionMetrics metrics = new ConnectionMetrics();
+
+	private ConnectionServicePolicy policy = new ConnectionServicePolicy();
+	private int usersChunkSize = MongoConnectionService.DEFAULT_USERS_CHUNK_SIZE;
+
+	public EmbeddedConnectionService(MongoTemplate mongoTemplate, ConnectionConverter converter) {
+		this.mongoTemplate = mongoTemplate;
+		this.converter = converter;
+	}
+
+	/**
+	 * Sets the write concerns and the read preferences of the operations.
+	 */
+	public void setPolicy(ConnectionServicePolicy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * Sets how many user ids are sent in each query of the multi-user lookups.
+	 */
+	public void setUsersChunkSize(int usersChunkSize) {
+		if (usersChunkSize < 1) {
+			throw new IllegalArgumentException("The chunk size must be positive");
+		}
+		this.usersChunkSize = usersChunkSize;
+	}
+
+	/**
+	 * Returns the counters of the operations issued to the database.
+	 */
+	public ConnectionMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Builds the index of the reverse lookups, on the provider users of the connections.
+	 */
+	public void ensureIndexes() {
+		execute(new CollectionCallback<Void>() {
+			public Void doInCollection(DBCollection collection) 
+					throws MongoException, DataAccessException {
+				DBObject keys = new BasicDBObject(CONNECTIONS + "." + PROVIDER_ID, 1)
+					.append(CONNECTIONS + "." + PROVIDER_USER_ID, 1);
+				collection.ensureIndex(keys, new BasicDBObject("name", PROVIDER_USER_INDEX).append("background", true));
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public int getMaxRank(String userId, String providerId) {
+		return maxRank(getConnectionDocuments(userId), providerId);
+	}
+
+	@Override
+	public void create(String userId, Connection<?> userConn, int rank) {
+		MongoConnection mongoCnn = converter.convert(userConn);
+		mongoCnn.setUserId(userId);
+		mongoCnn.setRank(rank);
+		if (!push(mongoCnn)) {
+			throw duplicateKey(mongoCnn);
+		}
+	}
+
+	/**
+	 * Create a new connection with the next rank for the provider. When a concurrent add 
+	 * has taken the rank the push matches nothing, and it is retried with the ranks read again.
+	 */
+	@Override
+	public int create(String userId, Connection<?> userConn) {
+		MongoConnection mongoCnn = converter.convert(userConn);
+		mongoCnn.setUserId(userId);
+		
+		for (int attempt = 1; ; attempt++) {
+			List<MongoConnection> current = getConnectionDocuments(userId);
+			if (find(current, mongoCnn.getProviderId(), mongoCnn.getProviderUserId()) != null) {
+				throw duplicateKey(mongoCnn);
+			}
+			mongoCnn.setRank(maxRank(current, mongoCnn.getProviderId()));
+			if (push(mongoCnn)) {
+				return mongoCnn.getRank();
+			}
+			if (attempt == MAX_RANK_ATTEMPTS) {
+				throw duplicateKey(mongoCnn);
+			}
+		}
+	}
+
+	/**
+	 * Create many connections, reading the user document once and pushing them one by one.
+	 * 
+	 * @return the keys of the connections rejected as duplicates
+	 */
+	@Override
+	public List<ConnectionKey> create(String userId, List<Connection<?>> userConns) {
+		List<ConnectionKey> rejected = new ArrayList<ConnectionKey>();
+		List<MongoConnection> current = new ArrayList<MongoConnection>(getConnectionDocuments(userId));
+		for (Connection<?> userConn : userConns) {
+			MongoConnection mongoCnn = converter.convert(userConn);
+			mongoCnn.setUserId(userId);
+			if (find(current, mongoCnn.getProviderId(), mongoCnn.getProviderUserId()) != null) {
+				rejected.add(userConn.getKey());
+				continue;
+			}
+			mongoCnn.setRank(maxRank(current, mongoCnn.getProviderId()));
+			if (!push(mongoCnn)) {
+				// lost to a concurrent add
+				try {
+					mongoCnn.setRank(create(userId, userConn));
+				} catch (DuplicateKeyException e) {
+					rejected.add(userConn.getKey());
+					continue;
+				}
+			}
+			current.add(mongoCnn);
+		}
+		return rejected;
+	}
+
+	/**
+	 * Update the mutable fields of a connection with a positional update.
+	 */
+	@Override
+	public void update(String userId, Connection<?> userConn) {
+		MongoConnection mongoCnn = converter.convert(userConn);
+		
+		// where _id = ? and connections has { providerId = ?, providerUserId = ? }
+		DBObject query = new BasicDBObject(ID, userId)
+			.append(CONNECTIONS, new BasicDBObject("$elemMatch", key(mongoCnn.getProviderId(), mongoCnn.getProviderUserId())));
+		DBObject set = new BasicDBObject(positional(DISPLAY_NAME), mongoCnn.getDisplayName())
+			.append(positional(PROFILE_URL), mongoCnn.getProfileUrl())
+			.append(positional(IMAGE_URL), mongoCnn.getImageUrl())
+			.append(positional(ACCESS_TOKEN), mongoCnn.getAccessToken())
+			.append(positional(SECRET), mongoCnn.getSecret())
+			.append(positional(REFRESH_TOKEN), mongoCnn.getRefreshToken())
+			.append(positional(EXPIRE_TIME), mongoCnn.getExpireTime());
+		
+		update(query, new BasicDBObject("$set", set), false, Write.UPDATE);
+	}
+
+	@Override
+	public void remove(String userId, ConnectionKey connectionKey) {
+		pull(userId, key(connectionKey.getProviderId(), connectionKey.getProviderUserId()));
+	}
+
+	@Override
+	public void remove(String userId, String providerId) {
+		pull(userId, new BasicDBObject(PROVIDER_ID, providerId));
+	}
+
+	@Override
+	public Connection<?> getPrimaryConnection(String userId, String providerId) {
+		for (MongoConnection mc : getConnectionDocuments(userId)) {
+			if (mc.getProviderId().equals(providerId) && mc.getRank() == 1) {
+				return converter.convert(mc);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Connection<?> getConnection(String userId, String providerId, String providerUserId) {
+		return converter.convert(find(getConnectionDocuments(userId), providerId, providerUserId));
+	}
+
+	@Override
+	public List<Connection<?>> getConnections(String userId) {
+		return getConnections(userId, (String) null);
+	}
+
+	/**
+	 * Get the documents of all the connections for an user id, from the single user document.
+	 */
+	public List<MongoConnection> getConnectionDocuments(String userId) {
+		return connections(findUser(userId, null, Read.CONNECTIONS));
+	}
+
+	@Override
+	public List<Connection<?>> getConnections(String userId, String providerId) {
+		List<Connection<?>> l = new ArrayList<Connection<?>>();
+		for (MongoConnection mc : getConnectionDocuments(userId)) {
+			if (providerId == null || mc.getProviderId().equals(providerId)) {
+				l.add(converter.convert(mc));
+			}
+		}
+		return l;
+	}
+
+	@Override
+	public List<ConnectionSummary> getConnectionSummaries(String userId) {
+		return getConnectionSummaries(userId, null);
+	}
+
+	/**
+	 * Get the summaries of the connections for an user id, reading the user document
+	 * without the token fields.
+	 */
+	@Override
+	public List<ConnectionSummary> getConnectionSummaries(String userId, String providerId) {
+		DBObject fields = new BasicDBObject(CONNECTIONS + "." + ACCESS_TOKEN, 0)
+			.append(CONNECTIONS + "." + SECRET, 0)
+			.append(CONNECTIONS + "." + REFRESH_TOKEN, 0);
+		
+		List<ConnectionSummary> l = new ArrayList<ConnectionSummary>();
+		for (MongoConnection mc : connections(findUser(userId, fields, Read.CONNECTIONS))) {
+			if (providerId == null || mc.getProviderId().equals(providerId)) {
+				l.add(new ConnectionSummary(mc));
+			}
+		}
+		return l;
+	}
+
+	@Override
+	public List<Connection<?>> getConnections(String userId, MultiValueMap<String, String> providerUsers) {
+		if (providerUsers == null || providerUsers.isEmpty()) {
+			throw new IllegalArgumentException("Unable to execute find: no providerUsers provided");
+		}
+		
+		Map<String, Set<String>> lookup = new HashMap<String, Set<String>>();
+		for (Entry<String, List<String>> entry : providerUsers.entrySet()) {
+			lookup.put(entry.getKey(), new HashSet<String>(entry.getValue()));
+		}
+		
+		List<Connection<?>> l = new ArrayList<Connection<?>>();
+		for (MongoConnection mc : getConnectionDocuments(userId)) {
+			Set<String> providerUserIds = lookup.get(mc.getProviderId());
+			if (providerUserIds != null && providerUserIds.contains(mc.getProviderUserId())) {
+				l.add(converter.convert(mc));
+			}
+		}
+		return l;
+	}
+
+	/**
+	 * Get the connections of many users, reading one document for each user, 
+	 * ordered by user id, provider and rank.
+	 */
+	@Override
+	public MultiValueMap<String, Connection<?>> getConnectionsForUsers(Collection<String> userIds, String providerId) {
+		MultiValueMap<String, Connection<?>> result = new LinkedMultiValueMap<String, Connection<?>>();
+		for (DBObject user : findUsers(userIds)) {
+			for (MongoConnection mc : connections(user)) {
+				if (providerId == null || mc.getProviderId().equals(providerId)) {
+					result.add(mc.getUserId(), converter.convert(mc));
+				}
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public Map<String, Connection<?>> getPrimaryConnectionsForUsers(Collection<String> userIds, String providerId) {
+		Map<String, Connection<?>> result = new LinkedHashMap<String, Connection<?>>();
+		for (DBObject user : findUsers(userIds)) {
+			for (MongoConnection mc : connections(user)) {
+				if (mc.getProviderId().equals(providerId) && mc.getRank() == 1) {
+					result.put(mc.getUserId(), converter.convert(mc));
+				}
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public Set<String> getUserIds(String providerId, Set<String> providerUserIds) {
+		// select _id where connections has { providerId = ?, providerUserId in (?, ?, ...) }
+		DBObject match = new BasicDBObject(PROVIDER_ID, providerId)
+			.append(PROVIDER_USER_ID, new BasicDBObject("$in", new ArrayList<String>(providerUserIds)));
+		return new HashSet<String>(findUserIds(match));
+	}
+
+	/**
+	 * Get the user ids connected to the provider user, in user id order.
+	 */
+	@Override
+	public List<String> getUserIds(String providerId, String providerUserId) {
+		// select _id where connections has { providerId = ?, providerUserId = ? } order by _id
+		return findUserIds(key(providerId, providerUserId));
+	}
+
+	// helper methods
+
+	private static String positional(String field) {
+		return CONNECTIONS + ".$." + field;
+	}
+
+	private static DBObject key(String providerId, String providerUserId) {
+		return new BasicDBObject(PROVIDER_ID, providerId).append(PROVIDER_USER_ID, providerUserId);
+	}
+
+	private static MongoConnection find(List<MongoConnection> l, String providerId, String providerUserId) {
+		for (MongoConnection mc : l) {
+			if (mc.getProviderId().equals(providerId) && 
+					(providerUserId == null ? mc.getProviderUserId() == null : providerUserId.equals(mc.getProviderUserId()))) {
+				return mc;
+			}
+		}
+		return null;
+	}
+
+	private static int maxRank(List<MongoConnection> l, String providerId) {
+		int rank = 0;
+		for (MongoConnection mc : l) {
+			if (mc.getProviderId().equals(providerId)) {
+				rank = Math.max(rank, mc.getRank());
+			}
+		}
+		return rank + 1;
+	}
+
+	/**
+	 * Pushes the connection to the user document, created when missing, unless the user 
+	 * already has the provider user or the rank.
+	 * 
+	 * @return false when the connection was not added
+	 */
+	private boolean push(MongoConnection mongoCnn) {
+		DBObject sameUser = new BasicDBObject(CONNECTIONS, new BasicDBObject("$elemMatch", 
+				key(mongoCnn.getProviderId(), mongoCnn.getProviderUserId())));
+		DBObject sameRank = new BasicDBObject(CONNECTIONS, new BasicDBObject("$elemMatch", 
+				new BasicDBObject(PROVIDER_ID, mongoCnn.getProviderId()).append(RANK, mongoCnn.getRank())));
+		
+		// where _id = ? and not (connections has {...} or connections has {...})
+		DBObject query = new BasicDBObject(ID, mongoCnn.getUserId())
+			.append("$nor", Arrays.asList(sameUser, sameRank));
+		DBObject update = new BasicDBObject("$push", new BasicDBObject(CONNECTIONS, element(mongoCnn)));
+		
+		try {
+			// an existing user document not matched by the guards fails the upsert on its _id
+			update(query, update, true, Write.CREATE);
+			return true;
+		} catch (DuplicateKeyException e) {
+			return false;
+		}
+	}
+
+	private void pull(String userId, DBObject match) {
+		update(new BasicDBObject(ID, userId), new BasicDBObject("$pull", new BasicDBObject(CONNECTIONS, match)), 
+				false, Write.REMOVE);
+	}
+
+	private void update(final DBObject query, final DBObject update, final boolean upsert, final Write write) {
+		execute(new CollectionCallback<WriteResult>() {
+			public WriteResult doInCollection(DBCollection collection) 
+					throws MongoException, DataAccessException {
+				if (write == Write.CREATE) {
+					metrics.inserted();
+				} else if (write == Write.UPDATE) {
+					metrics.updated();
+				} else {
+					metrics.removed();
+				}
+				return collection.update(query, update, upsert, false, policy.getWriteConcern(write));
+			}
+		});
+	}
+
+	private DBObject findUser(String userId, DBObject fields, Read read) {
+		List<DBObject> users = find(new BasicDBObject(ID, userId), fields, null, read);
+		return users.isEmpty() ? null : users.get(0);
+	}
+
+	private List<DBObject> findUsers(Collection<String> userIds) {
+		List<DBObject> users = new ArrayList<DBObject>();
+		for (List<String> chunk : chunk(userIds, usersChunkSize)) {
+			users.addAll(find(new BasicDBObject(ID, new BasicDBObject("$in", chunk)), null, 
+					new BasicDBObject(ID, 1), Read.CONNECTIONS));
+		}
+		return users;
+	}
+
+	private List<String> findUserIds(DBObject match) {
+		DBObject query = new BasicDBObject(CONNECTIONS, new BasicDBObject("$elemMatch", match));
+		List<String> userIds = new ArrayList<String>();
+		for (DBObject user : find(query, new BasicDBObject(ID, 1), new BasicDBObject(ID, 1), Read.USER_IDS)) {
+			userIds.add((String) user.get(ID));
+		}
+		return userIds;
+	}
+
+	private List<DBObject> find(final DBObject query, final DBObject fields, final DBObject orderBy, Read read) {
+		final ReadPreference readPreference = policy.getReadPreference(read);
+		return execute(new CollectionCallback<List<DBObject>>() {
+			public List<DBObject> doInCollection(DBCollection collection) 
+					throws MongoException, DataAccessException {
+				metrics.queried();
+				DBCursor cursor = collection.find(query, fields);
+				if (orderBy != null) {
+					cursor.sort(orderBy);
+				}
+				if (readPreference != null) {
+					cursor.setReadPreference(readPreference);
+				}
+				try {
+					return cursor.toArray();
+				} finally {
+					cursor.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Reads the connections of a user document, ordered by provider and rank.
+	 */
+	private List<MongoConnection> connections(DBObject user) {
+		if (user == null || !(user.get(CONNECTIONS) instanceof List)) {
+			return Collections.emptyList();
+		}
+		
+		String userId = (String) user.get(ID);
+		List<?> elements = (List<?>) user.get(CONNECTIONS);
+		List<MongoConnection> l = new ArrayList<MongoConnection>(elements.size());
+		for (Object element : elements) {
+			MongoConnection mc = codec.read((DBObject) element);
+			mc.setUserId(userId);
+			l.add(mc);
+		}
+		Collections.sort(l, PROVIDER_RANK_ORDER);
+		return l;
+	}
+
+	private DBObject element(MongoConnection mongoCnn) {
+		DBObject element = codec.write(mongoCnn);
+		element.removeField(ID);
+		element.removeField(USER_ID);
+		return element;
+	}
+
+	private DuplicateKeyException duplicateKey(MongoConnection mc) {
+		return new DuplicateKeyException(String.format("The user %s already has the connection {%s, %s} or its rank %d", 
+				mc.getUserId(), mc.getProviderId(), mc.getProviderUserId(), mc.getRank()));
+	}
+
+	private <T> T execute(CollectionCallback<T> callback) {
+		return mongoTemplate.execute(COLLECTION_NAME, callback);
+	}
+}
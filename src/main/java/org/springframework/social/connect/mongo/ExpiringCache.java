@@ -0,0 +1,235 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread safe cache whose entries expire after a fixed time to live.
+ * <p>
+ * The keys are spread over a number of segments, each one a synchronized
+ * least recently used map; when a segment is full its eldest entry is evicted.
+ * A load that races with an invalidation of the same segment is not cached,
+ * so a reader never puts back a value older than the last write.
+ */
+public class ExpiringCache<K, V> {
+
+	private static final int SEGMENTS = 16;
+
+	private final List<Segment> segments;
+	private final long timeToLive;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Loads the value for a key missing from the cache.
+	 */
+	public interface Loader<K, V> {
+		V load(K key);
+	}
+
+	public ExpiringCache(int maximumSize, long timeToLive, TimeUnit unit) {
+		if (maximumSize < SEGMENTS) {
+			throw new IllegalArgumentException("maximumSize must be at least " + SEGMENTS);
+		}
+
+		this.timeToLive = unit.toMillis(timeToLive);
+		this.segments = new ArrayList<Segment>(SEGMENTS);
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments.add(new Segment(maximumSize / SEGMENTS));
+		}
+	}
+
+	/**
+	 * Returns the cached value, or null if the key is missing or expired.
+	 */
+	public V get(K key) {
+		Segment segment = segmentFor(key);
+		V value;
+		synchronized (segment) {
+			value = segment.lookup(key);
+		}
+
+		if (value == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return value;
+	}
+
+	/**
+	 * Returns the cached value, loading and caching it when missing.
+	 * A null value returned by the loader is not cached.
+	 */
+	public V get(K key, Loader<K, V> loader) {
+		Segment segment = segmentFor(key);
+		long version;
+		synchronized (segment) {
+			V value = segment.lookup(key);
+			if (value != null) {
+				hits.incrementAndGet();
+				return value;
+			}
+			version = segment.version;
+		}
+
+		misses.incrementAndGet();
+		V value = loader.load(key);
+		if (value != null) {
+			synchronized (segment) {
+				if (segment.version == version) {
+					segment.put(key, new CacheEntry<V>(value, now() + timeToLive));
+				}
+			}
+		}
+		return value;
+	}
+
+	public void put(K key, V value) {
+		Segment segment = segmentFor(key);
+		synchronized (segment) {
+			segment.put(key, new CacheEntry<V>(value, now() + timeToLive));
+		}
+	}
+
+	/**
+	 * Invalidates the value cached for the key.
+	 */
+	public void remove(K key) {
+		Segment segment = segmentFor(key);
+		synchronized (segment) {
+			segment.version++;
+			segment.remove(key);
+		}
+	}
+
+	/**
+	 * Invalidates all the cached values.
+	 */
+	public void clear() {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.version++;
+				segment.clear();
+			}
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the cached keys.
+	 */
+	public Set<K> keys() {
+		Set<K> keys = new HashSet<K>();
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				keys.addAll(segment.keySet());
+			}
+		}
+		return keys;
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of entries dropped because the cache was full
+	 * or they had expired.
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	// helper methods
+
+	private Segment segmentFor(K key) {
+		int h = key.hashCode();
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return segments.get(h & (SEGMENTS - 1));
+	}
+
+	private static long now() {
+		return System.currentTimeMillis();
+	}
+
+	private static class CacheEntry<V> {
+		private final V value;
+		private final long expireTime;
+
+		CacheEntry(V value, long expireTime) {
+			this.value = value;
+			this.expireTime = expireTime;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private class Segment extends LinkedHashMap<K, CacheEntry<V>> {
+		private final int maximumSize;
+		private long version;
+
+		Segment(int maximumSize) {
+			super(16, 0.75f, true);
+			this.maximumSize = maximumSize;
+		}
+
+		V lookup(K key) {
+			CacheEntry<V> entry = get(key);
+			if (entry == null) {
+				return null;
+			}
+			if (entry.expireTime < now()) {
+				remove(key);
+				evictions.incrementAndGet();
+				return null;
+			}
+			return entry.value;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+			if (size() > maximumSize) {
+				evictions.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.bson.types.ObjectId;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import static org.springframework.social.connect.mongo.ConnectionUtils.PROVIDER_RANK_ORDER;
+
+/**
+ * A connection service keeping the connections in memory, for the unit tests, 
+ * the benchmarks and as a cache in front of the database.
+ * <p>
+ * The connections of every user are an immutable list ordered by provider and rank, 
+ * replaced on every write: the reads take no lock and the writes of a user are 
+ * serialized on one of the striped locks. A secondary index maps every provider user 
+ * to the ids of the users connected to it.
+ * <p>
+ * The writes enforce the same unique keys as connections_rank_idx and 
+ * connections_primary_idx, throwing a {@link DuplicateKeyException} naming the index,
+ * and the reads return the connections in the same order as {@link MongoConnectionService}.
+ */
+public class InMemoryConnectionService implements ConnectionService {
+
+	private final ConnectionConverter converter;
+	private final ConcurrentMap<String, List<MongoConnection>> connections = 
+			new ConcurrentHashMap<String, List<MongoConnection>>();
+	private final ConcurrentMap<ConnectionKey, Set<String>> userIds = 
+			new ConcurrentHashMap<ConnectionKey, Set<String>>();
+	private final Object[] locks = new Object[64];
+
+	public InMemoryConnectionService(ConnectionConverter converter) {
+		this.converter = converter;
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Removes all the connections.
+	 */
+	public void clear() {
+		for (String userId : connections.keySet()) {
+			synchronized (lock(userId)) {
+				List<MongoConnection> removed = connections.remove(userId);
+				if (removed != null) {
+					for (MongoConnection mc : removed) {
+						unindex(userId, mc);
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public int getMaxRank(String userId, String providerId) {
+		int rank = 0;
+		for (MongoConnection mc : connections(userId)) {
+			if (mc.getProviderId().equals(providerId)) {
+				rank = Math.max(rank, mc.getRank());
+			}
+		}
+		return rank + 1;
+	}
+
+	@Override
+	public void create(String userId, Connection<?> userConn, int rank) {
+		MongoConnection mongoCnn = converter.convert(userConn);
+		mongoCnn.setUserId(userId);
+		mongoCnn.setRank(rank);
+		synchronized (lock(userId)) {
+			insert(userId, Collections.singletonList(mongoCnn));
+		}
+	}
+
+	/**
+	 * Create a new connection with the next rank for the provider, which is read 
+	 * under the user lock and so never taken by a concurrent add.
+	 */
+	@Override
+	public int create(String userId, Connection<?> userConn) {
+		MongoConnection mongoCnn = converter.convert(userConn);
+		mongoCnn.setUserId(userId);
+		synchronized (lock(userId)) {
+			mongoCnn.setRank(getMaxRank(userId, mongoCnn.getProviderId()));
+			insert(userId, Collections.singletonList(mongoCnn));
+		}
+		return mongoCnn.getRank();
+	}
+
+	/**
+	 * Create many connections with the following ranks for their providers.
+	 * 
+	 * @return the keys of the connections rejected as duplicates
+	 */
+	@Override
+	public List<ConnectionKey> create(String userId, List<Connection<?>> userConns) {
+		List<ConnectionKey> rejected = new ArrayList<ConnectionKey>();
+		List<MongoConnection> mongoCnns = new ArrayList<MongoConnection>(userConns.size());
+		synchronized (lock(userId)) {
+			for (Connection<?> userConn : userConns) {
+				MongoConnection mongoCnn = converter.convert(userConn);
+				mongoCnn.setUserId(userId);
+				if (find(connections(userId), mongoCnn.getProviderId(), mongoCnn.getProviderUserId()) != null
+						|| find(mongoCnns, mongoCnn.getProviderId(), mongoCnn.getProviderUserId()) != null) {
+					rejected.add(new ConnectionKey(mongoCnn.getProviderId(), mongoCnn.getProviderUserId()));
+					continue;
+				}
+				int rank = getMaxRank(userId, mongoCnn.getProviderId());
+				for (MongoConnection added : mongoCnns) {
+					if (added.getProviderId().equals(mongoCnn.getProviderId())) {
+						rank = Math.max(rank, added.getRank() + 1);
+					}
+				}
+				mongoCnn.setRank(rank);
+				mongoCnns.add(mongoCnn);
+			}
+			insert(userId, mongoCnns);
+		}
+		return rejected;
+	}
+
+	/**
+	 * Update the mutable fields of a connection; the user id, the key and the rank never change.
+	 */
+	@Override
+	public void update(String userId, Connection<?> userConn) {
+		MongoConnection mongoCnn = converter.convert(userConn);
+		synchronized (lock(userId)) {
+			List<MongoConnection> current = connections(userId);
+			MongoConnection mc = find(current, mongoCnn.getProviderId(), mongoCnn.getProviderUserId());
+			if (mc == null) {
+				return;
+			}
+			mongoCnn.setId(mc.getId());
+			mongoCnn.setUserId(userId);
+			mongoCnn.setRank(mc.getRank());
+			
+			List<MongoConnection> updated = new ArrayList<MongoConnection>(current);
+			updated.set(current.indexOf(mc), mongoCnn);
+			connections.put(userId, Collections.unmodifiableList(updated));
+		}
+	}
+
+	@Override
+	public void remove(String userId, ConnectionKey connectionKey) {
+		synchronized (lock(userId)) {
+			List<MongoConnection> current = connections(userId);
+			MongoConnection mc = find(current, connectionKey.getProviderId(), connectionKey.getProviderUserId());
+			if (mc != null) {
+				List<MongoConnection> updated = new ArrayList<MongoConnection>(current);
+				updated.remove(mc);
+				replace(userId, updated);
+				unindex(userId, mc);
+			}
+		}
+	}
+
+	@Override
+	public void remove(String userId, String providerId) {
+		synchronized (lock(userId)) {
+			List<MongoConnection> updated = new ArrayList<MongoConnection>();
+			for (MongoConnection mc : connections(userId)) {
+				if (mc.getProviderId().equals(providerId)) {
+					unindex(userId, mc);
+				} else {
+					updated.add(mc);
+				}
+			}
+			replace(userId, updated);
+		}
+	}
+
+	@Override
+	public Connection<?> getPrimaryConnection(String userId, String providerId) {
+		for (MongoConnection mc : connections(userId)) {
+			if (mc.getProviderId().equals(providerId) && mc.getRank() == 1) {
+				return converter.convert(mc);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Connection<?> getConnection(String userId, String providerId, String providerUserId) {
+		return converter.convert(find(connections(userId), providerId, providerUserId));
+	}
+
+	@Override
+	public List<Connection<?>> getConnections(String userId) {
+		return getConnections(userId, (String) null);
+	}
+
+	/**
+	 * Get copies of the documents of all the connections for an user id.
+	 */
+	public List<MongoConnection> getConnectionDocuments(String userId) {
+		List<MongoConnection> l = new ArrayList<MongoConnection>();
+		for (MongoConnection mc : connections(userId)) {
+			l.add(copy(mc));
+		}
+		return l;
+	}
+
+	@Override
+	public List<Connection<?>> getConnections(String userId, String providerId) {
+		List<Connection<?>> l = new ArrayList<Connection<?>>();
+		for (MongoConnection mc : connections(userId)) {
+			if (providerId == null || mc.getProviderId().equals(providerId)) {
+				l.add(converter.convert(mc));
+			}
+		}
+		return l;
+	}
+
+	@Override
+	public List<ConnectionSummary> getConnectionSummaries(String userId) {
+		return getConnectionSummaries(userId, null);
+	}
+
+	@Override
+	public List<ConnectionSummary> getConnectionSummaries(String userId, String providerId) {
+		List<ConnectionSummary> l = new ArrayList<ConnectionSummary>();
+		for (MongoConnection mc : connections(userId)) {
+			if (providerId == null || mc.getProviderId().equals(providerId)) {
+				l.add(new ConnectionSummary(mc));
+			}
+		}
+		return l;
+	}
+
+	@Override
+	public List<Connection<?>> getConnections(String userId, MultiValueMap<String, String> providerUsers) {
+		if (providerUsers == null || providerUsers.isEmpty()) {
+			throw new IllegalArgumentException("Unable to execute find: no providerUsers provided");
+		}
+		
+		Map<String, Set<String>> lookup = new HashMap<String, Set<String>>();
+		for (Map.Entry<String, List<String>> entry : providerUsers.entrySet()) {
+			lookup.put(entry.getKey(), new HashSet<String>(entry.getValue()));
+		}
+		
+		List<Connection<?>> l = new ArrayList<Connection<?>>();
+		for (MongoConnection mc : connections(userId)) {
+			Set<String> providerUserIds = lookup.get(mc.getProviderId());
+			if (providerUserIds != null && providerUserIds.contains(mc.getProviderUserId())) {
+				l.add(converter.convert(mc));
+			}
+		}
+		return l;
+	}
+
+	/**
+	 * Get the connections of many users, ordered by user id, provider and rank.
+	 */
+	@Override
+	public MultiValueMap<String, Connection<?>> getConnectionsForUsers(Collection<String> userIds, String providerId) {
+		MultiValueMap<String, Connection<?>> result = new LinkedMultiValueMap<String, Connection<?>>();
+		for (String userId : new TreeSet<String>(userIds)) {
+			for (MongoConnection mc : connections(userId)) {
+				if (providerId == null || mc.getProviderId().equals(providerId)) {
+					result.add(userId, converter.convert(mc));
+				}
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public Map<String, Connection<?>> getPrimaryConnectionsForUsers(Collection<String> userIds, String providerId) {
+		Map<String, Connection<?>> result = new LinkedHashMap<String, Connection<?>>();
+		for (String userId : new TreeSet<String>(userIds)) {
+			Connection<?> conn = getPrimaryConnection(userId, providerId);
+			if (conn != null) {
+				result.put(userId, conn);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public Set<String> getUserIds(String providerId, Set<String> providerUserIds) {
+		Set<String> result = new HashSet<String>();
+		for (String providerUserId : providerUserIds) {
+			Set<String> ids = userIds.get(new ConnectionKey(providerId, providerUserId));
+			if (ids != null) {
+				result.addAll(ids);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Get the user ids connected to the provider user, in user id order.
+	 */
+	@Override
+	public List<String> getUserIds(String providerId, String providerUserId) {
+		Set<String> ids = userIds.get(new ConnectionKey(providerId, providerUserId));
+		return ids != null ? new ArrayList<String>(ids) : new ArrayList<String>();
+	}
+
+	// helper methods
+
+	private Object lock(String userId) {
+		return locks[(userId.hashCode() & 0x7fffffff) % locks.length];
+	}
+
+	private List<MongoConnection> connections(String userId) {
+		List<MongoConnection> l = connections.get(userId);
+		return l != null ? l : Collections.<MongoConnection>emptyList();
+	}
+
+	private static MongoConnection find(List<MongoConnection> l, String providerId, String providerUserId) {
+		for (MongoConnection mc : l) {
+			if (mc.getProviderId().equals(providerId) && eq(mc.getProviderUserId(), providerUserId)) {
+				return mc;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Adds the connections to the user ones, checking the unique keys first; 
+	 * called with the user lock held.
+	 */
+	private void insert(String userId, List<MongoConnection> mongoCnns) {
+		List<MongoConnection> updated = new ArrayList<MongoConnection>(connections(userId));
+		for (MongoConnection mongoCnn : mongoCnns) {
+			for (MongoConnection mc : updated) {
+				if (!mc.getProviderId().equals(mongoCnn.getProviderId())) {
+					continue;
+				}
+				if (mc.getRank() == mongoCnn.getRank()) {
+					throw duplicateKey(ConnectionIndexManager.RANK_INDEX, mongoCnn);
+				}
+				if (eq(mc.getProviderUserId(), mongoCnn.getProviderUserId())) {
+					throw duplicateKey(ConnectionIndexManager.PRIMARY_INDEX, mongoCnn);
+				}
+			}
+			mongoCnn.setId(new ObjectId());
+			updated.add(mongoCnn);
+		}
+		replace(userId, updated);
+		for (MongoConnection mongoCnn : mongoCnns) {
+			index(userId, mongoCnn);
+		}
+	}
+
+	private void replace(String userId, List<MongoConnection> updated) {
+		if (updated.isEmpty()) {
+			connections.remove(userId);
+		} else {
+			Collections.sort(updated, PROVIDER_RANK_ORDER);
+			connections.put(userId, Collections.unmodifiableList(updated));
+		}
+	}
+
+	private void index(String userId, MongoConnection mc) {
+		ConnectionKey key = new ConnectionKey(mc.getProviderId(), mc.getProviderUserId());
+		for (;;) {
+			Set<String> ids = userIds.get(key);
+			if (ids == null) {
+				Set<String> created = new ConcurrentSkipListSet<String>();
+				ids = userIds.putIfAbsent(key, created);
+				if (ids == null) {
+					ids = created;
+				}
+			}
+			synchronized (ids) {
+				ids.add(userId);
+				// retries when the set was dropped as empty in the meantime
+				if (userIds.get(key) == ids) {
+					return;
+				}
+			}
+		}
+	}
+
+	private void unindex(String userId, MongoConnection mc) {
+		ConnectionKey key = new ConnectionKey(mc.getProviderId(), mc.getProviderUserId());
+		Set<String> ids = userIds.get(key);
+		if (ids != null) {
+			synchronized (ids) {
+				ids.remove(userId);
+				if (ids.isEmpty()) {
+					userIds.remove(key, ids);
+				}
+			}
+		}
+	}
+
+	private static DuplicateKeyException duplicateKey(String index, MongoConnection mc) {
+		return new DuplicateKeyException(String.format("E11000 duplicate key error index: %s.$%s dup key: { %s, %s, %s, %d }",
+				MongoConnection.COLLECTION_NAME, index, mc.getUserId(), mc.getProviderId(), mc.getProviderUserId(), mc.getRank()));
+	}
+
+	private static MongoConnection copy(MongoConnection mc) {
+		MongoConnection copy = new MongoConnection();
+		copy.setId(mc.getId());
+		copy.setUserId(mc.getUserId());
+		copy.setProviderId(mc.getProviderId());
+		copy.setProviderUserId(mc.getProviderUserId());
+		copy.setRank(mc.getRank());
+		copy.setDisplayName(mc.getDisplayName());
+		copy.setProfileUrl(mc.getProfileUrl());
+		copy.setImageUrl(mc.getImageUrl());
+		copy.setAccessToken(mc.getAccessToken());
+		copy.setSecret(mc.getSecret());
+		copy.setRefreshToken(mc.getRefreshToken());
+		copy.setExpireTime(mc.getExpireTime());
+		return copy;
+	}
+
+	private static boolean eq(Object o1, Object o2) {
+		return o1 == null ? o2 == null : o1.equals(o2);
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import org.springframework.dao.DataRetrievalFailureException;
+
+/**
+ * Reads the rows of the spring-social <code>UserConnection</code> table, as written 
+ * by the <code>JdbcUsersConnectionRepository</code>.
+ * <p>
+ * The rows are streamed with a forward only cursor, a fetch size at a time, and ordered 
+ * by their primary key. A resumed import queries only the rows after the key of its 
+ * checkpoint, so the rows already imported are not read again. The tokens are copied 
+ * as they are, so the Mongo repository must use the text encryptor of the JDBC one.
+ */
+public class JdbcConnectionSource implements ConnectionSource {
+
+	public static final int DEFAULT_FETCH_SIZE = 1000;
+
+	private static final String SELECT = "select userId, providerId, providerUserId, rank, displayName, " +
+			"profileUrl, imageUrl, accessToken, secret, refreshToken, expireTime from %sUserConnection ";
+	
+	// the rows after the (userId, providerId, providerUserId) key, as a disjunction all the databases support
+	private static final String AFTER_KEY = "where userId > ? or (userId = ? and providerId > ?) " +
+			"or (userId = ? and providerId = ? and providerUserId > ?) ";
+	
+	private static final String ORDER_BY = "order by userId, providerId, providerUserId";
+
+	private final Connection connection;
+	private final String tablePrefix;
+	private final int fetchSize;
+	private PreparedStatement statement;
+	private ResultSet resultSet;
+	private String[] resumeKey;
+	private boolean autoCommit;
+
+	/**
+	 * Reads the <code>UserConnection</code> table of the data source.
+	 */
+	public JdbcConnectionSource(DataSource dataSource) {
+		this(dataSource, "", DEFAULT_FETCH_SIZE);
+	}
+
+	/**
+	 * Reads the <code>UserConnection</code> table with the given prefix, fetching the given 
+	 * number of rows at a time. Some drivers need a special fetch size to stream the rows,
+	 * as <code>Integer.MIN_VALUE</code> for MySQL.
+	 */
+	public JdbcConnectionSource(DataSource dataSource, String tablePrefix, int fetchSize) {
+		Connection con = null;
+		try {
+			con = dataSource.getConnection();
+			autoCommit = con.getAutoCommit();
+			// some drivers only use a cursor inside a transaction
+			con.setAutoCommit(false);
+		} catch (SQLException e) {
+			closeQuietly(con);
+			throw new DataRetrievalFailureException("Unable to connect to the UserConnection table", e);
+		}
+		this.connection = con;
+		this.tablePrefix = tablePrefix;
+		this.fetchSize = fetchSize;
+	}
+
+	/**
+	 * Reads the rows of a result set with the columns of the <code>UserConnection</code> table.
+	 * The result set is closed with this source.
+	 */
+	public JdbcConnectionSource(ResultSet resultSet) {
+		this.connection = null;
+		this.tablePrefix = null;
+		this.fetchSize = 0;
+		this.resultSet = resultSet;
+	}
+
+	public boolean resumeAfter(String userId, String providerId, String providerUserId) {
+		if (resultSet != null) {
+			// a given result set, or one already read, is skipped by the importer
+			return false;
+		}
+		resumeKey = new String[] { userId, providerId, providerUserId };
+		return true;
+	}
+
+	public MongoConnection next() {
+		try {
+			if (resultSet == null) {
+				resultSet = executeQuery();
+			}
+			if (!resultSet.next()) {
+				return null;
+			}
+			
+			MongoConnection mc = new MongoConnection();
+			mc.setUserId(resultSet.getString("userId"));
+			mc.setProviderId(resultSet.getString("providerId"));
+			mc.setProviderUserId(resultSet.getString("providerUserId"));
+			mc.setRank(resultSet.getInt("rank"));
+			mc.setDisplayName(resultSet.getString("displayName"));
+			mc.setProfileUrl(resultSet.getString("profileUrl"));
+			mc.setImageUrl(resultSet.getString("imageUrl"));
+			mc.setAccessToken(resultSet.getString("accessToken"));
+			mc.setSecret(resultSet.getString("secret"));
+			mc.setRefreshToken(resultSet.getString("refreshToken"));
+			long expireTime = resultSet.getLong("expireTime");
+			mc.setExpireTime(resultSet.wasNull() ? null : expireTime);
+			return mc;
+		} catch (SQLException e) {
+			throw new DataRetrievalFailureException("Unable to read the UserConnection rows", e);
+		}
+	}
+
+	public void close() {
+		try {
+			if (resultSet != null) {
+				resultSet.close();
+			}
+			if (statement != null) {
+				statement.close();
+			}
+		} catch (SQLException e) {
+			throw new DataRetrievalFailureException("Unable to close the UserConnection query", e);
+		} finally {
+			closeQuietly(connection);
+		}
+	}
+
+	// helper methods
+
+	private ResultSet executeQuery() throws SQLException {
+		String sql = String.format(SELECT, tablePrefix) + (resumeKey != null ? AFTER_KEY : "") + ORDER_BY;
+		statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		statement.setFetchSize(fetchSize);
+		if (resumeKey != null) {
+			statement.setString(1, resumeKey[0]);
+			statement.setString(2, resumeKey[0]);
+			statement.setString(3, resumeKey[1]);
+			statement.setString(4, resumeKey[0]);
+			statement.setString(5, resumeKey[1]);
+			statement.setString(6, resumeKey[2]);
+		}
+		return statement.executeQuery();
+	}
+
+	private void closeQuietly(Connection con) {
+		if (con == null) {
+			return;
+		}
+		try {
+			con.rollback();
+			con.setAutoCommit(autoCommit);
+			con.close();
+		} catch (SQLException e) {
+			// nothing was written
+		}
+	}
+}
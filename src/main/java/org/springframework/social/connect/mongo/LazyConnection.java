@@ -0,0 +1,133 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.UserProfile;
+
+/**
+ * A connection that answers the key and the profile attributes from the
+ * stored document, and creates the provider connection, decrypting the
+ * tokens, only when one of its other methods is first called.
+ */
+class LazyConnection<A> implements Connection<A> {
+
+	private final MongoConnection document;
+	private final ConnectionConverter converter;
+
+	private volatile Connection<A> connection;
+
+	public LazyConnection(MongoConnection document, ConnectionConverter converter) {
+		this.document = document;
+		this.converter = converter;
+	}
+
+	public ConnectionKey getKey() {
+		return new ConnectionKey(document.getProviderId(), document.getProviderUserId());
+	}
+
+	public String getDisplayName() {
+		Connection<A> c = connection;
+		return c != null ? c.getDisplayName() : document.getDisplayName();
+	}
+
+	public String getProfileUrl() {
+		Connection<A> c = connection;
+		return c != null ? c.getProfileUrl() : document.getProfileUrl();
+	}
+
+	public String getImageUrl() {
+		Connection<A> c = connection;
+		return c != null ? c.getImageUrl() : document.getImageUrl();
+	}
+
+	public boolean test() {
+		return connection().test();
+	}
+
+	public boolean hasExpired() {
+		return connection().hasExpired();
+	}
+
+	public void refresh() {
+		connection().refresh();
+	}
+
+	public UserProfile fetchUserProfile() {
+		return connection().fetchUserProfile();
+	}
+
+	public void sync() {
+		connection().sync();
+	}
+
+	public void updateStatus(String message) {
+		connection().updateStatus(message);
+	}
+
+	public A getApi() {
+		return connection().getApi();
+	}
+
+	public ConnectionData createData() {
+		return connection().createData();
+	}
+
+	// the key and the display fields only, so that logging a connection does not decrypt its tokens
+	
+	@Override
+	public int hashCode() {
+		return getKey().hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof LazyConnection)) {
+			return false;
+		}
+		LazyConnection<?> other = (LazyConnection<?>) obj;
+		return getKey().equals(other.getKey());
+	}
+
+	@Override
+	public String toString() {
+		return "LazyConnection[providerId=" + document.getProviderId() 
+				+ ", providerUserId=" + document.getProviderUserId()
+				+ ", displayName=" + getDisplayName() + "]";
+	}
+
+	// helper methods
+
+	@SuppressWarnings("unchecked")
+	private Connection<A> connection() {
+		Connection<A> c = connection;
+		if (c == null) {
+			synchronized (this) {
+				c = connection;
+				if (c == null) {
+					c = (Connection<A>) converter.createConnection(document);
+					connection = c;
+				}
+			}
+		}
+		return c;
+	}
+}
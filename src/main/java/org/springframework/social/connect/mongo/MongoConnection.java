@@ -19,21 +19,20 @@ import org.bson.types.ObjectId;
 import org.hibernate.validator.constraints.NotEmpty;
 import org.hibernate.validator.constraints.Range;
 import org.springframework.data.annotation.Id;
-import org.springframework.data.mongodb.core.index.CompoundIndexes;
-import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 /**
  * The Mongodb collection for the spring social connections.
+ * <p>
+ * The indexes of the collection are declared and built by the 
+ * {@link ConnectionIndexManager} only, not by the mapping context.
  * 
  * @author Carlo P. Micieli
  */
-@Document(collection = "connections")
-@CompoundIndexes({
-	@CompoundIndex(name = "connections_rank_idx", def = "{'userId': 1, 'providerId': 1, 'rank': 1}", unique = true),
-	@CompoundIndex(name = "connections_primary_idx", def = "{'userId': 1, 'providerId': 1, 'providerUserId': 1}", unique = true)
-})
+@Document(collection = MongoConnection.COLLECTION_NAME)
 public class MongoConnection {
+	public static final String COLLECTION_NAME = "connections";
+	
 	@Id
 	private ObjectId id;
 	
@@ -62,6 +61,10 @@ public class MongoConnection {
 		return id;
 	}
 	
+	public void setId(ObjectId id) {
+		this.id = id;
+	}
+	
 	public String getUserId() {
 		return userId;
 	}
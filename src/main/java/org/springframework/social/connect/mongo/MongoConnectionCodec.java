@@ -0,0 +1,133 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Reads and writes the connection documents field by field, without the
+ * reflective mapping of the Spring Data converter.
+ * <p>
+ * The documents have the same layout the mapping converter produces for
+ * {@link MongoConnection}, so both can read what the other writes.
+ * Like the mapping converter, the null fields are not written.
+ * <p>
+ * The fields are stored under the names of a {@link ConnectionSchema}, 
+ * the full names by default.
+ */
+public class MongoConnectionCodec {
+
+	public static final String ID = "_id";
+	public static final String USER_ID = "userId";
+	public static final String PROVIDER_ID = "providerId";
+	public static final String PROVIDER_USER_ID = "providerUserId";
+	public static final String RANK = "rank";
+	public static final String DISPLAY_NAME = "displayName";
+	public static final String PROFILE_URL = "profileUrl";
+	public static final String IMAGE_URL = "imageUrl";
+	public static final String ACCESS_TOKEN = "accessToken";
+	public static final String SECRET = "secret";
+	public static final String REFRESH_TOKEN = "refreshToken";
+	public static final String EXPIRE_TIME = "expireTime";
+	/** The time until which a node refreshes the connection, written by the refresh claims only. */
+	public static final String REFRESH_LEASE = "refreshLease";
+
+	private final String idField;
+	private final String userIdField;
+	private final String providerIdField;
+	private final String providerUserIdField;
+	private final String rankField;
+	private final String displayNameField;
+	private final String profileUrlField;
+	private final String imageUrlField;
+	private final String accessTokenField;
+	private final String secretField;
+	private final String refreshTokenField;
+	private final String expireTimeField;
+
+	public MongoConnectionCodec() {
+		this(ConnectionSchema.FULL);
+	}
+
+	public MongoConnectionCodec(ConnectionSchema schema) {
+		// resolved once, as the codec runs for every document
+		idField = schema.field(ID);
+		userIdField = schema.field(USER_ID);
+		providerIdField = schema.field(PROVIDER_ID);
+		providerUserIdField = schema.field(PROVIDER_USER_ID);
+		rankField = schema.field(RANK);
+		displayNameField = schema.field(DISPLAY_NAME);
+		profileUrlField = schema.field(PROFILE_URL);
+		imageUrlField = schema.field(IMAGE_URL);
+		accessTokenField = schema.field(ACCESS_TOKEN);
+		secretField = schema.field(SECRET);
+		refreshTokenField = schema.field(REFRESH_TOKEN);
+		expireTimeField = schema.field(EXPIRE_TIME);
+	}
+
+	public MongoConnection read(DBObject dbo) {
+		if (dbo == null) return null;
+
+		MongoConnection mc = new MongoConnection();
+		mc.setId((ObjectId) dbo.get(idField));
+		mc.setUserId((String) dbo.get(userIdField));
+		mc.setProviderId((String) dbo.get(providerIdField));
+		mc.setProviderUserId((String) dbo.get(providerUserIdField));
+		Object rank = dbo.get(rankField);
+		if (rank != null) {
+			mc.setRank(((Number) rank).intValue());
+		}
+		mc.setDisplayName((String) dbo.get(displayNameField));
+		mc.setProfileUrl((String) dbo.get(profileUrlField));
+		mc.setImageUrl((String) dbo.get(imageUrlField));
+		mc.setAccessToken((String) dbo.get(accessTokenField));
+		mc.setSecret((String) dbo.get(secretField));
+		mc.setRefreshToken((String) dbo.get(refreshTokenField));
+		Object expireTime = dbo.get(expireTimeField);
+		if (expireTime != null) {
+			mc.setExpireTime(((Number) expireTime).longValue());
+		}
+		return mc;
+	}
+
+	public DBObject write(MongoConnection mc) {
+		DBObject dbo = new BasicDBObject();
+		put(dbo, idField, mc.getId());
+		put(dbo, userIdField, mc.getUserId());
+		put(dbo, providerIdField, mc.getProviderId());
+		put(dbo, providerUserIdField, mc.getProviderUserId());
+		dbo.put(rankField, mc.getRank());
+		put(dbo, displayNameField, mc.getDisplayName());
+		put(dbo, profileUrlField, mc.getProfileUrl());
+		put(dbo, imageUrlField, mc.getImageUrl());
+		put(dbo, accessTokenField, mc.getAccessToken());
+		put(dbo, secretField, mc.getSecret());
+		put(dbo, refreshTokenField, mc.getRefreshToken());
+		put(dbo, expireTimeField, mc.getExpireTime());
+		return dbo;
+	}
+
+	// helper methods
+
+	private static void put(DBObject dbo, String key, Object value) {
+		if (value != null) {
+			dbo.put(key, value);
+		}
+	}
+}
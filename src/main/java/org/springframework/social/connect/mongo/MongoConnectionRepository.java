@@ -17,15 +17,15 @@ package org.springframework.social.connect.mongo;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.EmptyResultDataAccessException;
-import org.springframework.security.crypto.encrypt.TextEncryptor;
 import org.springframework.social.connect.Connection;
-import org.springframework.social.connect.ConnectionData;
 import org.springframework.social.connect.ConnectionFactoryLocator;
 import org.springframework.social.connect.ConnectionKey;
 import org.springframework.social.connect.ConnectionRepository;
@@ -35,7 +35,12 @@ import org.springframework.social.connect.NotConnectedException;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 
-class MongoConnectionRepository implements ConnectionRepository {
+/**
+ * {@link ConnectionRepository} for a single user, backed by a {@link ConnectionService}.
+ * Besides the connections it lists their summaries, which carry no tokens and are
+ * read without the token fields. The connections are cached by the service, if at all.
+ */
+public class MongoConnectionRepository implements ConnectionRepository {
 
 	private final String userId;
 
@@ -43,40 +48,38 @@ class MongoConnectionRepository implements ConnectionRepository {
 
 	private final ConnectionFactoryLocator connectionFactoryLocator;
 
-	//private final TextEncryptor textEncryptor;
-
 	public MongoConnectionRepository(String userId, 
 		ConnectionService connectionService, 
-		ConnectionFactoryLocator connectionFactoryLocator,
-		TextEncryptor textEncryptor) {
+		ConnectionFactoryLocator connectionFactoryLocator) {
 		
 		this.userId = userId;
 		this.connService = connectionService;
 		this.connectionFactoryLocator = connectionFactoryLocator;
-		//this.textEncryptor = textEncryptor;
-		//this.connectionMapper = new ConnectionMapper(connectionFactoryLocator, textEncryptor);
 	}
 
-//	private String encrypt(String text) {
-//		return text != null ? textEncryptor.encrypt(text) : text;
-//	}
-
 	/**
 	 * Add a new connection to this repository for the current user.
 	 */
 	@Override
 	public void addConnection(Connection<?> connection) {
 		try {
-			ConnectionData data = connection.createData();
-			
-			int rank = connService.getMaxRank(userId, data.getProviderId());
-			connService.create(userId, connection, rank);
+			connService.create(userId, connection);
 			
 		} catch (DuplicateKeyException e) {
 			throw new DuplicateConnectionException(connection.getKey());
 		}
 	}
 	
+	/**
+	 * Add many new connections to this repository for the current user, with a 
+	 * single bulk insert. The connections already added are not added again.
+	 * 
+	 * @return the keys of the connections rejected as duplicates
+	 */
+	public List<ConnectionKey> addConnections(List<Connection<?>> connections) {
+		return connService.create(userId, connections);
+	}
+	
 	/**
 	 * Find all connections the current user has across all providers
 	 */
@@ -118,8 +121,32 @@ class MongoConnectionRepository implements ConnectionRepository {
 		return connService.getConnections(this.userId, providerId);
 	}
 
+	/**
+	 * Find the summaries of all the connections the current user has across all providers,
+	 * grouped by provider and ordered by rank.
+	 */
+	public MultiValueMap<String, ConnectionSummary> findAllConnectionSummaries() {
+		List<ConnectionSummary> resultList = connService.getConnectionSummaries(userId);
+		
+		MultiValueMap<String, ConnectionSummary> summaries = new LinkedMultiValueMap<String, ConnectionSummary>();
+		for (ConnectionSummary summary : resultList) {
+			summaries.add(summary.getProviderId(), summary);
+		}
+		return summaries;
+	}
+	
+	/**
+	 * Find the summaries of the connections the current user has to the provider, 
+	 * ordered by rank.
+	 */
+	public List<ConnectionSummary> findConnectionSummaries(String providerId) {
+		return connService.getConnectionSummaries(userId, providerId);
+	}
+
 	/**
 	 * Find the connections the current user has to the given provider users. 
+	 * The connections of each provider are placed at the positions of their provider users
+	 * in the request, looked up in a hash map built once for each provider.
 	 */
 	@Override
 	public MultiValueMap<String, Connection<?>> findConnectionsToUsers(MultiValueMap<String, String> providerUsers) {
@@ -130,20 +157,18 @@ class MongoConnectionRepository implements ConnectionRepository {
 		List<Connection<?>> resultList = connService.getConnections(userId, providerUsers);
 		
 		MultiValueMap<String, Connection<?>> connectionsForUsers = new LinkedMultiValueMap<String, Connection<?>>();
+		Map<String, Map<String, Integer>> positions = new HashMap<String, Map<String, Integer>>();
 		for (Connection<?> connection : resultList) {
 			String providerId = connection.getKey().getProviderId();
-			List<String> userIds = providerUsers.get(providerId);
 			List<Connection<?>> connections = connectionsForUsers.get(providerId);
 			if (connections == null) {
-				connections = new ArrayList<Connection<?>>(userIds.size());
-				for (int i = 0; i < userIds.size(); i++) {
-					connections.add(null);
-				}
+				List<String> userIds = providerUsers.get(providerId);
+				connections = new ArrayList<Connection<?>>(Collections.<Connection<?>>nCopies(userIds.size(), null));
 				connectionsForUsers.put(providerId, connections);
+				positions.put(providerId, positions(userIds));
 			}
 			String providerUserId = connection.getKey().getProviderUserId();
-			int connectionIndex = userIds.indexOf(providerUserId);
-			connections.set(connectionIndex, connection);
+			connections.set(positions.get(providerId).get(providerUserId), connection);
 		}
 		return connectionsForUsers;
 	}
@@ -226,8 +251,18 @@ class MongoConnectionRepository implements ConnectionRepository {
 		return connectionFactoryLocator.getConnectionFactory(apiType).getProviderId();
 	}
 
+	private static Map<String, Integer> positions(List<String> providerUserIds) {
+		// the first position of every provider user, as List.indexOf
+		Map<String, Integer> positions = new HashMap<String, Integer>(providerUserIds.size() * 4 / 3 + 1);
+		for (int i = providerUserIds.size() - 1; i >= 0; i--) {
+			positions.put(providerUserIds.get(i), i);
+		}
+		return positions;
+	}
+	
 	private Connection<?> findPrimaryConnection(String providerId) {
 		// where userId = ? and providerId = ? and rank = 1
 		return connService.getPrimaryConnection(userId, providerId);
 	}
+
 }
\ No newline at end of file
@@ -16,16 +16,33 @@
 package org.springframework.social.connect.mongo;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
 
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.social.connect.Connection;
 import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.mongo.ConnectionServicePolicy.Read;
+import org.springframework.social.connect.mongo.ConnectionServicePolicy.Write;
+import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
+import org.springframework.dao.DataAccessException;
 import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.support.PersistenceExceptionTranslator;
+import org.springframework.data.mongodb.core.CollectionCallback;
+import org.springframework.data.mongodb.core.MongoExceptionTranslator;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Order;
@@ -33,29 +50,218 @@ import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.DependsOn;
 import org.springframework.stereotype.Service;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
 import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
 
 import static org.springframework.data.mongodb.core.query.Query.query;
 import static org.springframework.data.mongodb.core.query.Criteria.*;
+import static org.springframework.social.connect.mongo.ConnectionUtils.*;
 
 /**
  * A service for the spring connections management using Mongodb.
+ * <p>
+ * Every operation runs on the connections collection with the write concern 
+ * or the read preference of its {@link ConnectionServicePolicy}, and the documents
+ * are mapped by a {@link MongoConnectionCodec} rather than the reflective
+ * Spring Data converter. As a bean it starts after the {@link ConnectionIndexManager},
+ * so the unique indexes exist before its first write.
  *
  * @author Carlo P. Micieli
  */
 @Service
-public class MongoConnectionService implements ConnectionService {
+@DependsOn("connectionIndexManager")
+public class MongoConnectionService implements ConnectionService, ConnectionRemovalListener, ConnectionChangeListener {
 
+	private static final Logger log = LoggerFactory.getLogger(MongoConnectionService.class);
+	
+	private static final int MAX_RANK_ATTEMPTS = 50;
+	
+	public static final int DEFAULT_STREAM_BATCH_SIZE = 500;
+	
+	public static final int DEFAULT_USERS_CHUNK_SIZE = 500;
+	
+	public static final int DEFAULT_PROVIDER_USERS_CHUNK_SIZE = 1000;
+	
 	private final MongoTemplate mongoTemplate;
 	private final ConnectionConverter converter;
+	private final ConnectionMetrics metrics = new ConnectionMetrics();
+	private final PersistenceExceptionTranslator exceptionTranslator = new MongoExceptionTranslator();
+	
+	private ConnectionSchema schema = ConnectionSchema.FULL;
+	private MongoConnectionCodec codec = new MongoConnectionCodec();
+	private ConnectionServicePolicy policy = new ConnectionServicePolicy();
+	private ExpiringCache<ConnectionKey, List<String>> userIdsCache;
+	private ExpiringCache<String, List<MongoConnection>> connectionCache;
+	private ProviderUserMapping providerUserMapping;
+	private ShardKeyGuard shardKeyGuard;
+	private int streamBatchSize = DEFAULT_STREAM_BATCH_SIZE;
+	private boolean streamNoTimeout;
+	private int usersChunkSize = DEFAULT_USERS_CHUNK_SIZE;
+	private int providerUsersChunkSize = DEFAULT_PROVIDER_USERS_CHUNK_SIZE;
 	
 	@Autowired
 	public MongoConnectionService(MongoTemplate mongoTemplate, ConnectionConverter converter) {
 		this.mongoTemplate = mongoTemplate;
 		this.converter = converter;
 	}
+	
+	/**
+	 * Sets the write concerns and the read preferences of the operations.
+	 */
+	@Autowired(required = false)
+	public void setPolicy(ConnectionServicePolicy policy) {
+		this.policy = policy;
+	}
+	
+	/**
+	 * Sets the on-disk schema of the connections. The queries are built with the full 
+	 * field names and mapped to the stored ones. Defaults to {@link ConnectionSchema#FULL}.
+	 */
+	public void setSchema(ConnectionSchema schema) {
+		this.schema = schema;
+		this.codec = new MongoConnectionCodec(schema);
+	}
+	
+	/**
+	 * Sets the cache for the user ids connected to a provider user, used
+	 * on every provider sign in. The entries are invalidated when this service 
+	 * creates or removes a connection; the writes made by other nodes are 
+	 * only visible after the entries expire.
+	 * When not set every lookup queries the database.
+	 */
+	public void setUserIdsCache(ExpiringCache<ConnectionKey, List<String>> userIdsCache) {
+		this.userIdsCache = userIdsCache;
+	}
+	
+	/**
+	 * Returns the user ids cache, exposing its hit, miss and eviction counters.
+	 */
+	public ExpiringCache<ConnectionKey, List<String>> getUserIdsCache() {
+		return userIdsCache;
+	}
+	
+	/**
+	 * Sets the cache of the users connection documents, read through by the listings 
+	 * of all the user connections or of a provider, their summaries and the primary 
+	 * connections. The user entry is invalidated by every write of this service and 
+	 * by the removal and change notifications; the writes made by other nodes are 
+	 * only visible after the entries expire.
+	 * When not set every lookup queries the database.
+	 */
+	public void setConnectionCache(ExpiringCache<String, List<MongoConnection>> connectionCache) {
+		this.connectionCache = connectionCache;
+	}
+	
+	/**
+	 * Returns the users connection cache, exposing its hit, miss and eviction counters.
+	 */
+	public ExpiringCache<String, List<MongoConnection>> getConnectionCache() {
+		return connectionCache;
+	}
+	
+	/**
+	 * Sets the mapping of the provider users to the connected user ids, which the 
+	 * creates and the removes then maintain and the reverse lookups read instead of 
+	 * the connections collection. The connections written around this service must be 
+	 * reconciled by a {@link ProviderUserMappingRepairJob}.
+	 * <p>
+	 * The mapping is written after the connection; a failed mapping write does not fail 
+	 * the create or the remove, which has already happened, but is logged and left to
+	 * the repair job.
+	 * When not set the reverse lookups query the connections collection.
+	 */
+	public void setProviderUserMapping(ProviderUserMapping providerUserMapping) {
+		this.providerUserMapping = providerUserMapping;
+	}
+	
+	/**
+	 * Sets the guard checking that the queries of the per-user operations name the 
+	 * user id, the shard key of a collection sharded by {@link ConnectionSharding}.
+	 * The reverse lookups and the streams go to every shard by design and are not checked.
+	 * When not set the queries are not checked.
+	 */
+	public void setShardKeyGuard(ShardKeyGuard shardKeyGuard) {
+		this.shardKeyGuard = shardKeyGuard;
+	}
+	
+	/**
+	 * Evicts the user ids and the connections cached for the removed connections, and unmaps them.
+	 */
+	public void connectionsRemoved(List<MongoConnection> removed) {
+		for (MongoConnection mc : removed) {
+			unmapUserId(mc.getUserId(), mc.getProviderId(), mc.getProviderUserId());
+			evictUserIds(mc.getProviderId(), mc.getProviderUserId());
+			evictConnections(mc.getUserId());
+		}
+	}
+	
+	/**
+	 * Evicts the user ids and the connections cached for the changed connections.
+	 */
+	public void connectionsChanged(List<MongoConnection> changed) {
+		for (MongoConnection mc : changed) {
+			evictUserIds(mc.getProviderId(), mc.getProviderUserId());
+			evictConnections(mc.getUserId());
+		}
+	}
+	
+	/**
+	 * Sets the number of documents the streaming cursors fetch at a time.
+	 * Defaults to {@value #DEFAULT_STREAM_BATCH_SIZE}.
+	 */
+	public void setStreamBatchSize(int streamBatchSize) {
+		this.streamBatchSize = streamBatchSize;
+	}
+	
+	/**
+	 * Sets whether the streaming cursors are kept by the server while idle, for the 
+	 * admin jobs and the refreshes that pause between their batches longer than the 
+	 * server cursor timeout. Such a cursor lives on the server until it is exhausted 
+	 * or closed, so every cursor left early must be closed. Defaults to false.
+	 */
+	public void setStreamNoTimeout(boolean streamNoTimeout) {
+		this.streamNoTimeout = streamNoTimeout;
+	}
+	
+	/**
+	 * Sets how many user ids are sent in each query of the multi-user lookups.
+	 * Defaults to {@value #DEFAULT_USERS_CHUNK_SIZE}.
+	 */
+	public void setUsersChunkSize(int usersChunkSize) {
+		if (usersChunkSize < 1) {
+			throw new IllegalArgumentException("The chunk size must be positive");
+		}
+		this.usersChunkSize = usersChunkSize;
+	}
+	
+	/**
+	 * Sets how many provider user ids are sent in each query of
+	 * {@link #getConnections(String, MultiValueMap)}.
+	 * Defaults to {@value #DEFAULT_PROVIDER_USERS_CHUNK_SIZE}.
+	 */
+	public void setProviderUsersChunkSize(int providerUsersChunkSize) {
+		if (providerUsersChunkSize < 1) {
+			throw new IllegalArgumentException("The chunk size must be positive");
+		}
+		this.providerUsersChunkSize = providerUsersChunkSize;
+	}
+	
+	/**
+	 * Returns the counters of the operations issued to the database.
+	 */
+	public ConnectionMetrics getMetrics() {
+		return metrics;
+	}
 		
 	/**
 	 * Returns the max connection rank for the user and the provider.
@@ -67,7 +273,7 @@ public class MongoConnectionService implements ConnectionService {
 		// select coalesce(max(rank) + 1, 1) as rank from UserConnection where userId = ? and providerId = ?
 		Query q = query(where("userId").is(userId).and("providerId").is(providerId));
 		q.sort().on("rank", Order.DESCENDING);
-		MongoConnection cnn = mongoTemplate.findOne(q, MongoConnection.class);
+		MongoConnection cnn = findOne(q, Read.MAX_RANK);
 		
 		if (cnn==null)
 			return 1;
@@ -85,33 +291,136 @@ public class MongoConnectionService implements ConnectionService {
 		MongoConnection mongoCnn = converter.convert(userConn);
 		mongoCnn.setUserId(userId);
 		mongoCnn.setRank(rank);
-		mongoTemplate.insert(mongoCnn);
+		insert(mongoCnn);
+		mapUserId(mongoCnn);
+		evictUserIds(mongoCnn.getProviderId(), mongoCnn.getProviderUserId());
+		evictConnections(userId);
 	}
 	
 	/**
-	 * Update a connection.
+	 * Create a new connection for the user with the next rank for the provider.
+	 * <p>
+	 * The rank is read once; when a concurrent insert has already taken it the unique
+	 * connections_rank_idx rejects the document and the insert is retried with the following
+	 * rank, so concurrent adds never fail on the rank and need no lock.
 	 * 
-	 * @see org.springframework.social.connect.mongo.ConnectionService#update(java.lang.String, org.springframework.social.connect.Connection)
+	 * @see org.springframework.social.connect.mongo.ConnectionService#create(java.lang.String, org.springframework.social.connect.Connection)
 	 */
 	@Override
-	public void update(String userId, Connection<?> userConn) {
+	public int create(String userId, Connection<?> userConn) {
 		MongoConnection mongoCnn = converter.convert(userConn);
 		mongoCnn.setUserId(userId);
+		mongoCnn.setRank(getMaxRank(userId, mongoCnn.getProviderId()));
+		
+		for (int attempt = 1; ; attempt++) {
+			try {
+				insert(mongoCnn);
+				break;
+			} catch (DuplicateKeyException e) {
+				if (!isRankConflict(e) || attempt == MAX_RANK_ATTEMPTS) {
+					throw e;
+				}
+				mongoCnn.setRank(mongoCnn.getRank() + 1);
+			}
+		}
+		mapUserId(mongoCnn);
+		evictUserIds(mongoCnn.getProviderId(), mongoCnn.getProviderUserId());
+		evictConnections(userId);
+		return mongoCnn.getRank();
+	}
+	
+	/**
+	 * Create many connections for the user with a single bulk insert.
+	 * <p>
+	 * The max rank is read once for each provider and the following ranks are assigned
+	 * in the order of the list. The insert goes on past the rejected documents, which are
+	 * then found by their ids and created again one by one, so that those that only lost 
+	 * their rank to a concurrent add get the next free one.
+	 * 
+	 * @return the keys of the connections rejected as duplicates
+	 * @see org.springframework.social.connect.mongo.ConnectionService#create(java.lang.String, java.util.List)
+	 */
+	@Override
+	public List<ConnectionKey> create(String userId, List<Connection<?>> userConns) {
+		List<MongoConnection> mongoCnns = new ArrayList<MongoConnection>(userConns.size());
+		Map<String, Integer> ranks = new HashMap<String, Integer>();
+		for (Connection<?> userConn : userConns) {
+			MongoConnection mongoCnn = converter.convert(userConn);
+			mongoCnn.setId(new ObjectId());
+			mongoCnn.setUserId(userId);
+			
+			String providerId = mongoCnn.getProviderId();
+			Integer rank = ranks.get(providerId);
+			if (rank == null) {
+				rank = getMaxRank(userId, providerId);
+			}
+			mongoCnn.setRank(rank);
+			ranks.put(providerId, rank + 1);
+			mongoCnns.add(mongoCnn);
+		}
+		
+		List<ConnectionKey> rejected = new ArrayList<ConnectionKey>();
+		if (mongoCnns.isEmpty()) {
+			return rejected;
+		}
+		
+		// the connections created again one by one are mapped by create
+		List<MongoConnection> inserted = mongoCnns;
 		try {
-			mongoTemplate.setWriteConcern(WriteConcern.SAFE);
-			mongoTemplate.save(mongoCnn); 
+			insert(mongoCnns);
 		} catch (DuplicateKeyException e) {
-			Query q = query(where("userId").is(userId).and("providerId").is(mongoCnn.getProviderId())
-					.and("providerUserId").is(mongoCnn.getProviderUserId()));
-			
-			Update update = Update.update("expireTime", mongoCnn.getExpireTime())
-					.set("accessToken", mongoCnn.getAccessToken())
-					.set("profileUrl", mongoCnn.getProfileUrl())
-					.set("imageUrl", mongoCnn.getImageUrl())
-					.set("displayName", mongoCnn.getDisplayName());
-			
-			mongoTemplate.findAndModify(q, update, MongoConnection.class);
+			Set<ObjectId> ids = findIds(userId, mongoCnns);
+			inserted = new ArrayList<MongoConnection>(ids.size());
+			for (int i = 0; i < mongoCnns.size(); i++) {
+				MongoConnection mongoCnn = mongoCnns.get(i);
+				if (ids.contains(mongoCnn.getId())) {
+					inserted.add(mongoCnn);
+					continue;
+				}
+				try {
+					create(userId, userConns.get(i));
+				} catch (DuplicateKeyException de) {
+					rejected.add(new ConnectionKey(mongoCnn.getProviderId(), mongoCnn.getProviderUserId()));
+				}
+			}
 		}
+		for (MongoConnection mongoCnn : inserted) {
+			mapUserId(mongoCnn);
+		}
+		
+		for (MongoConnection mongoCnn : mongoCnns) {
+			evictUserIds(mongoCnn.getProviderId(), mongoCnn.getProviderUserId());
+		}
+		evictConnections(userId);
+		return rejected;
+	}
+	
+	/**
+	 * Update a connection.
+	 * <p>
+	 * The connection is matched on its unique key and all the mutable fields are 
+	 * written with a single update; the user id, the key and the rank never change.
+	 * 
+	 * @see org.springframework.social.connect.mongo.ConnectionService#update(java.lang.String, org.springframework.social.connect.Connection)
+	 */
+	@Override
+	public void update(String userId, Connection<?> userConn) {
+		MongoConnection mongoCnn = converter.convert(userConn);
+		
+		// update set ... where userId = ? and providerId = ? and providerUserId = ?
+		Query q = query(where("userId").is(userId).and("providerId").is(mongoCnn.getProviderId())
+				.and("providerUserId").is(mongoCnn.getProviderUserId()));
+		
+		Update update = Update.update("displayName", mongoCnn.getDisplayName())
+				.set("profileUrl", mongoCnn.getProfileUrl())
+				.set("imageUrl", mongoCnn.getImageUrl())
+				.set("accessToken", mongoCnn.getAccessToken())
+				.set("secret", mongoCnn.getSecret())
+				.set("refreshToken", mongoCnn.getRefreshToken())
+				.set("expireTime", mongoCnn.getExpireTime());
+		
+		update(q, update);
+		evictConnections(userId);
 	}
 	
 	/**
@@ -125,7 +434,10 @@ public class MongoConnectionService implements ConnectionService {
 		Query q = query(where("userId").is(userId)
 				.and("providerId").is(connectionKey.getProviderId())
 				.and("providerUserId").is(connectionKey.getProviderUserId()));
-		mongoTemplate.remove(q, MongoConnection.class);		
+		remove(q);
+		unmapUserId(userId, connectionKey.getProviderId(), connectionKey.getProviderUserId());
+		evictUserIds(connectionKey.getProviderId(), connectionKey.getProviderUserId());
+		evictConnections(userId);
 	}
 	
 	/**
@@ -138,8 +450,16 @@ public class MongoConnectionService implements ConnectionService {
 		// delete where userId = ? and providerId = ?
 		Query q = query(where("userId").is(userId)
 				.and("providerId").is(providerId));
-				
-		mongoTemplate.remove(q, MongoConnection.class);
+		
+		List<String> providerUserIds = userIdsCache != null || providerUserMapping != null ? 
+				getProviderUserIds(userId, providerId) : Collections.<String>emptyList();
+		
+		remove(q);
+		for (String providerUserId : providerUserIds) {
+			unmapUserId(userId, providerId, providerUserId);
+			evictUserIds(providerId, providerUserId);
+		}
+		evictConnections(userId);
 	}
 	
 	/**
@@ -149,12 +469,21 @@ public class MongoConnectionService implements ConnectionService {
 	 */
 	@Override
 	public Connection<?> getPrimaryConnection(String userId, String providerId) {
+		if (connectionCache != null) {
+			for (MongoConnection mc : cachedConnections(userId)) {
+				if (mc.getProviderId().equals(providerId) && mc.getRank() == 1) {
+					return converter.convert(mc);
+				}
+			}
+			return null;
+		}
+		
 		// where userId = ? and providerId = ? and rank = 1
 		Query q = query(where("userId").is(userId).
 				and("providerId").is(providerId).
 				and("rank").is(1));
 		
-		MongoConnection mc = mongoTemplate.findOne(q, MongoConnection.class);
+		MongoConnection mc = findOne(q, Read.CONNECTION);
 		return converter.convert(mc);
 	}
 	
@@ -170,7 +499,7 @@ public class MongoConnectionService implements ConnectionService {
 				.and("providerId").is(providerId)
 				.and("providerUserId").is(providerUserId));
 					
-		MongoConnection mc = mongoTemplate.findOne(q, MongoConnection.class);
+		MongoConnection mc = findOne(q, Read.CONNECTION);
 		return converter.convert(mc);
 	}
 	
@@ -181,11 +510,19 @@ public class MongoConnectionService implements ConnectionService {
 	 */
 	@Override
 	public List<Connection<?>> getConnections(String userId) {
+		return convert(cachedConnections(userId), null);
+	}
+	
+	/**
+	 * Get the documents of all the connections for an user id, ordered by provider
+	 * and rank, from the database.
+	 */
+	public List<MongoConnection> getConnectionDocuments(String userId) {
 		// select where userId = ? order by providerId, rank
 		Query q = query(where("userId").is(userId));
 		q.sort().on("providerId", Order.ASCENDING).on("rank", Order.ASCENDING);
 		
-		return runQuery(q);
+		return find(q, Read.CONNECTIONS);
 	}
 	
 	/**
@@ -195,6 +532,10 @@ public class MongoConnectionService implements ConnectionService {
 	 */
 	@Override
 	public List<Connection<?>> getConnections(String userId, String providerId) {
+		if (connectionCache != null) {
+			return convert(cachedConnections(userId), providerId);
+		}
+		
 		// where userId = ? and providerId = ? order by rank
 		Query q = new Query(where("userId").is(userId).and("providerId").is(providerId));
 		q.sort().on("rank", Order.ASCENDING);
@@ -203,48 +544,146 @@ public class MongoConnectionService implements ConnectionService {
 	}
 	
 	/**
-	 * Get all the connections for an user.
+	 * Get the summaries of all the connections for an user id, reading only the
+	 * profile attributes.
+	 * 
+	 * @see org.springframework.social.connect.mongo.ConnectionService#getConnectionSummaries(java.lang.String)
+	 */
+	@Override
+	public List<ConnectionSummary> getConnectionSummaries(String userId) {
+		if (connectionCache != null) {
+			return summarize(cachedConnections(userId), null);
+		}
+		
+		// select providerId, providerUserId, ... where userId = ? order by providerId, rank
+		Query q = query(where("userId").is(userId));
+		q.sort().on("providerId", Order.ASCENDING).on("rank", Order.ASCENDING);
+		
+		return runSummaryQuery(q);
+	}
+	
+	/**
+	 * Get the summaries of all the connections for an user id on a provider, reading 
+	 * only the profile attributes.
+	 * 
+	 * @see org.springframework.social.connect.mongo.ConnectionService#getConnectionSummaries(java.lang.String, java.lang.String)
+	 */
+	@Override
+	public List<ConnectionSummary> getConnectionSummaries(String userId, String providerId) {
+		if (connectionCache != null) {
+			return summarize(cachedConnections(userId), providerId);
+		}
+		
+		// select providerId, providerUserId, ... where userId = ? and providerId = ? order by rank
+		Query q = query(where("userId").is(userId).and("providerId").is(providerId));
+		q.sort().on("rank", Order.ASCENDING);
+		
+		return runSummaryQuery(q);
+	}
+	
+	/**
+	 * Get all the connections for an user to the given provider users, ordered by 
+	 * provider and rank.
+	 * <p>
+	 * Each provider is queried separately, with at most the chunk size provider user ids 
+	 * in each query, so that every query is a bounded range scan of connections_primary_idx;
+	 * the results are ordered in memory.
 	 * 
 	 * @see org.springframework.social.connect.mongo.ConnectionService#getConnections(java.lang.String, org.springframework.util.MultiValueMap)
 	 */
 	@Override
 	public List<Connection<?>> getConnections(String userId, MultiValueMap<String, String> providerUsers) {
-		// userId? and providerId = ? and providerUserId in (?, ?, ...) order by providerId, rank
-		
 		if (providerUsers == null || providerUsers.isEmpty()) {
 			throw new IllegalArgumentException("Unable to execute find: no providerUsers provided");
 		}
 		
-		List<Criteria> lc = new ArrayList<Criteria>();
+		List<MongoConnection> results = new ArrayList<MongoConnection>();
 		for (Entry<String, List<String>> entry : providerUsers.entrySet()) {
-			String providerId = entry.getKey();
-			
-			lc.add(where("providerId").is(providerId)
-				.and("providerUserId").in(entry.getValue()));
+			Set<String> providerUserIds = new LinkedHashSet<String>(entry.getValue());
+			for (List<String> chunk : chunk(providerUserIds, providerUsersChunkSize)) {
+				// where userId = ? and providerId = ? and providerUserId in (?, ?, ...)
+				Query q = query(where("userId").is(userId)
+						.and("providerId").is(entry.getKey())
+						.and("providerUserId").in(chunk));
+				results.addAll(find(q, Read.CONNECTIONS));
+			}
 		}
+		// order by providerId, rank
+		Collections.sort(results, PROVIDER_RANK_ORDER);
 		
-		Criteria criteria = where("userId").is(userId);
-		criteria.orOperator(lc.toArray(new Criteria[lc.size()]));
-		
-		Query q = new Query(criteria);
-		q.sort().on("providerId", Order.ASCENDING).on("rank", Order.ASCENDING);
-		
-		return runQuery(q);
+		List<Connection<?>> connections = new ArrayList<Connection<?>>(results.size());
+		for (MongoConnection mc : results) {
+			connections.add(converter.convert(mc));
+		}
+		return connections;
 	}
 
 	/**
-	 * Get the user ids on the provider.
+	 * Get the connections of many users, on a provider or on all of them when the provider 
+	 * is null, with one query for each chunk of user ids.
+	 * The connections of every user are ordered by provider and rank; the users 
+	 * without connections are not in the map.
+	 * 
+	 * @see org.springframework.social.connect.mongo.ConnectionService#getConnectionsForUsers(java.util.Collection, java.lang.String)
+	 */
+	@Override
+	public MultiValueMap<String, Connection<?>> getConnectionsForUsers(Collection<String> userIds, String providerId) {
+		MultiValueMap<String, Connection<?>> connections = new LinkedMultiValueMap<String, Connection<?>>();
+		for (List<String> chunk : chunk(userIds, usersChunkSize)) {
+			// where userId in (?, ?, ...) [and providerId = ?] order by userId, providerId, rank
+			Criteria criteria = where("userId").in(chunk);
+			if (providerId != null) {
+				criteria.and("providerId").is(providerId);
+			}
+			Query q = query(criteria);
+			// follows connections_rank_idx
+			q.sort().on("userId", Order.ASCENDING).on("providerId", Order.ASCENDING).on("rank", Order.ASCENDING);
+			
+			for (MongoConnection mc : find(q, Read.CONNECTIONS)) {
+				connections.add(mc.getUserId(), converter.convert(mc));
+			}
+		}
+		return connections;
+	}
+	
+	/**
+	 * Get the primary connections of many users on a provider, with one query for 
+	 * each chunk of user ids. The users without connections are not in the map.
+	 * 
+	 * @see org.springframework.social.connect.mongo.ConnectionService#getPrimaryConnectionsForUsers(java.util.Collection, java.lang.String)
+	 */
+	@Override
+	public Map<String, Connection<?>> getPrimaryConnectionsForUsers(Collection<String> userIds, String providerId) {
+		Map<String, Connection<?>> connections = new LinkedHashMap<String, Connection<?>>();
+		for (List<String> chunk : chunk(userIds, usersChunkSize)) {
+			// where userId in (?, ?, ...) and providerId = ? and rank = 1
+			Query q = query(where("userId").in(chunk).and("providerId").is(providerId).and("rank").is(1));
+			
+			for (MongoConnection mc : find(q, Read.CONNECTION)) {
+				connections.put(mc.getUserId(), converter.convert(mc));
+			}
+		}
+		return connections;
+	}
+	
+	/**
+	 * Get the user ids on the provider, from the provider user mapping when set.
 	 * 
 	 * @see org.springframework.social.connect.mongo.ConnectionService#getUserIds(java.lang.String, java.util.Set)
 	 */
 	@Override
 	public Set<String> getUserIds(String providerId, Set<String> providerUserIds) {
+		if (providerUserMapping != null) {
+			return providerUserMapping.getUserIds(providerId, providerUserIds);
+		}
+		
 		//select userId from " + tablePrefix + "UserConnection where providerId = :providerId and providerUserId in (:providerUserIds)
 		Query q = query(where("providerId").is(providerId)
 				.and("providerUserId").in(new ArrayList<String>(providerUserIds)));
-		q.fields().include("userId");
+		// covered by connections_provider_user_idx
+		q.fields().include("userId").exclude("_id");
 		
-		List<MongoConnection> results = mongoTemplate.find(q, MongoConnection.class);
+		List<MongoConnection> results = find(q, Read.USER_IDS);
 		Set<String> userIds = new HashSet<String>();
 		for (MongoConnection mc : results) {
 			userIds.add(mc.getUserId());
@@ -254,18 +693,161 @@ public class MongoConnectionService implements ConnectionService {
 	}
 	
 	/**
-	 * Get the user ids on the provider with a given provider user id.
+	 * Get the user ids on the provider with a given provider user id, from the 
+	 * provider user mapping when set.
 	 * 
 	 * @see org.springframework.social.connect.mongo.ConnectionService#getUserIds(java.lang.String, java.lang.String)
 	 */
 	@Override
 	public List<String> getUserIds(String providerId, String providerUserId) {
+		if (userIdsCache == null) {
+			return findUserIds(providerId, providerUserId);
+		}
+		
+		List<String> userIds = userIdsCache.get(new ConnectionKey(providerId, providerUserId), 
+				new ExpiringCache.Loader<ConnectionKey, List<String>>() {
+			public List<String> load(ConnectionKey key) {
+				return Collections.unmodifiableList(findUserIds(key.getProviderId(), key.getProviderUserId()));
+			}
+		});
+		return new ArrayList<String>(userIds);
+	}
+	
+	/**
+	 * Iterates all the connections on a provider, of every user, converting them 
+	 * one at a time. The cursor must be closed when left before its end.
+	 */
+	public ConnectionCursor<Connection<?>> streamConnections(String providerId) {
+		// where providerId = ?
+		return stream(query(where("providerId").is(providerId)), connectionMapper());
+	}
+	
+	/**
+	 * Iterates all the connections of the collection, converting them one at a time. 
+	 * The cursor must be closed when left before its end.
+	 */
+	public ConnectionCursor<Connection<?>> streamAllConnections() {
+		return stream(new Query(), connectionMapper());
+	}
+	
+	/**
+	 * Iterates the documents of all the connections on a provider, which carry the 
+	 * user id and the encrypted tokens. The cursor must be closed when left before its end.
+	 */
+	public ConnectionCursor<MongoConnection> streamConnectionDocuments(String providerId) {
+		// where providerId = ?
+		return stream(query(where("providerId").is(providerId)), documentMapper());
+	}
+	
+	/**
+	 * Iterates the documents of all the connections of the collection. 
+	 * The cursor must be closed when left before its end.
+	 */
+	public ConnectionCursor<MongoConnection> streamAllConnectionDocuments() {
+		return stream(new Query(), documentMapper());
+	}
+	
+	/**
+	 * Iterates the documents of the connections with a refresh token expiring in the given 
+	 * interval, in expiry order, following connections_expire_time_idx. The cursor must be 
+	 * closed when left before its end.
+	 * 
+	 * @param from the first expire time, in milliseconds
+	 * @param to the last expire time, in milliseconds
+	 */
+	public ConnectionCursor<MongoConnection> streamRefreshableConnectionDocuments(long from, long to) {
+		// where expireTime between ? and ? and refreshToken not in (null, '') order by expireTime
+		Query q = query(where("expireTime").gte(from).lte(to)
+				.and("refreshToken").nin(Arrays.asList(null, "")));
+		q.sort().on("expireTime", Order.ASCENDING);
+		return stream(q, documentMapper());
+	}
+	
+	/**
+	 * Claims the refresh of a connection for the given time, unless another claim is 
+	 * running, so that the refresh schedulers of the other nodes skip it. The lease is 
+	 * a field of the connection document, set with a single findAndModify.
+	 * 
+	 * @param mc the document of the connection, as streamed
+	 * @param leaseMillis the time the claim holds, in milliseconds
+	 * @return true if the refresh was claimed, false if another node holds it
+	 */
+	public boolean claimRefresh(MongoConnection mc, long leaseMillis) {
+		long now = System.currentTimeMillis();
+		// where _id = ? and userId = ? and not refreshLease >= ?, the user id targeting the shard
+		final DBObject query = new BasicDBObject(MongoConnectionCodec.ID, mc.getId())
+			.append(MongoConnectionCodec.USER_ID, mc.getUserId())
+			.append(MongoConnectionCodec.REFRESH_LEASE, new BasicDBObject("$not", new BasicDBObject("$gte", now)));
+		final DBObject update = new BasicDBObject("$set", 
+				new BasicDBObject(MongoConnectionCodec.REFRESH_LEASE, now + leaseMillis));
+		if (shardKeyGuard != null) {
+			shardKeyGuard.check(Write.UPDATE.name(), query);
+		}
+		DBObject claimed = execute(new CollectionCallback<DBObject>() {
+			public DBObject doInCollection(DBCollection collection) 
+					throws MongoException, DataAccessException {
+				metrics.updated();
+				return collection.findAndModify(schema.map(query), null, null, false, schema.map(update), false, false);
+			}
+		});
+		return claimed != null;
+	}
+	
+	// helper methods
+	
+	private <T> ConnectionCursor<T> stream(final Query query, ConnectionCursor.Mapper<T> mapper) {
+		final ReadPreference readPreference = policy.getReadPreference(Read.CONNECTIONS);
+		DBCursor cursor = execute(new CollectionCallback<DBCursor>() {
+			public DBCursor doInCollection(DBCollection collection) 
+					throws MongoException, DataAccessException {
+				metrics.queried();
+				DBCursor cursor = collection.find(schema.map(query.getQueryObject()));
+				// only sorted on an index, as the sort of a large result fails on the server
+				if (query.getSortObject() != null) {
+					cursor.sort(schema.map(query.getSortObject()));
+				}
+				cursor.batchSize(streamBatchSize);
+				if (streamNoTimeout) {
+					cursor.addOption(Bytes.QUERYOPTION_NOTIMEOUT);
+				}
+				if (readPreference != null) {
+					cursor.setReadPreference(readPreference);
+				}
+				return cursor;
+			}
+		});
+		return new ConnectionCursor<T>(cursor, codec, mapper, exceptionTranslator);
+	}
+	
+	private ConnectionCursor.Mapper<Connection<?>> connectionMapper() {
+		return new ConnectionCursor.Mapper<Connection<?>>() {
+			public Connection<?> map(MongoConnection mc) {
+				return converter.convert(mc);
+			}
+		};
+	}
+	
+	private ConnectionCursor.Mapper<MongoConnection> documentMapper() {
+		return new ConnectionCursor.Mapper<MongoConnection>() {
+			public MongoConnection map(MongoConnection mc) {
+				return mc;
+			}
+		};
+	}
+	
+	private List<String> findUserIds(String providerId, String providerUserId) {
+		if (providerUserMapping != null) {
+			return providerUserMapping.getUserIds(providerId, providerUserId);
+		}
+		
 		 //select userId where providerId = ? and providerUserId = ?", 		
 		Query q = query(where("providerId").is(providerId)
 				.and("providerUserId").is(providerUserId));
-		q.fields().include("userId");
+		// covered by connections_provider_user_idx
+		q.fields().include("userId").exclude("_id");
+		q.sort().on("userId", Order.ASCENDING);
 		
-		List<MongoConnection> results = mongoTemplate.find(q, MongoConnection.class);
+		List<MongoConnection> results = find(q, Read.USER_IDS);
 		List<String> userIds = new ArrayList<String>();
 		for (MongoConnection mc : results) {
 			userIds.add(mc.getUserId());
@@ -274,15 +856,235 @@ public class MongoConnectionService implements ConnectionService {
 		return userIds;
 	}
 	
-	// helper methods
+	private List<String> getProviderUserIds(String userId, String providerId) {
+		// select providerUserId where userId = ? and providerId = ?
+		Query q = query(where("userId").is(userId).and("providerId").is(providerId));
+		q.fields().include("providerUserId");
+		
+		List<String> providerUserIds = new ArrayList<String>();
+		for (MongoConnection mc : find(q, Read.CONNECTIONS)) {
+			providerUserIds.add(mc.getProviderUserId());
+		}
+		return providerUserIds;
+	}
 	
-	private List<Connection<?>> runQuery(Query query) {
-		List<MongoConnection> results = mongoTemplate.find(query, MongoConnection.class);
+	private Set<ObjectId> findIds(String userId, List<MongoConnection> mongoCnns) {
+		List<ObjectId> ids = new ArrayList<ObjectId>(mongoCnns.size());
+		for (MongoConnection mongoCnn : mongoCnns) {
+			ids.add(mongoCnn.getId());
+		}
+		
+		// select _id where userId = ? and _id in (?, ?, ...), on the user shard
+		Query q = query(where("userId").is(userId).and("_id").in(ids));
+		q.fields().include("_id");
+		
+		Set<ObjectId> found = new HashSet<ObjectId>();
+		for (MongoConnection mc : find(q, Read.MAX_RANK)) {
+			found.add(mc.getId());
+		}
+		return found;
+	}
+	
+	private boolean isRankConflict(DuplicateKeyException e) {
+		return e.getMessage() != null && e.getMessage().contains(ConnectionIndexManager.RANK_INDEX);
+	}
+	
+	private void mapUserId(MongoConnection mongoCnn) {
+		if (providerUserMapping == null) {
+			return;
+		}
+		try {
+			providerUserMapping.add(mongoCnn.getProviderId(), mongoCnn.getProviderUserId(), 
+					Collections.singletonList(mongoCnn.getUserId()));
+		} catch (DataAccessException e) {
+			// the connection is written, the repair job adds the missing user
+			log.warn("Unable to map the connection " + mongoCnn.getProviderId() + "/" + mongoCnn.getProviderUserId() 
+					+ " of " + mongoCnn.getUserId(), e);
+		}
+	}
+	
+	private void unmapUserId(String userId, String providerId, String providerUserId) {
+		if (providerUserMapping == null) {
+			return;
+		}
+		try {
+			providerUserMapping.remove(providerId, providerUserId, Collections.singletonList(userId));
+		} catch (DataAccessException e) {
+			// the connection is removed, the repair job removes the stale user
+			log.warn("Unable to unmap the connection " + providerId + "/" + providerUserId 
+					+ " of " + userId, e);
+		}
+	}
+	
+	private void evictUserIds(String providerId, String providerUserId) {
+		if (userIdsCache != null) {
+			userIdsCache.remove(new ConnectionKey(providerId, providerUserId));
+		}
+	}
+	
+	private void evictConnections(String userId) {
+		if (connectionCache != null) {
+			connectionCache.remove(userId);
+		}
+	}
+	
+	private List<MongoConnection> cachedConnections(String userId) {
+		if (connectionCache == null) {
+			return getConnectionDocuments(userId);
+		}
+		return connectionCache.get(userId, new ExpiringCache.Loader<String, List<MongoConnection>>() {
+			public List<MongoConnection> load(String key) {
+				return Collections.unmodifiableList(getConnectionDocuments(key));
+			}
+		});
+	}
+	
+	private List<Connection<?>> convert(List<MongoConnection> documents, String providerId) {
 		List<Connection<?>> l = new ArrayList<Connection<?>>();
-		for (MongoConnection mc : results) {
-			l.add(converter.convert(mc));
+		for (MongoConnection mc : documents) {
+			if (providerId == null || mc.getProviderId().equals(providerId)) {
+				l.add(converter.convert(mc));
+			}
+		}
+		return l;
+	}
+	
+	private List<ConnectionSummary> summarize(List<MongoConnection> documents, String providerId) {
+		List<ConnectionSummary> l = new ArrayList<ConnectionSummary>();
+		for (MongoConnection mc : documents) {
+			if (providerId == null || mc.getProviderId().equals(providerId)) {
+				l.add(new ConnectionSummary(mc));
+			}
+		}
+		return l;
+	}
+	
+	private List<Connection<?>> runQuery(Query query) {
+		// converts while reading the cursor, with no intermediate list of documents
+		return find(query, Read.CONNECTIONS, connectionMapper());
+	}
+	
+	private List<ConnectionSummary> runSummaryQuery(Query query) {
+		// the token fields are never sent over the wire
+		query.fields().include("providerId").include("providerUserId").include("rank")
+			.include("displayName").include("profileUrl").include("imageUrl").exclude("_id");
+		
+		List<ConnectionSummary> l = new ArrayList<ConnectionSummary>();
+		for (MongoConnection mc : find(query, Read.CONNECTIONS)) {
+			l.add(new ConnectionSummary(mc));
 		}
 		
 		return l;
 	}
+	
+	private MongoConnection findOne(Query query, Read read) {
+		query.limit(1);
+		List<MongoConnection> results = find(query, read);
+		return results.isEmpty() ? null : results.get(0);
+	}
+	
+	private List<MongoConnection> find(Query query, Read read) {
+		return find(query, read, documentMapper());
+	}
+	
+	private <T> List<T> find(final Query query, Read read, final ConnectionCursor.Mapper<T> mapper) {
+		final ReadPreference readPreference = policy.getReadPreference(read);
+		if (read != Read.USER_IDS) {
+			checkShardKey(read.name(), query);
+		}
+		return execute(new CollectionCallback<List<T>>() {
+			public List<T> doInCollection(DBCollection collection) 
+					throws MongoException, DataAccessException {
+				metrics.queried();
+				DBCursor cursor = collection.find(schema.map(query.getQueryObject()), 
+						schema.map(query.getFieldsObject()));
+				if (query.getSortObject() != null) {
+					cursor.sort(schema.map(query.getSortObject()));
+				}
+				if (query.getLimit() > 0) {
+					cursor.limit(query.getLimit());
+				}
+				if (readPreference != null) {
+					cursor.setReadPreference(readPreference);
+				}
+				
+				List<T> results = new ArrayList<T>();
+				try {
+					while (cursor.hasNext()) {
+						results.add(mapper.map(read(cursor.next())));
+					}
+				} finally {
+					cursor.close();
+				}
+				return results;
+			}
+		});
+	}
+	
+	private void insert(MongoConnection mongoCnn) {
+		final DBObject dbo = write(mongoCnn);
+		execute(new CollectionCallback<WriteResult>() {
+			public WriteResult doInCollection(DBCollection collection) 
+					throws MongoException, DataAccessException {
+				metrics.inserted();
+				return collection.insert(dbo, policy.getWriteConcern(Write.CREATE));
+			}
+		});
+	}
+	
+	private void insert(List<MongoConnection> mongoCnns) {
+		final List<DBObject> dbos = new ArrayList<DBObject>(mongoCnns.size());
+		for (MongoConnection mongoCnn : mongoCnns) {
+			dbos.add(write(mongoCnn));
+		}
+		execute(new CollectionCallback<WriteResult>() {
+			public WriteResult doInCollection(DBCollection collection) 
+					throws MongoException, DataAccessException {
+				metrics.inserted();
+				WriteConcern writeConcern = policy.getWriteConcern(Write.CREATE).continueOnErrorForInsert(true);
+				return collection.insert(dbos, writeConcern);
+			}
+		});
+	}
+	
+	private void update(final Query query, final Update update) {
+		checkShardKey(Write.UPDATE.name(), query);
+		execute(new CollectionCallback<WriteResult>() {
+			public WriteResult doInCollection(DBCollection collection) 
+					throws MongoException, DataAccessException {
+				metrics.updated();
+				return collection.update(schema.map(query.getQueryObject()), schema.map(update.getUpdateObject()), 
+						false, false, policy.getWriteConcern(Write.UPDATE));
+			}
+		});
+	}
+	
+	private void remove(final Query query) {
+		checkShardKey(Write.REMOVE.name(), query);
+		execute(new CollectionCallback<WriteResult>() {
+			public WriteResult doInCollection(DBCollection collection) 
+					throws MongoException, DataAccessException {
+				metrics.removed();
+				return collection.remove(schema.map(query.getQueryObject()), policy.getWriteConcern(Write.REMOVE));
+			}
+		});
+	}
+	
+	private void checkShardKey(String operation, Query query) {
+		if (shardKeyGuard != null) {
+			shardKeyGuard.check(operation, query.getQueryObject());
+		}
+	}
+	
+	private <T> T execute(CollectionCallback<T> callback) {
+		return mongoTemplate.execute(schema.getCollectionName(), callback);
+	}
+	
+	private MongoConnection read(DBObject dbo) {
+		return codec.read(dbo);
+	}
+	
+	private DBObject write(MongoConnection mongoCnn) {
+		return codec.write(mongoCnn);
+	}
 }
\ No newline at end of file
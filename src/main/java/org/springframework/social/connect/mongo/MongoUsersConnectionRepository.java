@@ -15,17 +15,27 @@
  */
 package org.springframework.social.connect.mongo;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.springframework.security.crypto.encrypt.TextEncryptor;
 import org.springframework.social.connect.Connection;
 import org.springframework.social.connect.ConnectionFactoryLocator;
 import org.springframework.social.connect.ConnectionKey;
-import org.springframework.social.connect.ConnectionRepository;
 import org.springframework.social.connect.ConnectionSignUp;
 import org.springframework.social.connect.UsersConnectionRepository;
+import org.springframework.util.MultiValueMap;
+
+import static org.springframework.social.connect.mongo.ConnectionUtils.chunk;
 
 /**
  * {@link UsersConnectionRepository} that uses the JDBC API to persist connection data to a relational database.
@@ -33,27 +43,69 @@ import org.springframework.social.connect.UsersConnectionRepository;
  */
 public class MongoUsersConnectionRepository implements UsersConnectionRepository {
 
+	/**
+	 * The default number of provider user ids in each query of {@link #findUserIdsConnectedTo(String, Set)}.
+	 */
+	public static final int DEFAULT_USER_IDS_CHUNK_SIZE = 1000;
+
 	private final ConnectionService mongoService;
 
 	private final ConnectionFactoryLocator connectionFactoryLocator;
 
-	private final TextEncryptor textEncryptor;
-
 	private ConnectionSignUp connectionSignUp;
 
+	private int userIdsChunkSize = DEFAULT_USER_IDS_CHUNK_SIZE;
+
+	private ExecutorService userIdsExecutor;
+
+	/**
+	 * Creates a repository on the connection service, whose {@link ConnectionConverter} 
+	 * encrypts the tokens.
+	 */
 	public MongoUsersConnectionRepository(ConnectionService mongoService, 
-			ConnectionFactoryLocator connectionFactoryLocator, 
-			TextEncryptor textEncryptor) {
+			ConnectionFactoryLocator connectionFactoryLocator) {
 		
 		this.mongoService = mongoService;
 		this.connectionFactoryLocator = connectionFactoryLocator;
-		this.textEncryptor = textEncryptor;
+	}
+
+	/**
+	 * @deprecated the encryptor is not used: the tokens are encrypted by the 
+	 * {@link ConnectionConverter} of the connection service, which must be given the 
+	 * encryptor instead. Use {@link #MongoUsersConnectionRepository(ConnectionService, ConnectionFactoryLocator)}.
+	 */
+	@Deprecated
+	public MongoUsersConnectionRepository(ConnectionService mongoService, 
+			ConnectionFactoryLocator connectionFactoryLocator, 
+			TextEncryptor textEncryptor) {
+		
+		this(mongoService, connectionFactoryLocator);
 	}
 
 	public void setConnectionSignUp(ConnectionSignUp connectionSignUp) {
 		this.connectionSignUp = connectionSignUp;
 	}
 
+	/**
+	 * Sets how many provider user ids are sent in each query of {@link #findUserIdsConnectedTo(String, Set)};
+	 * the larger sets are split in chunks of this size. Defaults to {@value #DEFAULT_USER_IDS_CHUNK_SIZE}.
+	 */
+	public void setUserIdsChunkSize(int userIdsChunkSize) {
+		if (userIdsChunkSize < 1) {
+			throw new IllegalArgumentException("The chunk size must be positive");
+		}
+		this.userIdsChunkSize = userIdsChunkSize;
+	}
+
+	/**
+	 * Sets the executor running the chunks of {@link #findUserIdsConnectedTo(String, Set)} concurrently; 
+	 * the number of its threads bounds the queries running at once. The executor is not shut down by 
+	 * this repository. When not set the chunks run one after the other on the calling thread.
+	 */
+	public void setUserIdsExecutor(ExecutorService userIdsExecutor) {
+		this.userIdsExecutor = userIdsExecutor;
+	}
+
 	@Override
 	public List<String> findUserIdsWithConnection(Connection<?> connection) {
 		ConnectionKey key = connection.getKey();
@@ -69,19 +121,91 @@ public class MongoUsersConnectionRepository implements UsersConnectionRepository
 		return localUserIds;
 	}
 
+	/**
+	 * Returns the user ids connected to the provider users. The sets larger than the chunk 
+	 * size are queried in chunks, concurrently when an executor is set, and the results merged.
+	 */
 	@Override
 	public Set<String> findUserIdsConnectedTo(String providerId,
 			Set<String> providerUserIds) {
 		
-		return mongoService.getUserIds(providerId, providerUserIds);
+		if (providerUserIds.size() <= userIdsChunkSize) {
+			return mongoService.getUserIds(providerId, providerUserIds);
+		}
+		
+		List<List<String>> chunks = chunk(providerUserIds, userIdsChunkSize);
+		Set<String> userIds = new HashSet<String>();
+		if (userIdsExecutor == null) {
+			for (List<String> chunk : chunks) {
+				userIds.addAll(mongoService.getUserIds(providerId, new HashSet<String>(chunk)));
+			}
+			return userIds;
+		}
+		
+		List<Future<Set<String>>> futures = new ArrayList<Future<Set<String>>>(chunks.size());
+		try {
+			for (List<String> chunk : chunks) {
+				futures.add(userIdsExecutor.submit(new UserIdsQuery(providerId, new HashSet<String>(chunk))));
+			}
+			for (Future<Set<String>> future : futures) {
+				userIds.addAll(future.get());
+			}
+			return userIds;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while finding the user ids connected to " + providerId, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("Unable to find the user ids connected to " + providerId, e.getCause());
+		} finally {
+			for (Future<Set<String>> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Returns the connections of many users, on the provider or on all of them when the 
+	 * provider is null, with a query for each chunk of users rather than for each user.
+	 * The users without connections are not in the map.
+	 */
+	public MultiValueMap<String, Connection<?>> findConnectionsForUsers(Collection<String> userIds, String providerId) {
+		return mongoService.getConnectionsForUsers(userIds, providerId);
+	}
+
+	/**
+	 * Returns the primary connections of many users on the provider, with a query for each 
+	 * chunk of users rather than for each user. The users without connections are not in the map.
+	 */
+	public Map<String, Connection<?>> findPrimaryConnectionsForUsers(Collection<String> userIds, String providerId) {
+		return mongoService.getPrimaryConnectionsForUsers(userIds, providerId);
 	}
 
 	@Override
-	public ConnectionRepository createConnectionRepository(String userId) {
+	public MongoConnectionRepository createConnectionRepository(String userId) {
 		if (userId == null) {
 			throw new IllegalArgumentException("userId cannot be null");
 		}
-		return new MongoConnectionRepository(userId, mongoService, connectionFactoryLocator, textEncryptor);
+		return new MongoConnectionRepository(userId, mongoService, connectionFactoryLocator);
+	}
+
+	// helper methods
+
+	private class UserIdsQuery implements Callable<Set<String>> {
+
+		private final String providerId;
+		private final Set<String> providerUserIds;
+
+		public UserIdsQuery(String providerId, Set<String> providerUserIds) {
+			this.providerId = providerId;
+			this.providerUserIds = providerUserIds;
+		}
+
+		public Set<String> call() {
+			return mongoService.getUserIds(providerId, providerUserIds);
+		}
 	}
 
 }
\ No newline at end of file
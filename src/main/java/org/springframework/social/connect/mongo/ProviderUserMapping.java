@@ -0,0 +1,178 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.mongodb.core.CollectionCallback;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+
+/**
+ * The ids of the users connected to every provider user, kept in the
+ * {@value #COLLECTION_NAME} collection with a document for each provider user:
+ * <pre>
+ * { _id: { providerId, providerUserId }, userIds: [ userId, ... ] }
+ * </pre>
+ * The {@link MongoConnectionService} maintains it on its writes when it is set, and 
+ * then answers the reverse lookups from it alone, with a single key lookup. The 
+ * collection can live in another database than the connections, through its own 
+ * {@link MongoTemplate}, and be sharded on its key while the connections are sharded 
+ * on the user id. The writes made around the service, as the imports, are reconciled 
+ * by the {@link ProviderUserMappingRepairJob}.
+ */
+public class ProviderUserMapping {
+
+	public static final String COLLECTION_NAME = "provider_users";
+
+	public static final String USER_IDS = "userIds";
+
+	private final MongoTemplate mongoTemplate;
+
+	private WriteConcern writeConcern = WriteConcern.SAFE;
+
+	public ProviderUserMapping(MongoTemplate mongoTemplate) {
+		this.mongoTemplate = mongoTemplate;
+	}
+
+	/**
+	 * Sets the write concern of the updates. Defaults to SAFE.
+	 */
+	public void setWriteConcern(WriteConcern writeConcern) {
+		this.writeConcern = writeConcern;
+	}
+
+	/**
+	 * Adds the users to those connected to the provider user.
+	 */
+	public void add(String providerId, String providerUserId, Collection<String> userIds) {
+		final DBObject query = new BasicDBObject(MongoConnectionCodec.ID, key(providerId, providerUserId));
+		final DBObject update = new BasicDBObject("$addToSet", 
+				new BasicDBObject(USER_IDS, new BasicDBObject("$each", new ArrayList<String>(userIds))));
+		execute(new CollectionCallback<Void>() {
+			public Void doInCollection(DBCollection collection) 
+					throws MongoException, DataAccessException {
+				collection.update(query, update, true, false, writeConcern);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Removes the users from those connected to the provider user, and the provider 
+	 * user once no user is left.
+	 */
+	public void remove(String providerId, String providerUserId, Collection<String> userIds) {
+		final DBObject id = key(providerId, providerUserId);
+		final DBObject update = new BasicDBObject("$pullAll", new BasicDBObject(USER_IDS, new ArrayList<String>(userIds)));
+		execute(new CollectionCallback<Void>() {
+			public Void doInCollection(DBCollection collection) 
+					throws MongoException, DataAccessException {
+				collection.update(new BasicDBObject(MongoConnectionCodec.ID, id), update, false, false, writeConcern);
+				// where _id = ? and userIds = []
+				collection.remove(new BasicDBObject(MongoConnectionCodec.ID, id)
+					.append(USER_IDS, new BasicDBObject("$size", 0)), writeConcern);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Returns the ids of the users connected to the provider user, in user id order.
+	 */
+	public List<String> getUserIds(String providerId, String providerUserId) {
+		final DBObject query = new BasicDBObject(MongoConnectionCodec.ID, key(providerId, providerUserId));
+		DBObject mapping = execute(new CollectionCallback<DBObject>() {
+			public DBObject doInCollection(DBCollection collection) 
+					throws MongoException, DataAccessException {
+				return collection.findOne(query);
+			}
+		});
+		
+		List<String> userIds = new ArrayList<String>();
+		if (mapping != null) {
+			for (Object userId : (List<?>) mapping.get(USER_IDS)) {
+				userIds.add((String) userId);
+			}
+			Collections.sort(userIds);
+		}
+		return userIds;
+	}
+
+	/**
+	 * Returns the ids of the users connected to any of the provider users.
+	 */
+	public Set<String> getUserIds(String providerId, Set<String> providerUserIds) {
+		List<DBObject> ids = new ArrayList<DBObject>(providerUserIds.size());
+		for (String providerUserId : providerUserIds) {
+			ids.add(key(providerId, providerUserId));
+		}
+		
+		// where _id in (?, ?, ...)
+		final DBObject query = new BasicDBObject(MongoConnectionCodec.ID, new BasicDBObject("$in", ids));
+		return execute(new CollectionCallback<Set<String>>() {
+			public Set<String> doInCollection(DBCollection collection) 
+					throws MongoException, DataAccessException {
+				DBCursor cursor = collection.find(query, new BasicDBObject(USER_IDS, 1));
+				Set<String> userIds = new HashSet<String>();
+				try {
+					while (cursor.hasNext()) {
+						for (Object userId : (List<?>) cursor.next().get(USER_IDS)) {
+							userIds.add((String) userId);
+						}
+					}
+				} finally {
+					cursor.close();
+				}
+				return userIds;
+			}
+		});
+	}
+
+	/**
+	 * Returns the key of the provider user document.
+	 */
+	static DBObject key(String providerId, String providerUserId) {
+		// the fields of an embedded _id match in order
+		return new BasicDBObject(MongoConnectionCodec.PROVIDER_ID, providerId)
+			.append(MongoConnectionCodec.PROVIDER_USER_ID, providerUserId);
+	}
+
+	/**
+	 * Returns the collection of the provider user documents.
+	 */
+	DBCollection getCollection() {
+		return mongoTemplate.getCollection(COLLECTION_NAME);
+	}
+
+	// helper methods
+
+	private <T> T execute(CollectionCallback<T> callback) {
+		return mongoTemplate.execute(COLLECTION_NAME, callback);
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import static org.springframework.social.connect.mongo.MongoConnectionCodec.*;
+
+/**
+ * Rebuilds the {@link ProviderUserMapping} from the connections collection, 
+ * while the applications keep writing.
+ * <p>
+ * A first pass reads the connections in the order of connections_provider_user_idx 
+ * and adds every user to its provider users. A second pass reads the provider user 
+ * documents and removes the users no longer connected.
+ * <p>
+ * The service inserts a connection before mapping it, so a user found stale can be 
+ * connected again between the read of the connections and the removal, its mapping 
+ * then being a no-op on the user still there. The connections of the removed users 
+ * are therefore read again after the removal, and the users connected meanwhile are 
+ * added back: a connected user can briefly miss from the mapping, but is never left 
+ * out of it. A user disconnected during the repair may be left in the mapping, and
+ * is removed by the next run.
+ */
+public class ProviderUserMappingRepairJob {
+
+	private static final Logger log = LoggerFactory.getLogger(ProviderUserMappingRepairJob.class);
+
+	private final MongoTemplate mongoTemplate;
+	private final ProviderUserMapping mapping;
+
+	private int batchSize = 500;
+	private ConnectionSchema schema = ConnectionSchema.FULL;
+
+	/**
+	 * @param mongoTemplate the template of the connections collection
+	 * @param mapping the mapping to rebuild
+	 */
+	public ProviderUserMappingRepairJob(MongoTemplate mongoTemplate, ProviderUserMapping mapping) {
+		this.mongoTemplate = mongoTemplate;
+		this.mapping = mapping;
+	}
+
+	/**
+	 * Sets the number of documents the cursors fetch at a time. Defaults to 500.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets the on-disk schema of the connections, the one of the services. 
+	 * Defaults to {@link ConnectionSchema#FULL}.
+	 */
+	public void setSchema(ConnectionSchema schema) {
+		this.schema = schema;
+	}
+
+	/**
+	 * Adds the missing users to the mapping and removes the stale ones.
+	 * 
+	 * @return the number of stale users removed
+	 */
+	public long repair() {
+		long providerUsers = addConnectedUsers();
+		long stale = removeStaleUsers();
+		log.info("Repaired the mapping of {} provider users, {} stale users removed", providerUsers, stale);
+		return stale;
+	}
+
+	// helper methods
+
+	private long addConnectedUsers() {
+		DBCollection connections = mongoTemplate.getCollection(schema.getCollectionName());
+		// covered by connections_provider_user_idx
+		DBCursor cursor = connections.find(new BasicDBObject(), 
+				schema.map(new BasicDBObject(PROVIDER_ID, 1).append(PROVIDER_USER_ID, 1).append(USER_ID, 1).append(ID, 0)))
+			.sort(schema.map(new BasicDBObject(PROVIDER_ID, 1).append(PROVIDER_USER_ID, 1).append(USER_ID, 1)))
+			.batchSize(batchSize);
+		
+		long providerUsers = 0;
+		DBObject key = null;
+		List<String> userIds = new ArrayList<String>();
+		try {
+			while (cursor.hasNext()) {
+				DBObject dbo = cursor.next();
+				DBObject next = ProviderUserMapping.key((String) dbo.get(schema.field(PROVIDER_ID)), 
+						(String) dbo.get(schema.field(PROVIDER_USER_ID)));
+				if (key != null && !key.equals(next)) {
+					add(key, userIds);
+					providerUsers++;
+					userIds = new ArrayList<String>();
+				}
+				key = next;
+				userIds.add((String) dbo.get(schema.field(USER_ID)));
+			}
+			if (key != null) {
+				add(key, userIds);
+				providerUsers++;
+			}
+		} finally {
+			cursor.close();
+		}
+		return providerUsers;
+	}
+
+	private void add(DBObject key, List<String> userIds) {
+		mapping.add((String) key.get(PROVIDER_ID), (String) key.get(PROVIDER_USER_ID), userIds);
+	}
+
+	private long removeStaleUsers() {
+		DBCollection connections = mongoTemplate.getCollection(schema.getCollectionName());
+		DBCursor cursor = mapping.getCollection().find().batchSize(batchSize);
+		
+		long stale = 0;
+		try {
+			while (cursor.hasNext()) {
+				DBObject dbo = cursor.next();
+				DBObject key = (DBObject) dbo.get(ID);
+				String providerId = (String) key.get(PROVIDER_ID);
+				String providerUserId = (String) key.get(PROVIDER_USER_ID);
+				
+				Set<String> connected = findConnectedUsers(connections, providerId, providerUserId);
+				List<String> removed = new ArrayList<String>();
+				for (Object userId : (List<?>) dbo.get(ProviderUserMapping.USER_IDS)) {
+					if (!connected.contains(userId)) {
+						removed.add((String) userId);
+					}
+				}
+				if (removed.isEmpty()) {
+					continue;
+				}
+				mapping.remove(providerId, providerUserId, removed);
+				
+				// the users connected since the first read
+				List<String> reconnected = new ArrayList<String>(removed);
+				reconnected.retainAll(findConnectedUsers(connections, providerId, providerUserId));
+				if (!reconnected.isEmpty()) {
+					mapping.add(providerId, providerUserId, reconnected);
+				}
+				stale += removed.size() - reconnected.size();
+			}
+		} finally {
+			cursor.close();
+		}
+		return stale;
+	}
+
+	private Set<String> findConnectedUsers(DBCollection connections, String providerId, String providerUserId) {
+		// select userId where providerId = ? and providerUserId = ?
+		Set<String> connected = new HashSet<String>();
+		DBCursor users = connections.find(schema.map(new BasicDBObject(PROVIDER_ID, providerId).append(PROVIDER_USER_ID, providerUserId)), 
+				schema.map(new BasicDBObject(USER_ID, 1).append(ID, 0)));
+		try {
+			while (users.hasNext()) {
+				connected.add((String) users.next().get(schema.field(USER_ID)));
+			}
+		} finally {
+			users.close();
+		}
+		return connected;
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.DBObject;
+
+/**
+ * Flags the queries that do not name the shard key, which a mongos sends to every 
+ * shard. A query names the key when it matches the key with a value or an 
+ * {@code $in}, at the top level, in one branch of an {@code $and} or in every 
+ * branch of an {@code $or}.
+ * <p>
+ * The flagged queries are counted and logged, or rejected with an 
+ * {@link IllegalStateException} in the {@link Mode#FAIL} mode, meant for the tests.
+ * 
+ * @see ConnectionSharding
+ */
+public class ShardKeyGuard {
+
+	public enum Mode {
+		LOG, FAIL
+	}
+
+	private static final Logger log = LoggerFactory.getLogger(ShardKeyGuard.class);
+
+	private final String shardKey;
+	private final AtomicLong flagged = new AtomicLong();
+
+	private Mode mode = Mode.LOG;
+
+	/**
+	 * Creates a guard for the connections shard key, the user id.
+	 */
+	public ShardKeyGuard() {
+		this(ConnectionSharding.SHARD_KEY);
+	}
+
+	public ShardKeyGuard(String shardKey) {
+		this.shardKey = shardKey;
+	}
+
+	/**
+	 * Sets whether the flagged queries are logged or rejected. Defaults to {@link Mode#LOG}.
+	 */
+	public void setMode(Mode mode) {
+		this.mode = mode;
+	}
+
+	/**
+	 * Returns the number of queries flagged.
+	 */
+	public long getFlaggedCount() {
+		return flagged.get();
+	}
+
+	/**
+	 * Checks that the query names the shard key.
+	 * 
+	 * @param operation the operation issuing the query, for the log
+	 * @param query the query object
+	 */
+	public void check(String operation, DBObject query) {
+		if (isTargeted(query)) {
+			return;
+		}
+		
+		flagged.incrementAndGet();
+		String message = String.format("The %s query %s has no %s and goes to every shard", operation, query, shardKey);
+		if (mode == Mode.FAIL) {
+			throw new IllegalStateException(message);
+		}
+		log.warn(message);
+	}
+
+	/**
+	 * Returns whether the query names the shard key.
+	 */
+	public boolean isTargeted(DBObject query) {
+		if (query.containsField(shardKey) && isEqualityOrIn(query.get(shardKey))) {
+			return true;
+		}
+		
+		Object and = query.get("$and");
+		if (and instanceof Collection) {
+			for (Object branch : (Collection<?>) and) {
+				if (isTargeted((DBObject) branch)) {
+					return true;
+				}
+			}
+		}
+		
+		Object or = query.get("$or");
+		if (or instanceof Collection && !((Collection<?>) or).isEmpty()) {
+			for (Object branch : (Collection<?>) or) {
+				if (!isTargeted((DBObject) branch)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	// helper methods
+
+	private static boolean isEqualityOrIn(Object value) {
+		if (!(value instanceof DBObject)) {
+			return true;
+		}
+		
+		DBObject condition = (DBObject) value;
+		if (condition.containsField("$in")) {
+			return true;
+		}
+		for (String key : condition.keySet()) {
+			if (key.startsWith("$")) {
+				// a range or a negation
+				return false;
+			}
+		}
+		return true;
+	}
+}
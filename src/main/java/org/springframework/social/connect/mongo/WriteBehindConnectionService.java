@@ -0,0 +1,372 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * A {@link ConnectionService} that defers the connection updates, keeping only the 
+ * latest state of every connection, and writes them in the background.
+ * <p>
+ * The updates of a connection made before a flush, as the concurrent token refreshes, 
+ * cost a single write. Every other operation first writes the pending updates of its 
+ * user, so the reads always see the latest state. At most <code>maxPending</code> 
+ * connections wait for a flush: an update of another connection writes the pending 
+ * ones on the calling thread, and is itself written at once when the pending set is
+ * still full, as when the failed writes fill it.
+ * <p>
+ * The updates are indexed by user, and the flushes of a user are serialized, so that an 
+ * older state is never written after a newer one. An update stays pending until written, 
+ * and is removed only if no later update has replaced it, even with the same connection 
+ * instance. A failed write is logged and stays pending for the next flush, unless replaced. 
+ * The pending updates are written when the bean is destroyed; those that fail then are 
+ * logged and dropped. The updates made after are written at once.
+ */
+public class WriteBehindConnectionService implements ConnectionService, DisposableBean {
+
+	private static final Logger log = LoggerFactory.getLogger(WriteBehindConnectionService.class);
+
+	private final ConnectionService connectionService;
+	private final int maxPending;
+	// the pending updates of every user, guarded by the lock of the user
+	private final ConcurrentMap<String, Map<ConnectionKey, Pending>> pending = 
+			new ConcurrentHashMap<String, Map<ConnectionKey, Pending>>();
+	private final Object[] locks = new Object[64];
+	private final Object[] flushLocks = new Object[64];
+	private final ScheduledExecutorService scheduler;
+	private final AtomicInteger pendingCount = new AtomicInteger();
+	private final AtomicLong updates = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	private volatile boolean destroyed;
+
+	/**
+	 * Creates a service writing the pending updates at a fixed rate.
+	 * 
+	 * @param connectionService the service writing the updates
+	 * @param flushInterval the time between two flushes
+	 * @param unit the unit of the flush interval
+	 * @param maxPending the connections waiting for a flush, at most
+	 */
+	public WriteBehindConnectionService(ConnectionService connectionService, long flushInterval, 
+			TimeUnit unit, int maxPending) {
+		this.connectionService = connectionService;
+		this.maxPending = maxPending;
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+			flushLocks[i] = new Object();
+		}
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "connection-write-behind");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				flush();
+			}
+		}, flushInterval, flushInterval, unit);
+	}
+
+	/**
+	 * Returns the number of connections waiting for a flush.
+	 */
+	public int getPendingCount() {
+		return pendingCount.get();
+	}
+
+	/**
+	 * Returns the number of updates received.
+	 */
+	public long getUpdateCount() {
+		return updates.get();
+	}
+
+	/**
+	 * Returns the number of updates written; the others were replaced by a later one.
+	 */
+	public long getWriteCount() {
+		return writes.get();
+	}
+
+	/**
+	 * Returns the number of writes that failed, and were retried on the next flush.
+	 */
+	public long getFailureCount() {
+		return failures.get();
+	}
+
+	/**
+	 * Writes all the pending updates.
+	 */
+	public void flush() {
+		for (String userId : pending.keySet()) {
+			flush(userId);
+		}
+	}
+
+	/**
+	 * Stops the background flushes and writes the pending updates.
+	 */
+	public void destroy() {
+		// set before the last flush, which the updates made after cannot follow
+		destroyed = true;
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+
+	public void update(String userId, Connection<?> userConn) {
+		updates.incrementAndGet();
+		if (destroyed) {
+			// no flush follows: the pending updates of the user first, then this one
+			flush(userId);
+			writeThrough(userId, userConn);
+			return;
+		}
+		
+		ConnectionKey key = userConn.getKey();
+		if (pendingCount.get() >= maxPending && !isPending(userId, key)) {
+			// back-pressure: the caller writes the pending updates
+			flush();
+		}
+		boolean queued;
+		synchronized (lock(locks, userId)) {
+			Map<ConnectionKey, Pending> userUpdates = pending.get(userId);
+			// a replaced update takes no new place
+			queued = (userUpdates != null && userUpdates.containsKey(key)) || reserve();
+			if (queued) {
+				if (userUpdates == null) {
+					userUpdates = new HashMap<ConnectionKey, Pending>();
+					pending.put(userId, userUpdates);
+				}
+				// a new entry for every update, so that a write in progress does not remove it
+				userUpdates.put(key, new Pending(userConn));
+			}
+		}
+		if (!queued) {
+			// still full after the flush
+			writeThrough(userId, userConn);
+		} else if (destroyed) {
+			// destroyed meanwhile, maybe after its last flush
+			flush(userId);
+		}
+	}
+
+	public int getMaxRank(String userId, String providerId) {
+		return connectionService.getMaxRank(userId, providerId);
+	}
+
+	public void create(String userId, Connection<?> userConn, int rank) {
+		flush(userId);
+		connectionService.create(userId, userConn, rank);
+	}
+
+	public int create(String userId, Connection<?> userConn) {
+		flush(userId);
+		return connectionService.create(userId, userConn);
+	}
+
+	public List<ConnectionKey> create(String userId, List<Connection<?>> userConns) {
+		flush(userId);
+		return connectionService.create(userId, userConns);
+	}
+
+	public void remove(String userId, ConnectionKey connectionKey) {
+		flush(userId);
+		connectionService.remove(userId, connectionKey);
+	}
+
+	public void remove(String userId, String providerId) {
+		flush(userId);
+		connectionService.remove(userId, providerId);
+	}
+
+	public Connection<?> getPrimaryConnection(String userId, String providerId) {
+		flush(userId);
+		return connectionService.getPrimaryConnection(userId, providerId);
+	}
+
+	public Connection<?> getConnection(String userId, String providerId, String providerUserId) {
+		flush(userId);
+		return connectionService.getConnection(userId, providerId, providerUserId);
+	}
+
+	public List<Connection<?>> getConnections(String userId) {
+		flush(userId);
+		return connectionService.getConnections(userId);
+	}
+
+	public List<Connection<?>> getConnections(String userId, String providerId) {
+		flush(userId);
+		return connectionService.getConnections(userId, providerId);
+	}
+
+	public List<ConnectionSummary> getConnectionSummaries(String userId) {
+		flush(userId);
+		return connectionService.getConnectionSummaries(userId);
+	}
+
+	public List<ConnectionSummary> getConnectionSummaries(String userId, String providerId) {
+		flush(userId);
+		return connectionService.getConnectionSummaries(userId, providerId);
+	}
+
+	public List<Connection<?>> getConnections(String userId, MultiValueMap<String, String> providerUsers) {
+		flush(userId);
+		return connectionService.getConnections(userId, providerUsers);
+	}
+
+	public MultiValueMap<String, Connection<?>> getConnectionsForUsers(Collection<String> userIds, String providerId) {
+		flush();
+		return connectionService.getConnectionsForUsers(userIds, providerId);
+	}
+
+	public Map<String, Connection<?>> getPrimaryConnectionsForUsers(Collection<String> userIds, String providerId) {
+		flush();
+		return connectionService.getPrimaryConnectionsForUsers(userIds, providerId);
+	}
+
+	public Set<String> getUserIds(String providerId, Set<String> providerUserIds) {
+		// the updates never change the user ids
+		return connectionService.getUserIds(providerId, providerUserIds);
+	}
+
+	public List<String> getUserIds(String providerId, String providerUserId) {
+		return connectionService.getUserIds(providerId, providerUserId);
+	}
+
+	// helper methods
+
+	private void flush(String userId) {
+		if (!pending.containsKey(userId)) {
+			return;
+		}
+		// one flush of the user at a time, so that the later states are written last; the 
+		// updates are not blocked by the writes, and stay pending while written, so that 
+		// a reader of the user waits for them
+		synchronized (lock(flushLocks, userId)) {
+			Map<ConnectionKey, Pending> userUpdates;
+			synchronized (lock(locks, userId)) {
+				Map<ConnectionKey, Pending> current = pending.get(userId);
+				if (current == null) {
+					return;
+				}
+				userUpdates = new HashMap<ConnectionKey, Pending>(current);
+			}
+			for (Map.Entry<ConnectionKey, Pending> update : userUpdates.entrySet()) {
+				if (write(userId, update.getKey(), update.getValue())) {
+					removeIfCurrent(userId, update.getKey(), update.getValue());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Takes a place in the pending set, if one is left.
+	 */
+	private boolean reserve() {
+		while (true) {
+			int count = pendingCount.get();
+			if (count >= maxPending) {
+				return false;
+			}
+			if (pendingCount.compareAndSet(count, count + 1)) {
+				return true;
+			}
+		}
+	}
+
+	private void writeThrough(String userId, Connection<?> userConn) {
+		connectionService.update(userId, userConn);
+		writes.incrementAndGet();
+	}
+
+	private boolean write(String userId, ConnectionKey key, Pending update) {
+		try {
+			connectionService.update(userId, update.connection);
+			writes.incrementAndGet();
+			return true;
+		} catch (RuntimeException e) {
+			failures.incrementAndGet();
+			log.error("Unable to update the connection " + key.getProviderId() + "/" + key.getProviderUserId() 
+					+ " of " + userId + ", retried on the next flush", e);
+			return false;
+		}
+	}
+
+	private void removeIfCurrent(String userId, ConnectionKey key, Pending update) {
+		synchronized (lock(locks, userId)) {
+			Map<ConnectionKey, Pending> userUpdates = pending.get(userId);
+			if (userUpdates != null && userUpdates.get(key) == update) {
+				userUpdates.remove(key);
+				pendingCount.decrementAndGet();
+				if (userUpdates.isEmpty()) {
+					pending.remove(userId);
+				}
+			}
+		}
+	}
+
+	private boolean isPending(String userId, ConnectionKey key) {
+		synchronized (lock(locks, userId)) {
+			Map<ConnectionKey, Pending> userUpdates = pending.get(userId);
+			return userUpdates != null && userUpdates.containsKey(key);
+		}
+	}
+
+	private static Object lock(Object[] locks, String userId) {
+		return locks[(userId.hashCode() & 0x7fffffff) % locks.length];
+	}
+
+	/**
+	 * An update waiting for a flush, compared by identity.
+	 */
+	private static final class Pending {
+
+		private final Connection<?> connection;
+
+		Pending(Connection<?> connection) {
+			this.connection = connection;
+		}
+	}
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.test.FakeConnection;
+import org.springframework.social.test.FakeConnectionFactory;
+import org.springframework.social.test.FakeProvider;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * The conformance tests run against every connection service implementation.
+ */
+public abstract class AbstractConnectionServiceTests {
+
+	private static final int THREADS = 8;
+	private static final int CONNECTIONS_PER_THREAD = 25;
+
+	protected final FakeConnectionFactory<FakeProvider> factory = 
+			new FakeConnectionFactory<FakeProvider>("fake", null, null);
+	
+	private ConnectionService service;
+	
+	/**
+	 * Returns the service under test, with no connections.
+	 */
+	protected abstract ConnectionService getConnectionService();
+	
+	@Before
+	public void setupConnections() {
+		service = getConnectionService();
+		service.create("joey", factory.createConnection("twitter", "@JeffreyHyman", "joey r."), 2);
+		service.create("joey", factory.createConnection("twitter", "@joey_ramones", "joey r."), 1);
+		service.create("joey", factory.createConnection("facebook", "joey.ramones", "joey r."), 1);
+		service.create("johnny", factory.createConnection("facebook", "JohnnyRamones", "johnny r."), 1);
+		service.create("tommy", factory.createConnection("twitter", "@joey_ramones", "joey r."), 1);
+		service.create("cj", factory.createConnection("fake", "c-j", "cj"), 1);
+	}
+	
+	@Test
+	public void shouldReturnMultipleConnections() {
+		MultiValueMap<String, String> map = new LinkedMultiValueMap<String, String>();
+		map.put("twitter", Arrays.asList("@JeffreyHyman", "@joey_ramones"));
+		map.put("facebook", Arrays.asList("joey.ramones"));
+		
+		List<Connection<?>> connections = service.getConnections("joey", map);
+		assertEquals(3, connections.size());
+		assertEquals("[{facebook, joey.ramones, joey r.}, {twitter, @joey_ramones, joey r.}, {twitter, @JeffreyHyman, joey r.}]", 
+				connections.toString());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectAnEmptyProviderUsersMap() {
+		service.getConnections("joey", new LinkedMultiValueMap<String, String>());
+	}
+	
+	@Test
+	public void shouldReturnTheUserIds() {
+		List<String> userIds = service.getUserIds("twitter", "@joey_ramones");
+		assertNotNull(userIds);
+		assertEquals(2, userIds.size());
+		assertEquals("[joey, tommy]", userIds.toString());
+	}
+		
+	@Test
+	public void shouldReturnTheSetOfUserIds() {
+		Set<String> providedIds = new HashSet<String>();
+		providedIds.add("joey.ramones");
+		providedIds.add("JohnnyRamones");
+		
+		Set<String> userIds = service.getUserIds("facebook", providedIds);
+		assertNotNull(userIds);
+		assertEquals(2, userIds.size());
+		assertEquals("[joey, johnny]", userIds.toString());
+	}
+	
+	@Test
+	public void shouldReturnTheDefaultRank() {
+		int rank = service.getMaxRank("deedee", "twitter");
+		assertEquals(1, rank);
+	}
+		
+	@Test
+	public void shouldReturnTheMaxRankForAProvider() {
+		int rank = service.getMaxRank("joey", "twitter");
+		assertEquals(3, rank);
+	}
+	
+	@Test
+	public void shouldReturnNullIfTheConnectionIsNotFound() {
+		Connection<?> conn = service.getConnection("a", "b", "c");
+		assertNull(conn);
+	}
+	
+	@Test
+	public void shouldFindPrimaryConnection() {
+		Connection<?> conn = service.getPrimaryConnection("joey", "twitter");
+		assertNotNull("Connection not found", conn);
+		assertEquals("twitter", conn.getKey().getProviderId());
+		assertEquals("@joey_ramones", conn.getKey().getProviderUserId());
+	}
+	
+	@Test
+	public void shouldFindConnection() {
+		Connection<?> conn = service.getConnection("joey", "facebook", "joey.ramones");
+		assertNotNull("Connection not found", conn);
+		assertEquals("facebook", conn.getKey().getProviderId());
+		assertEquals("joey.ramones", conn.getKey().getProviderUserId());
+	}
+	
+	@Test
+	public void shouldListTheConnectionsForUserAndProviderSortByRank() {
+		List<Connection<?>> connections =
+				service.getConnections("joey", "twitter");
+		
+		assertEquals(2, connections.size());
+		assertEquals("[{twitter, @joey_ramones, joey r.}, {twitter, @JeffreyHyman, joey r.}]", 
+				connections.toString());
+	}
+	
+	@Test
+	public void shouldListTheConnectionsForUserSortByProviderAndRank() {
+		List<Connection<?>> connections =
+				service.getConnections("joey");
+		
+		assertEquals(3, connections.size());
+		assertEquals("[{facebook, joey.ramones, joey r.}, {twitter, @joey_ramones, joey r.}, {twitter, @JeffreyHyman, joey r.}]", 
+				connections.toString());
+	}
+	
+	@Test
+	public void shouldListTheConnectionSummariesWithoutTheTokens() {
+		List<ConnectionSummary> summaries = service.getConnectionSummaries("joey");
+		assertEquals("[{facebook, joey.ramones, joey r.}, {twitter, @joey_ramones, joey r.}, {twitter, @JeffreyHyman, joey r.}]", 
+				summaries.toString());
+		
+		summaries = service.getConnectionSummaries("joey", "twitter");
+		assertEquals(2, summaries.size());
+		assertEquals(1, summaries.get(0).getRank());
+		assertEquals(2, summaries.get(1).getRank());
+	}
+	
+	@Test
+	public void shouldCreateNewConnection() {
+		Connection<?> userConn = factory.createConnection("userName", "user name");
+		service.create("UserId", userConn, 5);
+		List<Connection<?>> connections =
+				service.getConnections("UserId", "fake");
+		
+		assertEquals(1, connections.size());
+		
+		FakeConnection<?> conn = (FakeConnection<?>) connections.get(0);
+		assertEquals("fake", conn.getData().getProviderId());
+		assertEquals("userName", conn.getData().getProviderUserId());
+		assertEquals("user name", conn.getData().getDisplayName());
+	}
+	
+	@Test
+	public void shouldCreateTheConnectionWithTheNextRank() {
+		assertEquals(3, service.create("joey", factory.createConnection("twitter", "@MarkyRamone", "marky r.")));
+		assertEquals(1, service.create("joey", factory.createConnection("userName", "user name")));
+	}
+	
+	@Test(expected = DuplicateKeyException.class)
+	public void shouldThrowExceptionIfDuplicatedValues() {
+		Connection<?> userConn = factory.createConnection("cj", "cj");
+		service.create("cj", userConn, 1);
+	}
+	
+	@Test(expected = DuplicateKeyException.class)
+	public void shouldThrowExceptionIfDuplicatedKey() {
+		Connection<?> userConn = factory.createConnection("twitter", "@joey_ramones", "joey r.");
+		service.create("joey", userConn, 5);
+	}
+	
+	@Test
+	public void shouldUpdateTheConnection() {
+		Connection<?> conn = factory.createConnection("twitter", "@JeffreyHyman", "jeffrey h.");
+		service.update("joey", conn);
+		
+		Connection<?> conn2 = service.getConnection("joey", "twitter", "@JeffreyHyman");
+		assertEquals("jeffrey h.", conn2.getDisplayName());
+		assertEquals(2, service.getConnectionSummaries("joey", "twitter").get(1).getRank());
+	}
+	
+	@Test
+	public void shouldRemoveTheConnection() {
+		service.remove("joey", new ConnectionKey("twitter", "@JeffreyHyman"));
+		
+		Connection<?> conn = service.getConnection("joey", "twitter", "@JeffreyHyman");
+		assertNull("Connection not removed", conn);
+	}
+	
+	@Test
+	public void shouldRemoveTheConnectionForAProvider() {
+		service.remove("joey", "twitter");
+		
+		List<Connection<?>> conn = service.getConnections("joey", "twitter");
+		assertEquals(0, conn.size());
+		assertEquals("[tommy]", service.getUserIds("twitter", "@joey_ramones").toString());
+	}
+	
+	@Test
+	public void shouldReturnTheConnectionsOfManyUsers() {
+		MultiValueMap<String, Connection<?>> connections = 
+				service.getConnectionsForUsers(Arrays.asList("joey", "tommy", "deedee"), "twitter");
+		
+		assertEquals("{joey=[{twitter, @joey_ramones, joey r.}, {twitter, @JeffreyHyman, joey r.}], " +
+				"tommy=[{twitter, @joey_ramones, joey r.}]}", connections.toString());
+		assertEquals(3, service.getConnectionsForUsers(Arrays.asList("joey"), null).get("joey").size());
+	}
+	
+	@Test
+	public void shouldReturnThePrimaryConnectionsOfManyUsers() {
+		Map<String, Connection<?>> connections = 
+				service.getPrimaryConnectionsForUsers(Arrays.asList("joey", "tommy", "johnny"), "twitter");
+		
+		assertEquals(2, connections.size());
+		assertEquals("@joey_ramones", connections.get("joey").getKey().getProviderUserId());
+		assertEquals("@joey_ramones", connections.get("tommy").getKey().getProviderUserId());
+		assertFalse(connections.containsKey("johnny"));
+	}
+	
+	@Test
+	public void shouldCreateTheConnectionsInBulk() {
+		List<Connection<?>> conns = Arrays.<Connection<?>>asList(
+			factory.createConnection("twitter", "@MarkyRamone", "marky r."),
+			factory.createConnection("facebook", "marky.ramone", "marky r."),
+			factory.createConnection("twitter", "@joey_ramones", "joey r."),
+			factory.createConnection("twitter", "@DeeDeeRamone", "dee dee r."));
+		
+		List<ConnectionKey> rejected = service.create("joey", conns);
+		
+		assertEquals(Arrays.asList(new ConnectionKey("twitter", "@joey_ramones")), rejected);
+		assertEquals("[{twitter, @joey_ramones, joey r.}, {twitter, @JeffreyHyman, joey r.}, " +
+				"{twitter, @MarkyRamone, marky r.}, {twitter, @DeeDeeRamone, dee dee r.}]", 
+				service.getConnections("joey", "twitter").toString());
+		assertEquals(2, service.getConnections("joey", "facebook").size());
+	}
+	
+	@Test
+	public void shouldAssignDistinctRanksToConcurrentAdds() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			final CountDownLatch start = new CountDownLatch(1);
+			List<Future<List<Integer>>> results = new ArrayList<Future<List<Integer>>>();
+			for (int t = 0; t < THREADS; t++) {
+				final int thread = t;
+				results.add(executor.submit(new Callable<List<Integer>>() {
+					public List<Integer> call() throws Exception {
+						start.await();
+						List<Integer> ranks = new ArrayList<Integer>();
+						for (int i = 0; i < CONNECTIONS_PER_THREAD; i++) {
+							String providerUserId = String.format("user-%d-%d", thread, i);
+							ranks.add(service.create("deedee", factory.createConnection(providerUserId, providerUserId)));
+						}
+						return ranks;
+					}
+				}));
+			}
+			start.countDown();
+			
+			TreeSet<Integer> ranks = new TreeSet<Integer>();
+			for (Future<List<Integer>> result : results) {
+				ranks.addAll(result.get());
+			}
+			int expected = THREADS * CONNECTIONS_PER_THREAD;
+			assertEquals(expected, ranks.size());
+			assertEquals(Integer.valueOf(1), ranks.first());
+			assertEquals(Integer.valueOf(expected), ranks.last());
+			assertEquals(expected, service.getConnections("deedee", "fake").size());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
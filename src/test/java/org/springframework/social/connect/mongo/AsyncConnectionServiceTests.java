@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.test.FakeConnectionFactory;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * The test class for the asynchronous connection service and its blocking adapter.
+ */
+public class AsyncConnectionServiceTests {
+
+	private ConnectionService service;
+	private AsyncConnectionService asyncService;
+	private Connection<?> connection;
+
+	@Before
+	public void setup() {
+		service = mock(ConnectionService.class);
+		asyncService = new AsyncConnectionService(service, 2, 10);
+		connection = new FakeConnectionFactory<Object>("twitter", null, null)
+				.createConnection("@joey_ramones", "joey r.");
+	}
+
+	@After
+	public void tearDown() {
+		asyncService.destroy();
+	}
+
+	@Test
+	public void shouldRunTheLookupsConcurrently() throws Exception {
+		final CountDownLatch started = new CountDownLatch(2);
+		Answer<Connection<?>> waitForTheOther = new Answer<Connection<?>>() {
+			public Connection<?> answer(InvocationOnMock invocation) throws InterruptedException {
+				started.countDown();
+				assertTrue(started.await(5, TimeUnit.SECONDS));
+				return connection;
+			}
+		};
+		doAnswer(waitForTheOther).when(service).getPrimaryConnection("joey", "twitter");
+		doAnswer(waitForTheOther).when(service).getPrimaryConnection("joey", "facebook");
+
+		Future<Connection<?>> twitter = asyncService.getPrimaryConnection("joey", "twitter");
+		Future<Connection<?>> facebook = asyncService.getPrimaryConnection("joey", "facebook");
+
+		assertSame(connection, twitter.get(5, TimeUnit.SECONDS));
+		assertSame(connection, facebook.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void shouldCompleteWithTheServiceFailure() throws Exception {
+		when(service.create("joey", connection)).thenThrow(new DuplicateKeyException("duplicate"));
+
+		try {
+			asyncService.create("joey", connection).get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof DuplicateKeyException);
+		}
+	}
+
+	@Test
+	public void shouldBlockForTheResult() {
+		when(service.getMaxRank("joey", "twitter")).thenReturn(3);
+
+		assertEquals(3, new BlockingConnectionService(asyncService).getMaxRank("joey", "twitter"));
+	}
+
+	@Test(expected = DuplicateKeyException.class)
+	public void shouldRethrowTheServiceFailure() {
+		when(service.create("joey", connection)).thenThrow(new DuplicateKeyException("duplicate"));
+
+		new BlockingConnectionService(asyncService).create("joey", connection);
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.support.AnnotationConfigContextLoader;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import static org.junit.Assert.*;
+
+/**
+ * The test class for the connection service storing the connections with the compact schema.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(loader = AnnotationConfigContextLoader.class, 
+	classes = {ApplicationConfig.class})
+@ActiveProfiles("test")
+public class CompactMongoConnectionServiceTests extends AbstractConnectionServiceTests {
+
+	private @Autowired MongoTemplate mongoOps;
+	private @Autowired ConnectionConverter converter;
+
+	@Override
+	protected ConnectionService getConnectionService() {
+		new ConnectionIndexManager(mongoOps, ConnectionSchema.COMPACT).ensureIndexes();
+		MongoConnectionService service = new MongoConnectionService(mongoOps, converter);
+		service.setSchema(ConnectionSchema.COMPACT);
+		return service;
+	}
+
+	@After
+	public void tearDown() {
+		mongoOps.dropCollection(ConnectionSchema.COMPACT.getCollectionName());
+	}
+
+	@Test
+	public void shouldStoreTheShortFieldNames() {
+		DBObject dbo = mongoOps.getCollection(ConnectionSchema.COMPACT.getCollectionName())
+				.findOne(new BasicDBObject("u", "joey").append("p", "facebook"));
+		assertEquals("joey.ramones", dbo.get("pu"));
+		assertFalse(dbo.containsField("providerUserId"));
+		assertFalse(mongoOps.getCollection(MongoConnection.COLLECTION_NAME)
+				.find(new BasicDBObject("userId", "joey")).hasNext());
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.test.FakeConnectionFactory;
+import org.springframework.social.test.FakeConnectionFactoryLocator;
+import org.springframework.social.test.FakeProvider;
+
+import static org.junit.Assert.*;
+
+/**
+ * The test class for the connection converter.
+ */
+public class ConnectionConverterTests {
+
+	private CountingTextEncryptor encryptor;
+	private ConnectionConverter converter;
+	private MongoConnection document;
+
+	@Before
+	public void setup() {
+		encryptor = new CountingTextEncryptor();
+		converter = new ConnectionConverter(new FakeConnectionFactoryLocator(), encryptor);
+
+		document = new MongoConnection();
+		document.setUserId("joey");
+		document.setProviderId("fake");
+		document.setProviderUserId("joey.ramones");
+		document.setDisplayName("joey r.");
+		document.setProfileUrl("http://profile/joey.ramones");
+		document.setAccessToken("accessToken");
+		document.setSecret("secret");
+		document.setRefreshToken("refreshToken");
+	}
+
+	@Test
+	public void shouldStoreAnEmptyRefreshTokenAsNull() {
+		TextEncryptor text = Encryptors.text("password", "5c0744940b5c369b");
+		ConnectionConverter encrypting = new ConnectionConverter(new FakeConnectionFactoryLocator(), text);
+		// the fake connections have an empty refresh token
+		MongoConnection mc = encrypting.convert(new FakeConnectionFactory<FakeProvider>("fake", null, null)
+				.createConnection("fake", "joey.ramones", "joey r."));
+
+		assertNull(mc.getRefreshToken());
+		assertEquals("accessToken", text.decrypt(mc.getAccessToken()));
+		assertFalse(encrypting.hasRefreshToken(mc));
+
+		// written before the empty tokens were stored as null
+		mc.setRefreshToken(text.encrypt(""));
+		assertFalse(encrypting.hasRefreshToken(mc));
+		mc.setRefreshToken(text.encrypt("refreshToken"));
+		assertTrue(encrypting.hasRefreshToken(mc));
+	}
+
+	@Test
+	public void shouldDecryptTheTokensEagerly() {
+		converter.convert(document);
+		assertEquals(3, encryptor.decrypted);
+	}
+
+	@Test
+	public void shouldNotDecryptTheTokensForTheProfileAttributes() {
+		converter.setLazyDecryption(true);
+		Connection<?> conn = converter.convert(document);
+
+		assertEquals("fake", conn.getKey().getProviderId());
+		assertEquals("joey.ramones", conn.getKey().getProviderUserId());
+		assertEquals("joey r.", conn.getDisplayName());
+		assertEquals("http://profile/joey.ramones", conn.getProfileUrl());
+		assertEquals("LazyConnection[providerId=fake, providerUserId=joey.ramones, displayName=joey r.]", 
+				conn.toString());
+		assertEquals(converter.convert(document), conn);
+		assertEquals(converter.convert(document).hashCode(), conn.hashCode());
+		assertEquals(0, encryptor.decrypted);
+	}
+
+	@Test
+	public void shouldDecryptTheTokensOnceOnFirstUse() {
+		converter.setLazyDecryption(true);
+		Connection<?> conn = converter.convert(document);
+
+		assertNotNull(conn.createData());
+		assertNotNull(conn.createData());
+		assertEquals(3, encryptor.decrypted);
+	}
+
+	private static class CountingTextEncryptor implements TextEncryptor {
+		private int decrypted;
+
+		public String encrypt(String text) {
+			return text;
+		}
+
+		public String decrypt(String encryptedText) {
+			decrypted++;
+			return encryptedText;
+		}
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import org.junit.Test;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.mongodb.core.MongoExceptionTranslator;
+
+import com.mongodb.DBCursor;
+import com.mongodb.MongoException;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * The test class for the streaming connection cursor.
+ */
+public class ConnectionCursorTests {
+
+	@Test
+	public void shouldTranslateTheFetchExceptions() {
+		DBCursor dbCursor = mock(DBCursor.class);
+		when(dbCursor.hasNext()).thenThrow(new MongoException("cursor not found on server"));
+		ConnectionCursor<MongoConnection> cursor = new ConnectionCursor<MongoConnection>(dbCursor, 
+				new MongoConnectionCodec(), null, new MongoExceptionTranslator());
+		
+		try {
+			cursor.hasNext();
+			fail();
+		} catch (DataAccessException e) {
+			assertTrue(e.getCause() instanceof MongoException);
+		}
+	}
+}
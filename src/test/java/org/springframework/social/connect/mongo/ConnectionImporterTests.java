@@ -0,0 +1,163 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.io.StringReader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import com.mongodb.BasicDBObject;
+
+import static org.junit.Assert.*;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * The test class for the connection importer, reading an embedded database
+ * with the spring-social JDBC schema.
+ */
+public class ConnectionImporterTests extends SpringTest {
+
+	private static final int ROWS = 25;
+
+	private @Autowired MongoTemplate mongoOps;
+	private @Autowired ConnectionIndexManager indexManager;
+
+	private EmbeddedDatabase database;
+	private ConnectionImporter importer;
+
+	@Before
+	public void setup() {
+		indexManager.ensureIndexes();
+
+		database = new EmbeddedDatabaseBuilder()
+			.setType(EmbeddedDatabaseType.HSQL)
+			.addScript("org/springframework/social/connect/jdbc/JdbcUsersConnectionRepository.sql")
+			.build();
+		JdbcTemplate jdbc = new JdbcTemplate(database);
+		for (int i = 0; i < ROWS; i++) {
+			jdbc.update("insert into UserConnection (userId, providerId, providerUserId, rank, displayName, " +
+					"profileUrl, imageUrl, accessToken, secret, refreshToken, expireTime) " +
+					"values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+					"user" + (i / 2), i % 2 == 0 ? "twitter" : "facebook", "pu" + i, 1, "user " + i,
+					"http://profile/pu" + i, null, "accessToken" + i, "secret", null, i % 2 == 0 ? 1000L : null);
+		}
+
+		importer = new ConnectionImporter(mongoOps);
+		importer.setBatchSize(4);
+		importer.setWriters(3);
+		importer.setQueueCapacity(2);
+	}
+
+	@After
+	public void tearDown() {
+		database.shutdown();
+		mongoOps.remove(new Query(), MongoConnection.class);
+		mongoOps.dropCollection(ConnectionImporter.CHECKPOINT_COLLECTION);
+	}
+
+	@Test
+	public void shouldImportTheJdbcRows() {
+		ConnectionImportStats stats = importer.importConnections("jdbc", new JdbcConnectionSource(database));
+
+		assertEquals(ROWS, stats.getImportedRows());
+		assertEquals(0, stats.getDuplicateRows());
+		assertEquals(7, stats.getBatches());
+		assertEquals(0, stats.getDuplicateBatches());
+		assertEquals(ROWS, mongoOps.count(new Query(), MongoConnection.class));
+		assertEquals(ROWS, importer.getCheckpoint("jdbc"));
+
+		MongoConnection mc = mongoOps.findOne(query(where("providerUserId").is("pu2")), MongoConnection.class);
+		assertEquals("user1", mc.getUserId());
+		assertEquals("twitter", mc.getProviderId());
+		assertEquals("accessToken2", mc.getAccessToken());
+		assertEquals(Long.valueOf(1000L), mc.getExpireTime());
+		assertNull(mc.getImageUrl());
+	}
+
+	@Test
+	public void shouldSkipTheRowsBeforeTheCheckpoint() {
+		// the 10th row in the key order, with user10 to user12 before user2
+		saveCheckpoint("jdbc", 10, "user2", "facebook", "pu5");
+
+		ConnectionImportStats stats = importer.importConnections("jdbc", new JdbcConnectionSource(database));
+
+		assertEquals(10, stats.getSkippedRows());
+		assertEquals(ROWS - 10, stats.getImportedRows());
+		assertEquals(ROWS - 10, mongoOps.count(new Query(), MongoConnection.class));
+		assertEquals(ROWS, importer.getCheckpoint("jdbc"));
+	}
+
+	@Test
+	public void shouldIgnoreTheRowsImportedAfterTheCheckpoint() {
+		importer.importConnections("jdbc", new JdbcConnectionSource(database));
+		saveCheckpoint("jdbc", 12, "user3", "facebook", "pu7");
+
+		ConnectionImportStats stats = importer.importConnections("jdbc", new JdbcConnectionSource(database));
+
+		assertEquals(0, stats.getImportedRows());
+		assertEquals(ROWS - 12, stats.getDuplicateRows());
+		assertEquals(4, stats.getDuplicateBatches());
+		assertEquals(ROWS, mongoOps.count(new Query(), MongoConnection.class));
+	}
+
+	@Test
+	public void shouldImportTheCsvRows() {
+		String csv = "userId,providerId,providerUserId,rank,displayName,accessToken,expireTime\r\n" +
+				"joey,twitter,@joey_ramones,1,\"Ramone, Joey\",token,\r\n" +
+				"joey,facebook,joey.ramones,1,\"joey \"\"the\"\" r.\",token,1000\n";
+
+		ConnectionImportStats stats = importer.importConnections("csv", new CsvConnectionSource(new StringReader(csv)));
+
+		assertEquals(2, stats.getImportedRows());
+		MongoConnection twitter = mongoOps.findOne(query(where("providerId").is("twitter")), MongoConnection.class);
+		assertEquals("Ramone, Joey", twitter.getDisplayName());
+		assertNull(twitter.getExpireTime());
+		MongoConnection facebook = mongoOps.findOne(query(where("providerId").is("facebook")), MongoConnection.class);
+		assertEquals("joey \"the\" r.", facebook.getDisplayName());
+		assertEquals(Long.valueOf(1000L), facebook.getExpireTime());
+	}
+
+	@Test
+	public void shouldSkipTheCsvRecordsUpToTheCheckpoint() {
+		String csv = "userId,providerId,providerUserId,rank\n" +
+				"joey,facebook,joey.ramones,1\n" +
+				"joey,twitter,@joey_ramones,1\n" +
+				"johnny,facebook,JohnnyRamones,1\n";
+		saveCheckpoint("csv", 1, "joey", "facebook", "joey.ramones");
+
+		ConnectionImportStats stats = importer.importConnections("csv", new CsvConnectionSource(new StringReader(csv)));
+
+		assertEquals(2, stats.getImportedRows());
+		assertEquals(0, mongoOps.count(query(where("providerUserId").is("joey.ramones")), MongoConnection.class));
+		assertEquals(3, importer.getCheckpoint("csv"));
+	}
+
+	private void saveCheckpoint(String importId, long rows, String userId, String providerId, String providerUserId) {
+		mongoOps.getCollection(ConnectionImporter.CHECKPOINT_COLLECTION)
+			.save(new BasicDBObject("_id", importId).append("userId", userId).append("providerId", providerId)
+					.append("providerUserId", providerUserId).append("rows", rows));
+	}
+}
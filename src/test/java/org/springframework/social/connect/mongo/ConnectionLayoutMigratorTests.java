@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.social.test.FakeConnectionFactory;
+import org.springframework.social.test.FakeProvider;
+
+import static org.junit.Assert.*;
+
+/**
+ * The test class for the copy of the connections between the storage layouts.
+ */
+public class ConnectionLayoutMigratorTests extends SpringTest {
+
+	private @Autowired MongoTemplate mongoOps;
+	private @Autowired MongoConnectionService service;
+	private @Autowired ConnectionConverter converter;
+
+	private final FakeConnectionFactory<FakeProvider> factory = 
+			new FakeConnectionFactory<FakeProvider>("fake", null, null);
+
+	private EmbeddedConnectionService embedded;
+	private ConnectionLayoutMigrator migrator;
+
+	@Before
+	public void setup() {
+		service.create("joey", factory.createConnection("twitter", "@JeffreyHyman", "joey r."), 2);
+		service.create("joey", factory.createConnection("twitter", "@joey_ramones", "joey r."), 1);
+		service.create("joey", factory.createConnection("facebook", "joey.ramones", "joey r."), 1);
+		service.create("tommy", factory.createConnection("twitter", "@joey_ramones", "joey r."), 1);
+
+		embedded = new EmbeddedConnectionService(mongoOps, converter);
+		migrator = new ConnectionLayoutMigrator(mongoOps);
+		migrator.setBatchSize(2);
+	}
+
+	@After
+	public void tearDown() {
+		mongoOps.remove(new Query(), MongoConnection.class);
+		mongoOps.dropCollection(EmbeddedConnectionService.COLLECTION_NAME);
+	}
+
+	@Test
+	public void shouldCopyTheConnectionsToTheUserDocuments() {
+		assertEquals(4, migrator.toEmbedded());
+
+		assertEquals(service.getConnections("joey").toString(), embedded.getConnections("joey").toString());
+		assertEquals(Arrays.asList("joey", "tommy"), embedded.getUserIds("twitter", "@joey_ramones"));
+		assertEquals(2, mongoOps.getCollection(EmbeddedConnectionService.COLLECTION_NAME).count());
+	}
+
+	@Test
+	public void shouldSkipTheConnectionsAlreadyCopied() {
+		migrator.toEmbedded();
+		service.create("joey", factory.createConnection("twitter", "@MarkyRamone", "marky r."), 3);
+
+		assertEquals(1, migrator.toEmbedded());
+		assertEquals(3, embedded.getConnections("joey", "twitter").size());
+	}
+
+	@Test
+	public void shouldCopyTheUserDocumentsBack() {
+		migrator.toEmbedded();
+		mongoOps.remove(new Query(), MongoConnection.class);
+
+		assertEquals(4, migrator.toSeparate());
+		assertEquals(embedded.getConnections("joey").toString(), service.getConnections("joey").toString());
+		assertEquals(Arrays.asList("joey", "tommy"), service.getUserIds("twitter", "@joey_ramones"));
+	}
+}
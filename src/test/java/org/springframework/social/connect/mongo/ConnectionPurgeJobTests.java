@@ -0,0 +1,169 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.social.connect.ConnectionKey;
+
+import com.mongodb.DBCollection;
+
+import static org.junit.Assert.*;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * The test class for the dead connections purge.
+ */
+public class ConnectionPurgeJobTests extends SpringTest {
+
+	private @Autowired MongoTemplate mongoOps;
+	private @Autowired MongoConnectionService service;
+
+	private ConnectionPurgeJob job;
+
+	@Before
+	public void setup() {
+		long now = System.currentTimeMillis();
+		long old = now - TimeUnit.DAYS.toMillis(60);
+		mongoOps.insert(Arrays.asList(
+			create("joey", "@joey_ramones", old, null),
+			create("tommy", "@tommy_ramone", old + 1, ""),
+			create("dee dee", "@dee_dee", old + 2, null),
+			create("johnny", "@johnny_ramone", old, "refreshToken"),
+			create("marky", "@marky_ramone", now - TimeUnit.DAYS.toMillis(1), null),
+			create("cj", "@c_j", null, null)), MongoConnection.class);
+
+		job = new ConnectionPurgeJob(mongoOps);
+		job.setBatchSize(2);
+		job.setPause(0, TimeUnit.MILLISECONDS);
+		job.setMaxAge(30, TimeUnit.DAYS);
+	}
+
+	@After
+	public void tearDown() {
+		service.setUserIdsCache(null);
+		mongoOps.remove(new Query(), MongoConnection.class);
+		mongoOps.dropCollection(ConnectionPurgeJob.CHECKPOINT_COLLECTION);
+		mongoOps.dropCollection(ConnectionSchema.COMPACT.getCollectionName());
+	}
+
+	@Test
+	public void shouldPurgeTheDeadConnectionsInBatches() {
+		ConnectionPurgeStats stats = job.purge("test");
+
+		assertEquals(3, stats.getDocuments());
+		assertEquals(2, stats.getBatches());
+		// _id and the indexes of the connections
+		int indexes = mongoOps.getCollection(MongoConnection.COLLECTION_NAME).getIndexInfo().size();
+		assertTrue(indexes > 1);
+		assertEquals(3L * indexes, stats.getIndexEntries());
+
+		assertFalse(exists("joey"));
+		assertFalse(exists("tommy"));
+		assertFalse(exists("dee dee"));
+		assertTrue(exists("johnny"));
+		assertTrue(exists("marky"));
+		assertTrue(exists("cj"));
+	}
+
+	@Test
+	public void shouldResumeFromTheCheckpoint() {
+		job.purge("test");
+		assertTrue(job.getCheckpoint("test") > 0L);
+
+		mongoOps.insert(create("ritchie", "@ritchie_ramone", 1L, null));
+		assertEquals(0, job.purge("test").getDocuments());
+		assertEquals(1, job.purge("other").getDocuments());
+	}
+
+	@Test
+	public void shouldInvalidateTheCachedUserIds() {
+		service.setUserIdsCache(new ExpiringCache<ConnectionKey, List<String>>(100, 60, TimeUnit.SECONDS));
+		job.addRemovalListener(service);
+
+		assertEquals(Arrays.asList("joey"), service.getUserIds("twitter", "@joey_ramones"));
+		job.purge("test");
+		assertTrue(service.getUserIds("twitter", "@joey_ramones").isEmpty());
+	}
+
+	@Test
+	public void shouldNotifyOnlyTheRemovedConnections() {
+		final List<MongoConnection> notified = new ArrayList<MongoConnection>();
+		job = new ConnectionPurgeJob(mongoOps) {
+			@Override
+			int remove(List<MongoConnection> batch, long cutoff) {
+				// joey's token is refreshed between the read and the remove
+				mongoOps.updateFirst(query(where("userId").is("joey")), 
+						Update.update("expireTime", System.currentTimeMillis() + 3600000L), MongoConnection.class);
+				return super.remove(batch, cutoff);
+			}
+		};
+		job.setPause(0, TimeUnit.MILLISECONDS);
+		job.addRemovalListener(new ConnectionRemovalListener() {
+			public void connectionsRemoved(List<MongoConnection> removed) {
+				notified.addAll(removed);
+			}
+		});
+
+		assertEquals(2, job.purge("test").getDocuments());
+		assertTrue(exists("joey"));
+		assertEquals(2, notified.size());
+		for (MongoConnection mc : notified) {
+			assertFalse("joey".equals(mc.getUserId()));
+		}
+	}
+
+	@Test
+	public void shouldPurgeTheCompactSchema() {
+		DBCollection compact = mongoOps.getCollection(ConnectionSchema.COMPACT.getCollectionName());
+		MongoConnectionCodec codec = new MongoConnectionCodec(ConnectionSchema.COMPACT);
+		for (MongoConnection mc : mongoOps.findAll(MongoConnection.class)) {
+			compact.insert(codec.write(mc));
+		}
+		job.setSchema(ConnectionSchema.COMPACT);
+
+		assertEquals(3, job.purge("compact").getDocuments());
+		assertEquals(3, compact.count());
+		assertEquals(6, mongoOps.getCollection(MongoConnection.COLLECTION_NAME).count());
+	}
+
+	private boolean exists(String userId) {
+		return mongoOps.findOne(query(where("userId").is(userId)), MongoConnection.class) != null;
+	}
+
+	private MongoConnection create(String userId, String providerUserId, Long expireTime, String refreshToken) {
+		MongoConnection mc = new MongoConnection();
+		mc.setUserId(userId);
+		mc.setProviderId("twitter");
+		mc.setProviderUserId(providerUserId);
+		mc.setRank(1);
+		mc.setAccessToken("accessToken");
+		mc.setRefreshToken(refreshToken);
+		mc.setExpireTime(expireTime);
+		return mc;
+	}
+}
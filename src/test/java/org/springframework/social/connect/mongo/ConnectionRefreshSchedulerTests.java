@@ -0,0 +1,105 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+
+import static org.junit.Assert.*;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * The test class for the token refresh scheduler.
+ */
+public class ConnectionRefreshSchedulerTests extends SpringTest {
+
+	private @Autowired MongoTemplate mongoOps;
+	private @Autowired MongoConnectionService service;
+	private @Autowired ConnectionConverter converter;
+
+	private ConnectionRefreshScheduler scheduler;
+
+	@Before
+	public void setup() {
+		long now = System.currentTimeMillis();
+		MongoConnection deeDee = create("deedee", "@deedee_ramone", now + TimeUnit.MINUTES.toMillis(3));
+		deeDee.setRefreshToken(null);
+		mongoOps.insert(Arrays.asList(
+			create("joey", "@joey_ramones", now + TimeUnit.MINUTES.toMillis(2)),
+			create("tommy", "@tommy_ramone", now - TimeUnit.MINUTES.toMillis(1)),
+			create("johnny", "@johnny_ramone", now + TimeUnit.HOURS.toMillis(2)),
+			create("cj", "@c_j", null),
+			deeDee), MongoConnection.class);
+
+		// a window of 5 minutes, running only when called by the tests
+		scheduler = new ConnectionRefreshScheduler(service, converter, 5, 600, TimeUnit.MINUTES, 2);
+	}
+
+	@After
+	public void tearDown() {
+		scheduler.destroy();
+		mongoOps.remove(new Query(), MongoConnection.class);
+	}
+
+	@Test
+	public void shouldRefreshTheConnectionsInTheWindow() {
+		assertEquals(1, scheduler.refreshExpiringConnections());
+		assertEquals(1, scheduler.getRefreshedCount());
+		assertEquals(0, scheduler.getFailedCount());
+
+		// the fake connections are refreshed with a zero expire time
+		assertEquals(Long.valueOf(0L), expireTime("joey"));
+		// expired, out of the window, never expiring and without a refresh token
+		assertTrue(expireTime("tommy") > 0L);
+		assertTrue(expireTime("johnny") > 0L);
+		assertNull(expireTime("cj"));
+		assertTrue(expireTime("deedee") > 0L);
+	}
+
+	@Test
+	public void shouldSkipTheConnectionsClaimedByAnotherNode() {
+		MongoConnection joey = mongoOps.findOne(query(where("userId").is("joey")), MongoConnection.class);
+		assertTrue(service.claimRefresh(joey, TimeUnit.MINUTES.toMillis(1)));
+		assertFalse(service.claimRefresh(joey, TimeUnit.MINUTES.toMillis(1)));
+
+		assertEquals(0, scheduler.refreshExpiringConnections());
+		assertTrue(expireTime("joey") > 0L);
+	}
+
+	private Long expireTime(String userId) {
+		return mongoOps.findOne(query(where("userId").is(userId)), MongoConnection.class).getExpireTime();
+	}
+
+	private MongoConnection create(String userId, String providerUserId, Long expireTime) {
+		MongoConnection mc = new MongoConnection();
+		mc.setUserId(userId);
+		mc.setProviderId("twitter");
+		mc.setProviderUserId(providerUserId);
+		mc.setRank(1);
+		mc.setAccessToken("accessToken");
+		mc.setRefreshToken("refreshToken");
+		mc.setExpireTime(expireTime);
+		return mc;
+	}
+}
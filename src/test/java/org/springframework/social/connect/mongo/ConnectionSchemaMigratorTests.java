@@ -0,0 +1,104 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.test.FakeConnectionFactory;
+import org.springframework.social.test.FakeProvider;
+
+import static org.junit.Assert.*;
+
+/**
+ * The test class for the copy of the connections to the compact schema.
+ */
+public class ConnectionSchemaMigratorTests extends SpringTest {
+
+	private @Autowired MongoTemplate mongoOps;
+	private @Autowired MongoConnectionService service;
+	private @Autowired ConnectionConverter converter;
+
+	private final FakeConnectionFactory<FakeProvider> factory = 
+			new FakeConnectionFactory<FakeProvider>("fake", null, null);
+
+	private MongoConnectionService compact;
+	private ConnectionSchemaMigrator migrator;
+
+	@Before
+	public void setup() {
+		service.create("joey", factory.createConnection("twitter", "@JeffreyHyman", "joey r."), 2);
+		service.create("joey", factory.createConnection("twitter", "@joey_ramones", "joey r."), 1);
+		service.create("joey", factory.createConnection("facebook", "joey.ramones", "joey r."), 1);
+		service.create("tommy", factory.createConnection("twitter", "@joey_ramones", "joey r."), 1);
+
+		compact = new MongoConnectionService(mongoOps, converter);
+		compact.setSchema(ConnectionSchema.COMPACT);
+		migrator = new ConnectionSchemaMigrator(mongoOps, ConnectionSchema.FULL, ConnectionSchema.COMPACT);
+		migrator.setBatchSize(3);
+	}
+
+	@After
+	public void tearDown() {
+		mongoOps.remove(new Query(), MongoConnection.class);
+		mongoOps.dropCollection(ConnectionSchema.COMPACT.getCollectionName());
+	}
+
+	@Test
+	public void shouldCopyTheConnectionsToTheCompactSchema() {
+		assertEquals(4, migrator.migrate());
+
+		assertEquals(service.getConnections("joey").toString(), compact.getConnections("joey").toString());
+		assertEquals(service.getUserIds("twitter", "@joey_ramones"), compact.getUserIds("twitter", "@joey_ramones"));
+		assertTrue(new ConnectionIndexManager(mongoOps, ConnectionSchema.COMPACT).findMissingIndexes().isEmpty());
+	}
+
+	@Test
+	public void shouldCatchUpTheWritesMadeSinceTheLastRun() {
+		migrator.migrate();
+		service.remove("joey", new ConnectionKey("twitter", "@JeffreyHyman"));
+		service.create("joey", factory.createConnection("twitter", "@MarkyRamone", "marky r."), 2);
+		service.update("tommy", factory.createConnection("twitter", "@joey_ramones", "tommy r."));
+
+		// the new and the updated connections only
+		assertEquals(2, migrator.migrate());
+		assertEquals(service.getConnections("joey", "twitter").toString(), 
+				compact.getConnections("joey", "twitter").toString());
+		assertEquals(service.getConnections("tommy").toString(), compact.getConnections("tommy").toString());
+		assertEquals(4, mongoOps.getCollection(ConnectionSchema.COMPACT.getCollectionName()).count());
+	}
+
+	@Test
+	public void shouldSkipTheUnchangedConnections() {
+		assertEquals(4, migrator.migrate());
+		assertEquals(0, migrator.migrate());
+	}
+
+	@Test
+	public void shouldReportSmallerDocuments() {
+		migrator.migrate();
+
+		ConnectionSchemaStats full = migrator.getStats(ConnectionSchema.FULL);
+		ConnectionSchemaStats stats = migrator.getStats(ConnectionSchema.COMPACT);
+		assertEquals(full.getDocuments(), stats.getDocuments());
+		assertTrue(stats.getAverageDocumentSize() < full.getAverageDocumentSize());
+		assertTrue(migrator.report().contains(ConnectionSchema.COMPACT.getCollectionName()));
+	}
+}
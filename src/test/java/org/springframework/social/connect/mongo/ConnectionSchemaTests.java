@@ -0,0 +1,94 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import static org.junit.Assert.*;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * The test class for the mapping of the field names to the stored ones.
+ */
+public class ConnectionSchemaTests {
+
+	private final ConnectionSchema schema = ConnectionSchema.COMPACT;
+
+	@Test
+	public void shouldMapTheQueryFields() {
+		Query q = query(where("userId").is("joey").and("providerUserId").in(Arrays.asList("@joey_ramones")));
+		DBObject mapped = schema.map(q.getQueryObject());
+		
+		assertEquals("joey", mapped.get("u"));
+		assertTrue(((DBObject) mapped.get("pu")).containsField("$in"));
+		assertFalse(mapped.containsField("userId"));
+	}
+
+	@Test
+	public void shouldMapTheOrBranches() {
+		DBObject query = new BasicDBObject("$or", Arrays.asList(
+				new BasicDBObject("refreshToken", null), new BasicDBObject("refreshToken", "")));
+		DBObject mapped = schema.map(query);
+		
+		assertEquals(Arrays.asList(new BasicDBObject("rt", null), new BasicDBObject("rt", "")), mapped.get("$or"));
+	}
+
+	@Test
+	public void shouldMapTheUpdatesAndTheProjections() {
+		Update update = new Update().set("displayName", "joey r.").set("expireTime", 1L);
+		assertEquals(new BasicDBObject("dn", "joey r.").append("e", 1L), 
+				schema.map(update.getUpdateObject()).get("$set"));
+		
+		Query q = new Query();
+		q.fields().include("userId").exclude("_id");
+		assertEquals(new BasicDBObject("u", 1).append("_id", 0), schema.map(q.getFieldsObject()));
+	}
+
+	@Test
+	public void shouldLeaveTheFullSchemaQueriesUnchanged() {
+		DBObject query = new BasicDBObject("userId", "joey");
+		assertSame(query, ConnectionSchema.FULL.map(query));
+	}
+
+	@Test
+	public void shouldReadWhatItWrites() {
+		MongoConnection mc = new MongoConnection();
+		mc.setUserId("joey");
+		mc.setProviderId("twitter");
+		mc.setProviderUserId("@joey_ramones");
+		mc.setRank(1);
+		mc.setAccessToken("accessToken");
+		mc.setExpireTime(1L);
+		
+		MongoConnectionCodec codec = new MongoConnectionCodec(schema);
+		DBObject dbo = codec.write(mc);
+		assertEquals("@joey_ramones", dbo.get("pu"));
+		assertEquals(1, dbo.get("r"));
+		assertFalse(dbo.containsField("providerUserId"));
+		
+		MongoConnection read = codec.read(dbo);
+		assertEquals("@joey_ramones", read.getProviderUserId());
+		assertEquals(Long.valueOf(1L), read.getExpireTime());
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.support.AnnotationConfigContextLoader;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import static org.junit.Assert.*;
+
+/**
+ * The test class for the connection service storing a document for each user.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(loader = AnnotationConfigContextLoader.class, 
+	classes = {ApplicationConfig.class})
+@ActiveProfiles("test")
+public class EmbeddedConnectionServiceTests extends AbstractConnectionServiceTests {
+
+	private @Autowired MongoTemplate mongoOps;
+	private @Autowired ConnectionConverter converter;
+
+	private EmbeddedConnectionService service;
+
+	@Override
+	protected ConnectionService getConnectionService() {
+		service = new EmbeddedConnectionService(mongoOps, converter);
+		service.ensureIndexes();
+		return service;
+	}
+
+	@After
+	public void tearDown() {
+		mongoOps.dropCollection(EmbeddedConnectionService.COLLECTION_NAME);
+	}
+
+	@Test
+	public void shouldKeepAllTheUserConnectionsInOneDocument() {
+		assertEquals(4, mongoOps.getCollection(EmbeddedConnectionService.COLLECTION_NAME).count());
+		
+		DBObject joey = mongoOps.getCollection(EmbeddedConnectionService.COLLECTION_NAME)
+				.findOne(new BasicDBObject("_id", "joey"));
+		assertEquals(3, ((List<?>) joey.get(EmbeddedConnectionService.CONNECTIONS)).size());
+	}
+
+	@Test
+	public void shouldListTheConnectionsWithASingleQuery() {
+		long queries = service.getMetrics().getQueryCount();
+		assertEquals(3, service.getConnections("joey").size());
+		assertEquals(queries + 1, service.getMetrics().getQueryCount());
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The test class for the expiring cache.
+ */
+public class ExpiringCacheTests {
+
+	private final ExpiringCache<String, String> cache =
+			new ExpiringCache<String, String>(16, 1, TimeUnit.MINUTES);
+
+	private final ExpiringCache.Loader<String, String> loader =
+			new ExpiringCache.Loader<String, String>() {
+		public String load(String key) {
+			return key.toUpperCase();
+		}
+	};
+
+	@Test
+	public void shouldLoadTheMissingValues() {
+		assertEquals("JOEY", cache.get("joey", loader));
+		assertEquals("JOEY", cache.get("joey", loader));
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getHitCount());
+	}
+
+	@Test
+	public void shouldInvalidateTheValues() {
+		cache.put("joey", "joey r.");
+		cache.remove("joey");
+		assertNull(cache.get("joey"));
+	}
+
+	@Test
+	public void shouldEvictTheEldestValues() {
+		for (int i = 0; i < 1000; i++) {
+			cache.put("user" + i, "value");
+		}
+		assertTrue(cache.size() <= 16);
+		assertEquals(1000 - cache.size(), cache.getEvictionCount());
+	}
+
+	@Test
+	public void shouldExpireTheValues() {
+		ExpiringCache<String, String> c = new ExpiringCache<String, String>(16, 0, TimeUnit.MILLISECONDS);
+		c.put("joey", "joey r.");
+		sleep(5);
+		assertNull(c.get("joey"));
+		assertEquals(1, c.getEvictionCount());
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import org.junit.Test;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.social.test.FakeConnectionFactoryLocator;
+
+import static org.junit.Assert.*;
+
+/**
+ * The test class for the in-memory connection service.
+ */
+public class InMemoryConnectionServiceTests extends AbstractConnectionServiceTests {
+
+	private final InMemoryConnectionService service = new InMemoryConnectionService(
+			new ConnectionConverter(new FakeConnectionFactoryLocator(), Encryptors.noOpText()));
+
+	@Override
+	protected ConnectionService getConnectionService() {
+		return service;
+	}
+
+	@Test
+	public void shouldDropTheIndexedUserIdsOnClear() {
+		service.clear();
+		assertTrue(service.getUserIds("twitter", "@joey_ramones").isEmpty());
+		assertTrue(service.getConnections("joey").isEmpty());
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.mongodb.MongoDbFactory;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+/**
+ * The test class for the connection codec.
+ */
+public class MongoConnectionCodecTests {
+
+	private MongoConnectionCodec codec;
+	private MappingMongoConverter mappingConverter;
+	private MongoConnection document;
+
+	@Before
+	public void setup() {
+		codec = new MongoConnectionCodec();
+		mappingConverter = new MappingMongoConverter(mock(MongoDbFactory.class), new MongoMappingContext());
+		mappingConverter.afterPropertiesSet();
+
+		document = new MongoConnection();
+		document.setId(new ObjectId());
+		document.setUserId("joey");
+		document.setProviderId("fake");
+		document.setProviderUserId("joey.ramones");
+		document.setRank(2);
+		document.setDisplayName("joey r.");
+		document.setProfileUrl("http://profile/joey.ramones");
+		document.setAccessToken("accessToken");
+		document.setSecret("secret");
+		document.setRefreshToken("refreshToken");
+		document.setExpireTime(1000L);
+	}
+
+	@Test
+	public void shouldReadWhatItWrites() {
+		assertSameConnection(document, codec.read(codec.write(document)));
+	}
+
+	@Test
+	public void shouldNotWriteTheNullFields() {
+		DBObject dbo = codec.write(document);
+
+		assertFalse(dbo.containsField(MongoConnectionCodec.IMAGE_URL));
+		assertEquals(2, dbo.get(MongoConnectionCodec.RANK));
+	}
+
+	@Test
+	public void shouldReadTheMappingConverterDocuments() {
+		DBObject dbo = new BasicDBObject();
+		mappingConverter.write(document, dbo);
+
+		assertSameConnection(document, codec.read(dbo));
+	}
+
+	@Test
+	public void shouldWriteDocumentsTheMappingConverterReads() {
+		DBObject dbo = codec.write(document);
+
+		assertSameConnection(document, mappingConverter.read(MongoConnection.class, dbo));
+	}
+
+	@Test
+	public void shouldReadPartialDocuments() {
+		DBObject dbo = new BasicDBObject(MongoConnectionCodec.USER_ID, "joey");
+		MongoConnection mc = codec.read(dbo);
+
+		assertEquals("joey", mc.getUserId());
+		assertNull(mc.getId());
+		assertNull(mc.getExpireTime());
+		assertEquals(0, mc.getRank());
+	}
+
+	private static void assertSameConnection(MongoConnection expected, MongoConnection actual) {
+		assertEquals(expected.getId(), actual.getId());
+		assertEquals(expected.getUserId(), actual.getUserId());
+		assertEquals(expected.getProviderId(), actual.getProviderId());
+		assertEquals(expected.getProviderUserId(), actual.getProviderUserId());
+		assertEquals(expected.getRank(), actual.getRank());
+		assertEquals(expected.getDisplayName(), actual.getDisplayName());
+		assertEquals(expected.getProfileUrl(), actual.getProfileUrl());
+		assertEquals(expected.getImageUrl(), actual.getImageUrl());
+		assertEquals(expected.getAccessToken(), actual.getAccessToken());
+		assertEquals(expected.getSecret(), actual.getSecret());
+		assertEquals(expected.getRefreshToken(), actual.getRefreshToken());
+		assertEquals(expected.getExpireTime(), actual.getExpireTime());
+	}
+}
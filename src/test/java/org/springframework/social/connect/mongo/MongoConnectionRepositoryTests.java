@@ -0,0 +1,73 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.test.FakeConnectionFactory;
+import org.springframework.social.test.FakeConnectionFactoryLocator;
+import org.springframework.social.test.FakeProvider;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * The test class for the connection repository, on the in-memory connection service.
+ */
+public class MongoConnectionRepositoryTests {
+
+	private final FakeConnectionFactory<FakeProvider> factory = 
+			new FakeConnectionFactory<FakeProvider>("fake", null, null);
+
+	private MongoConnectionRepository repository;
+
+	@Before
+	public void setup() {
+		FakeConnectionFactoryLocator locator = new FakeConnectionFactoryLocator();
+		ConnectionConverter converter = new ConnectionConverter(locator, Encryptors.noOpText());
+		InMemoryConnectionService service = new InMemoryConnectionService(converter);
+		service.create("joey", factory.createConnection("twitter", "@joey_ramones", "joey r."), 1);
+		service.create("joey", factory.createConnection("twitter", "@JeffreyHyman", "joey r."), 2);
+		service.create("joey", factory.createConnection("facebook", "joey.ramones", "joey r."), 1);
+
+		repository = new MongoConnectionRepository("joey", service, locator);
+	}
+
+	@Test
+	public void shouldPlaceTheConnectionsAtThePositionsOfTheProviderUsers() {
+		MultiValueMap<String, String> providerUsers = new LinkedMultiValueMap<String, String>();
+		providerUsers.put("twitter", Arrays.asList("@DeeDeeRamone", "@JeffreyHyman", "@MarkyRamone", "@joey_ramones"));
+		providerUsers.put("facebook", Arrays.asList("joey.ramones"));
+		providerUsers.put("linkedin", Arrays.asList("joey"));
+
+		MultiValueMap<String, Connection<?>> connections = repository.findConnectionsToUsers(providerUsers);
+
+		List<Connection<?>> twitter = connections.get("twitter");
+		assertEquals(4, twitter.size());
+		assertNull(twitter.get(0));
+		assertEquals("@JeffreyHyman", twitter.get(1).getKey().getProviderUserId());
+		assertNull(twitter.get(2));
+		assertEquals("@joey_ramones", twitter.get(3).getKey().getProviderUserId());
+		assertEquals("joey.ramones", connections.getFirst("facebook").getKey().getProviderUserId());
+		assertFalse(connections.containsKey("linkedin"));
+	}
+}
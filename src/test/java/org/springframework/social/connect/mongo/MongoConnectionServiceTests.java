@@ -15,26 +15,35 @@
  */
 package org.springframework.social.connect.mongo;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
-import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.social.connect.Connection;
 import org.springframework.social.connect.ConnectionKey;
-import org.springframework.social.test.FakeConnection;
-import org.springframework.social.test.FakeConnectionFactory;
-import org.springframework.social.test.FakeProvider;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.test.FakeConnectionFactoryLocator;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.support.AnnotationConfigContextLoader;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+
 import static org.junit.Assert.*;
 
 /**
@@ -42,181 +51,187 @@ import static org.junit.Assert.*;
  * 
  * @author Carlo P. Micieli
  */
-public class MongoConnectionServiceTests extends SpringTest {
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(loader = AnnotationConfigContextLoader.class, 
+	classes = {ApplicationConfig.class})
+@ActiveProfiles("test")
+public class MongoConnectionServiceTests extends AbstractConnectionServiceTests {
 
 	private @Autowired MongoTemplate mongoOps;
 	private @Autowired MongoConnectionService service;
+	private @Autowired ConnectionIndexManager indexManager;
 	
-	private final FakeConnectionFactory<FakeProvider> factory = 
-			new FakeConnectionFactory<FakeProvider>("fake", null, null);
-	
-	private MongoConnection create(String userId, 
-			String providerId, 
-			String providerUserId, 
-			String displayName,
-			int rank) {
-		
-		MongoConnection c = new MongoConnection();
-		c.setUserId(userId);
-		c.setDisplayName(displayName);
-		c.setProviderId(providerId);
-		c.setProviderUserId(providerUserId);
-		c.setRank(rank);
-		return c;
-	}
-	
-	@Before
-	public void setup() {
-		List<MongoConnection> cnns = Arrays.asList(
-			create("joey", "twitter", "@JeffreyHyman", "joey r.", 2),
-			create("joey", "twitter", "@joey_ramones", "joey r.", 1),
-			create("joey", "facebook", "joey.ramones", "joey r.", 1),
-			create("johnny", "facebook", "JohnnyRamones", "johnny r.", 1),
-			create("tommy", "twitter", "@joey_ramones", "joey r.", 1),
-			create("cj", "fake", "c-j", "cj", 1)
-				);
-
-		mongoOps.insert(cnns, MongoConnection.class);
+	@Override
+	protected ConnectionService getConnectionService() {
+		// the indexes the tests rely on, the non-unique ones being built in the background at startup
+		indexManager.ensureIndexes();
+		return service;
 	}
 
 	@After
 	public void tearDown() {
 		mongoOps.remove(new Query(), MongoConnection.class);
 	}
-	
-	@Test
-	public void shouldReturnMultipleConnections() {
-		MultiValueMap<String, String> map = new LinkedMultiValueMap<String, String>();
-		map.put("twitter", Arrays.asList("@JeffreyHyman", "@joey_ramones"));
-		map.put("facebook", Arrays.asList("joey.ramones"));
-		
-		List<Connection<?>> connections = service.getConnections("joey", map);
-		assertEquals(3, connections.size());
-		assertEquals("[{facebook, joey.ramones, joey r.}, {twitter, @joey_ramones, joey r.}, {twitter, @JeffreyHyman, joey r.}]", 
-				connections.toString());
-	}
-	
-	@Test
-	public void shouldReturnTheUserIds() {
-		List<String> userIds = service.getUserIds("twitter", "@joey_ramones");
-		assertNotNull(userIds);
-		assertEquals(2, userIds.size());
-		assertEquals("[joey, tommy]", userIds.toString());
-	}
-		
-	@Test
-	public void shouldReturnTheSetOfUserIds() {
-		Set<String> providedIds = new HashSet<String>();
-		providedIds.add("joey.ramones");
-		providedIds.add("JohnnyRamones");
-		
-		Set<String> userIds = service.getUserIds("facebook", providedIds);
-		assertNotNull(userIds);
-		assertEquals(2, userIds.size());
-		assertEquals("[joey, johnny]", userIds.toString());
-	}
-	
+
 	@Test
-	public void shouldReturnTheDefaultRank() {
-		int rank = service.getMaxRank("deedee", "twitter");
-		assertEquals(1, rank);
+	public void shouldCreateTheRequiredIndexes() {
+		indexManager.ensureIndexes();
+		assertTrue(indexManager.findMissingIndexes().isEmpty());
 	}
-		
+
 	@Test
-	public void shouldReturnTheMaxRankForAProvider() {
-		int rank = service.getMaxRank("joey", "twitter");
-		assertEquals(3, rank);
+	public void shouldBuildTheUniqueIndexesAtStartup() {
+		mongoOps.getCollection(MongoConnection.COLLECTION_NAME).dropIndexes();
+		ConnectionIndexManager manager = new ConnectionIndexManager(mongoOps);
+		manager.setCreateMissingIndexes(false);
+		try {
+			manager.afterPropertiesSet();
+			
+			List<String> missing = new ArrayList<String>();
+			for (ConnectionIndex index : manager.findMissingIndexes()) {
+				missing.add(index.getName());
+			}
+			assertEquals(Arrays.asList(ConnectionIndexManager.PROVIDER_USER_INDEX, ConnectionIndexManager.EXPIRE_TIME_INDEX), 
+					missing);
+		} finally {
+			manager.ensureIndexes();
+		}
 	}
 	
 	@Test
-	public void shouldReturnNullIfTheConnectionIsNotFound() {
-		Connection<?> conn = service.getConnection("a", "b", "c");
-		assertNull(conn);
+	public void shouldKeepTheUserIdsCacheConsistent() {
+		service.setUserIdsCache(new ExpiringCache<ConnectionKey, List<String>>(16, 1, TimeUnit.MINUTES));
+		try {
+			assertEquals("[joey, tommy]", service.getUserIds("twitter", "@joey_ramones").toString());
+			assertEquals("[joey, tommy]", service.getUserIds("twitter", "@joey_ramones").toString());
+			assertEquals(1, service.getUserIdsCache().getHitCount());
+			
+			service.create("johnny", factory.createConnection("twitter", "@joey_ramones", "joey r."), 1);
+			assertEquals("[joey, johnny, tommy]", service.getUserIds("twitter", "@joey_ramones").toString());
+			
+			service.remove("joey", "twitter");
+			assertEquals("[johnny, tommy]", service.getUserIds("twitter", "@joey_ramones").toString());
+		} finally {
+			service.setUserIdsCache(null);
+		}
 	}
 	
 	@Test
-	public void shouldFindPrimaryConnection() {
-		Connection<?> conn = service.getPrimaryConnection("joey", "twitter");
-		assertNotNull("Connection not found", conn);
-		assertEquals("twitter", conn.getKey().getProviderId());
-		assertEquals("@joey_ramones", conn.getKey().getProviderUserId());
+	public void shouldInvalidateTheRepositoryConnectionsOnServiceWrites() {
+		service.setConnectionCache(new ExpiringCache<String, List<MongoConnection>>(16, 1, TimeUnit.MINUTES));
+		try {
+			ConnectionRepository repository = new MongoUsersConnectionRepository(service, 
+					new FakeConnectionFactoryLocator()).createConnectionRepository("joey");
+			assertEquals("joey r.", repository.findConnections("twitter").get(0).getDisplayName());
+			assertEquals(2, repository.findAllConnections().size());
+			assertEquals(1, service.getConnectionCache().getHitCount());
+			
+			// a token refresh writing to the service directly
+			service.update("joey", factory.createConnection("twitter", "@joey_ramones", "joey ramone"));
+			assertEquals("joey ramone", repository.findConnections("twitter").get(0).getDisplayName());
+			
+			service.remove("joey", "twitter");
+			assertTrue(repository.findConnections("twitter").isEmpty());
+		} finally {
+			service.setConnectionCache(null);
+		}
 	}
 	
 	@Test
-	public void shouldFindConnection() {
-		Connection<?> conn = service.getConnection("joey", "facebook", "joey.ramones");
-		assertNotNull("Connection not found", conn);
-		assertEquals("facebook", conn.getKey().getProviderId());
-		assertEquals("joey.ramones", conn.getKey().getProviderUserId());
+	public void shouldReadTheUserIdsWithThePolicyReadPreference() {
+		ConnectionServicePolicy policy = new ConnectionServicePolicy();
+		policy.setReadPreference(ConnectionServicePolicy.Read.USER_IDS, ReadPreference.SECONDARY);
+		service.setPolicy(policy);
+		try {
+			assertEquals("[joey, tommy]", service.getUserIds("twitter", "@joey_ramones").toString());
+		} finally {
+			service.setPolicy(new ConnectionServicePolicy());
+		}
 	}
 	
 	@Test
-	public void shouldListTheConnectionsForUserAndProviderSortByRank() {
-		List<Connection<?>> connections =
-				service.getConnections("joey", "twitter");
+	public void shouldUpdateAllTheMutableFieldsWithASingleWrite() {
+		Connection<?> conn = factory.createConnection("twitter", "@JeffreyHyman", "jeffrey h.");
+		long writes = service.getMetrics().getWriteCount();
 		
-		assertEquals(2, connections.size());
-		assertEquals("[{twitter, @joey_ramones, joey r.}, {twitter, @JeffreyHyman, joey r.}]", 
-				connections.toString());
-	}
-	
-	@Test
-	public void shouldListTheConnectionsForUserSortByProviderAndRank() {
-		List<Connection<?>> connections =
-				service.getConnections("joey");
+		// the profiler records the operations the server received
+		DBObject profiled = new BasicDBObject("ns", mongoOps.getDb().getName() + "." + MongoConnection.COLLECTION_NAME)
+			.append("op", new BasicDBObject("$in", Arrays.asList("insert", "update", "remove")));
+		mongoOps.getCollection("system.profile").drop();
+		mongoOps.getDb().command(new BasicDBObject("profile", 2));
+		try {
+			service.update("joey", conn);
+		} finally {
+			mongoOps.getDb().command(new BasicDBObject("profile", 0));
+		}
 		
-		assertEquals(3, connections.size());
-		assertEquals("[{facebook, joey.ramones, joey r.}, {twitter, @joey_ramones, joey r.}, {twitter, @JeffreyHyman, joey r.}]", 
-				connections.toString());
+		assertEquals(1, mongoOps.getCollection("system.profile").count(profiled));
+		assertEquals(writes + 1, service.getMetrics().getWriteCount());
+		MongoConnection mc = mongoOps.findOne(Query.query(Criteria.where("userId").is("joey")
+				.and("providerUserId").is("@JeffreyHyman")), MongoConnection.class);
+		assertEquals("jeffrey h.", mc.getDisplayName());
+		assertEquals("accessToken", mc.getAccessToken());
+		assertEquals("secret", mc.getSecret());
+		// the empty refresh token is stored as null
+		assertNull(mc.getRefreshToken());
+		assertEquals(2, mc.getRank());
 	}
 	
 	@Test
-	public void shouldCreateNewConnection() {
-		Connection<?> userConn = factory.createConnection("userName", "user name");
-		service.create("UserId", userConn, 5);
-		List<Connection<?>> connections =
-				service.getConnections("UserId", "fake");
+	public void shouldStreamTheConnectionsOfAProvider() {
+		service.setStreamBatchSize(1);
+		ConnectionCursor<Connection<?>> cursor = service.streamConnections("twitter");
 		
-		assertEquals(1, connections.size());
-		
-		FakeConnection<?> conn = (FakeConnection<?>) connections.get(0);
-		assertEquals("fake", conn.getData().getProviderId());
-		assertEquals("userName", conn.getData().getProviderUserId());
-		assertEquals("user name", conn.getData().getDisplayName());
-	}
-	
-	@Test(expected = DuplicateKeyException.class)
-	public void shouldThrowExceptionIfDuplicatedValues() {
-		Connection<?> userConn = factory.createConnection("cj", "cj");
-		service.create("cj", userConn, 1);
+		Set<String> providerUserIds = new HashSet<String>();
+		while (cursor.hasNext()) {
+			Connection<?> conn = cursor.next();
+			assertEquals("twitter", conn.getKey().getProviderId());
+			providerUserIds.add(conn.getKey().getProviderUserId());
+		}
+		assertEquals(new HashSet<String>(Arrays.asList("@JeffreyHyman", "@joey_ramones")), providerUserIds);
 	}
 	
 	@Test
-	public void shouldUpdateTheConnection() {
-		//Connection<?> userConn = factory.createConnection("cj", "cj");
-		
-		Connection<?> conn = service.getConnection("joey", "twitter", "@JeffreyHyman");
-		assertEquals("joey r.", conn.getDisplayName());
-	
-		service.update("joey", conn);
-		
-		Connection<?> conn2 = service.getConnection("joey", "twitter", "@JeffreyHyman");
-		assertEquals("joey r.", conn2.getDisplayName());
+	public void shouldStreamAllTheConnectionDocuments() {
+		ConnectionCursor<MongoConnection> cursor = service.streamAllConnectionDocuments();
+		try {
+			int count = 0;
+			while (cursor.hasNext()) {
+				assertNotNull(cursor.next().getUserId());
+				count++;
+			}
+			assertEquals(6, count);
+		} finally {
+			cursor.close();
+		}
 	}
 	
 	@Test
-	public void shouldRemoveTheConnection() {
-		service.remove("joey", new ConnectionKey("twitter", "@JeffreyHyman"));
-		
-		Connection<?> conn = service.getConnection("joey", "twitter", "@JeffreyHyman");
-		assertNull("Connection not removed", conn);
+	public void shouldReturnTheConnectionsToManyProviderUsersInChunks() {
+		service.setProviderUsersChunkSize(1);
+		try {
+			MultiValueMap<String, String> map = new LinkedMultiValueMap<String, String>();
+			map.put("twitter", Arrays.asList("@JeffreyHyman", "@joey_ramones", "@JeffreyHyman"));
+			map.put("facebook", Arrays.asList("joey.ramones"));
+			
+			assertEquals("[{facebook, joey.ramones, joey r.}, {twitter, @joey_ramones, joey r.}, {twitter, @JeffreyHyman, joey r.}]", 
+					service.getConnections("joey", map).toString());
+		} finally {
+			service.setProviderUsersChunkSize(MongoConnectionService.DEFAULT_PROVIDER_USERS_CHUNK_SIZE);
+		}
 	}
 	
 	@Test
-	public void shouldRemoveTheConnectionForAProvider() {
-		service.remove("joey", "twitter");
-		
-		List<Connection<?>> conn = service.getConnections("joey", "twitter");
-		assertEquals(0, conn.size());
+	public void shouldReturnTheConnectionsOfManyUsersInChunks() {
+		service.setUsersChunkSize(1);
+		try {
+			MultiValueMap<String, Connection<?>> connections = 
+					service.getConnectionsForUsers(Arrays.asList("joey", "tommy", "deedee"), "twitter");
+			
+			assertEquals("{joey=[{twitter, @joey_ramones, joey r.}, {twitter, @JeffreyHyman, joey r.}], " +
+					"tommy=[{twitter, @joey_ramones, joey r.}]}", connections.toString());
+		} finally {
+			service.setUsersChunkSize(MongoConnectionService.DEFAULT_USERS_CHUNK_SIZE);
+		}
 	}
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.social.test.FakeConnectionFactoryLocator;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * The test class for the users connection repository.
+ */
+public class MongoUsersConnectionRepositoryTests {
+
+	private ConnectionService service;
+	private MongoUsersConnectionRepository repository;
+	private ExecutorService executor;
+	private Set<String> providerUserIds;
+
+	@Before
+	public void setup() {
+		service = mock(ConnectionService.class);
+		// every provider user is connected to the user with the same id
+		when(service.getUserIds(eq("facebook"), anySetOf(String.class))).thenAnswer(new Answer<Set<String>>() {
+			@SuppressWarnings("unchecked")
+			public Set<String> answer(InvocationOnMock invocation) {
+				return new HashSet<String>((Set<String>) invocation.getArguments()[1]);
+			}
+		});
+
+		repository = new MongoUsersConnectionRepository(service, new FakeConnectionFactoryLocator());
+		repository.setUserIdsChunkSize(10);
+		executor = Executors.newFixedThreadPool(3);
+
+		providerUserIds = new HashSet<String>();
+		for (int i = 0; i < 95; i++) {
+			providerUserIds.add("fb" + i);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void shouldQueryTheSmallSetsAtOnce() {
+		Set<String> few = new HashSet<String>();
+		few.add("fb1");
+		few.add("fb2");
+
+		assertEquals(few, repository.findUserIdsConnectedTo("facebook", few));
+		verify(service, times(1)).getUserIds(eq("facebook"), anySetOf(String.class));
+	}
+
+	@Test
+	public void shouldQueryTheLargeSetsInChunks() {
+		assertEquals(providerUserIds, repository.findUserIdsConnectedTo("facebook", providerUserIds));
+		verify(service, times(10)).getUserIds(eq("facebook"), anySetOf(String.class));
+	}
+
+	@Test
+	public void shouldQueryTheChunksOnTheExecutor() {
+		repository.setUserIdsExecutor(executor);
+
+		assertEquals(providerUserIds, repository.findUserIdsConnectedTo("facebook", providerUserIds));
+		verify(service, times(10)).getUserIds(eq("facebook"), anySetOf(String.class));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void shouldRethrowTheChunkFailures() {
+		when(service.getUserIds(eq("twitter"), anySetOf(String.class))).thenThrow(new IllegalStateException());
+		repository.setUserIdsExecutor(executor);
+
+		repository.findUserIdsConnectedTo("twitter", providerUserIds);
+	}
+}
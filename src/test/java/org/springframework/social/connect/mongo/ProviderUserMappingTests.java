@@ -0,0 +1,138 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.test.FakeConnectionFactory;
+import org.springframework.social.test.FakeProvider;
+
+import static org.junit.Assert.*;
+
+/**
+ * The test class for the provider user mapping and its repair.
+ */
+public class ProviderUserMappingTests extends SpringTest {
+
+	private @Autowired MongoTemplate mongoOps;
+	private @Autowired MongoConnectionService service;
+
+	private final FakeConnectionFactory<FakeProvider> factory = 
+			new FakeConnectionFactory<FakeProvider>("fake", null, null);
+
+	private ProviderUserMapping mapping;
+
+	@Before
+	public void setup() {
+		mapping = new ProviderUserMapping(mongoOps);
+		service.setProviderUserMapping(mapping);
+
+		service.create("joey", factory.createConnection("twitter", "@joey_ramones", "joey r."));
+		service.create("tommy", factory.createConnection("twitter", "@joey_ramones", "joey r."));
+		service.create("joey", factory.createConnection("facebook", "joey.ramones", "joey r."));
+	}
+
+	@After
+	public void tearDown() {
+		service.setProviderUserMapping(null);
+		mongoOps.remove(new Query(), MongoConnection.class);
+		mongoOps.dropCollection(ProviderUserMapping.COLLECTION_NAME);
+	}
+
+	@Test
+	public void shouldMapTheCreatedConnections() {
+		assertEquals(Arrays.asList("joey", "tommy"), mapping.getUserIds("twitter", "@joey_ramones"));
+		assertEquals(2, mongoOps.getCollection(ProviderUserMapping.COLLECTION_NAME).count());
+	}
+
+	@Test
+	public void shouldReadTheReverseLookupsFromTheMapping() {
+		mongoOps.remove(new Query(), MongoConnection.class);
+
+		assertEquals(Arrays.asList("joey", "tommy"), service.getUserIds("twitter", "@joey_ramones"));
+		assertEquals(new HashSet<String>(Arrays.asList("joey")), 
+				service.getUserIds("facebook", Collections.singleton("joey.ramones")));
+	}
+
+	@Test
+	public void shouldUnmapTheRemovedConnections() {
+		service.remove("joey", new ConnectionKey("twitter", "@joey_ramones"));
+		service.remove("joey", "facebook");
+
+		assertEquals(Arrays.asList("tommy"), service.getUserIds("twitter", "@joey_ramones"));
+		assertTrue(service.getUserIds("facebook", "joey.ramones").isEmpty());
+		assertEquals(1, mongoOps.getCollection(ProviderUserMapping.COLLECTION_NAME).count());
+	}
+
+	@Test
+	public void shouldRepairTheMapping() {
+		// a connection written around the service, and a stale user
+		service.setProviderUserMapping(null);
+		service.create("johnny", factory.createConnection("twitter", "@joey_ramones", "joey r."));
+		mapping.add("facebook", "joey.ramones", Arrays.asList("deedee"));
+
+		ProviderUserMappingRepairJob job = new ProviderUserMappingRepairJob(mongoOps, mapping);
+		job.setBatchSize(1);
+		assertEquals(1, job.repair());
+
+		assertEquals(Arrays.asList("joey", "johnny", "tommy"), mapping.getUserIds("twitter", "@joey_ramones"));
+		assertEquals(Arrays.asList("joey"), mapping.getUserIds("facebook", "joey.ramones"));
+	}
+
+	@Test
+	public void shouldKeepTheUsersConnectedDuringTheRepair() {
+		// deedee connects while the job removes it as stale, the service mapping being a no-op
+		mapping.add("twitter", "@joey_ramones", Arrays.asList("deedee"));
+		ProviderUserMapping racing = new ProviderUserMapping(mongoOps) {
+			@Override
+			public void remove(String providerId, String providerUserId, Collection<String> userIds) {
+				service.create("deedee", factory.createConnection("twitter", "@joey_ramones", "joey r."));
+				super.remove(providerId, providerUserId, userIds);
+			}
+		};
+
+		ProviderUserMappingRepairJob job = new ProviderUserMappingRepairJob(mongoOps, racing);
+		assertEquals(0, job.repair());
+
+		assertEquals(Arrays.asList("deedee", "joey", "tommy"), mapping.getUserIds("twitter", "@joey_ramones"));
+	}
+
+	@Test
+	public void shouldCreateTheConnectionWhenTheMappingFails() {
+		service.setProviderUserMapping(new ProviderUserMapping(mongoOps) {
+			@Override
+			public void add(String providerId, String providerUserId, Collection<String> userIds) {
+				throw new DataAccessResourceFailureException("mapping unavailable");
+			}
+		});
+		assertEquals(1, service.create("johnny", factory.createConnection("twitter", "@joey_ramones", "joey r.")));
+		assertEquals(1, service.getConnections("johnny", "twitter").size());
+
+		new ProviderUserMappingRepairJob(mongoOps, mapping).repair();
+		assertEquals(Arrays.asList("joey", "johnny", "tommy"), mapping.getUserIds("twitter", "@joey_ramones"));
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import static org.junit.Assert.*;
+
+/**
+ * The test class for the shard key guard.
+ */
+public class ShardKeyGuardTests {
+
+	private ShardKeyGuard guard;
+
+	@Before
+	public void setup() {
+		guard = new ShardKeyGuard();
+	}
+
+	@Test
+	public void shouldAcceptTheQueriesMatchingTheUserId() {
+		assertTrue(guard.isTargeted(new BasicDBObject("userId", "joey").append("providerId", "twitter")));
+		assertTrue(guard.isTargeted(new BasicDBObject("userId", 
+				new BasicDBObject("$in", Arrays.asList("joey", "tommy")))));
+	}
+
+	@Test
+	public void shouldAcceptTheUserIdInAnAndBranch() {
+		DBObject query = new BasicDBObject("$and", Arrays.asList(
+				new BasicDBObject("providerId", "twitter"), new BasicDBObject("userId", "joey")));
+		assertTrue(guard.isTargeted(query));
+	}
+
+	@Test
+	public void shouldRequireTheUserIdInEveryOrBranch() {
+		assertTrue(guard.isTargeted(new BasicDBObject("$or", Arrays.asList(
+				new BasicDBObject("userId", "joey"), new BasicDBObject("userId", "tommy")))));
+		assertFalse(guard.isTargeted(new BasicDBObject("$or", Arrays.asList(
+				new BasicDBObject("userId", "joey"), new BasicDBObject("providerId", "twitter")))));
+	}
+
+	@Test
+	public void shouldFlagTheQueriesWithoutTheUserId() {
+		guard.check("USER_IDS", new BasicDBObject("providerId", "twitter"));
+		guard.check("CONNECTIONS", new BasicDBObject("userId", new BasicDBObject("$gt", "j")));
+		guard.check("CONNECTIONS", new BasicDBObject("userId", "joey"));
+
+		assertEquals(2, guard.getFlaggedCount());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void shouldRejectTheQueriesWithoutTheUserId() {
+		guard.setMode(ShardKeyGuard.Mode.FAIL);
+		guard.check("USER_IDS", new BasicDBObject("providerId", "twitter"));
+	}
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+
+/**
+ * A local sharded cluster of two shards, one config server and one mongos, 
+ * started from the mongod and mongos binaries of the {@code mongo.bin} directory 
+ * or of the path, on the ports following {@code sharded.basePort} (27117 by default).
+ * The processes run on temporary directories removed on stop.
+ * <p>
+ * The config server runs in the legacy mirrored mode and the shards with the MMAPv1 
+ * options, which the mongod releases from 3.4 on reject.
+ */
+class ShardedCluster {
+
+	private static final long STARTUP_TIMEOUT = 30000L;
+
+	private static final Pattern VERSION = Pattern.compile("v(\\d+)\\.(\\d+)");
+
+	private final int basePort;
+	private final List<Process> processes = new ArrayList<Process>();
+	private final List<String> shardNames = new ArrayList<String>();
+
+	private File baseDir;
+
+	public ShardedCluster() {
+		this(Integer.getInteger("sharded.basePort", 27117));
+	}
+
+	public ShardedCluster(int basePort) {
+		this.basePort = basePort;
+	}
+
+	/**
+	 * Returns whether the mongod and mongos binaries are available, in a release 
+	 * older than 3.4.
+	 */
+	public static boolean isAvailable() {
+		String mongod = binary("mongod");
+		if (mongod == null || binary("mongos") == null) {
+			return false;
+		}
+		int[] version = version(mongod);
+		return version != null && (version[0] < 3 || (version[0] == 3 && version[1] < 4));
+	}
+
+	public void start() throws IOException, InterruptedException {
+		baseDir = File.createTempFile("sharded", "");
+		baseDir.delete();
+		baseDir.mkdirs();
+
+		int configPort = basePort;
+		mongod("config", configPort, "--configsvr");
+		for (int i = 0; i < 2; i++) {
+			mongod("shard" + i, basePort + 1 + i, "--shardsvr");
+		}
+		start("mongos", getMongosPort(), binary("mongos"), 
+				"--configdb", "localhost:" + configPort, 
+				"--port", String.valueOf(getMongosPort()),
+				"--logpath", new File(baseDir, "mongos.log").getPath());
+
+		Mongo mongo = new Mongo("localhost", getMongosPort());
+		try {
+			for (int i = 0; i < 2; i++) {
+				String name = "shard" + i;
+				command(mongo, new BasicDBObject("addShard", "localhost:" + (basePort + 1 + i)).append("name", name));
+				shardNames.add(name);
+			}
+		} finally {
+			mongo.close();
+		}
+	}
+
+	public int getMongosPort() {
+		return basePort + 3;
+	}
+
+	public List<String> getShardNames() {
+		return shardNames;
+	}
+
+	/**
+	 * Splits the chunk of the collection at the given shard key value, and moves 
+	 * the upper chunk to the second shard.
+	 */
+	public void splitAndMove(Mongo mongo, String namespace, String shardKey, Object middle) {
+		command(mongo, new BasicDBObject("split", namespace)
+				.append("middle", new BasicDBObject(shardKey, middle)));
+		command(mongo, new BasicDBObject("moveChunk", namespace)
+				.append("find", new BasicDBObject(shardKey, middle))
+				.append("to", shardNames.get(1)));
+	}
+
+	public void stop() {
+		for (Process process : processes) {
+			process.destroy();
+		}
+		for (Process process : processes) {
+			try {
+				process.waitFor();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		processes.clear();
+		if (baseDir != null) {
+			delete(baseDir);
+		}
+	}
+
+	/**
+	 * Returns how many shards the query of an explain output ran on,
+	 * for the legacy and the query planner explain formats.
+	 */
+	public static int shardsQueried(DBObject explain) {
+		Object shards = explain.get("shards");
+		if (shards == null && explain.get("queryPlanner") != null) {
+			DBObject winningPlan = (DBObject) ((DBObject) explain.get("queryPlanner")).get("winningPlan");
+			shards = winningPlan.get("shards");
+		}
+		if (shards instanceof List) {
+			return ((List<?>) shards).size();
+		}
+		return shards == null ? 1 : ((DBObject) shards).keySet().size();
+	}
+
+	// helper methods
+
+	private void mongod(String name, int port, String role) throws IOException, InterruptedException {
+		File dbPath = new File(baseDir, name);
+		dbPath.mkdirs();
+		start(name, port, binary("mongod"), role, 
+				"--port", String.valueOf(port),
+				"--dbpath", dbPath.getPath(),
+				"--logpath", new File(baseDir, name + ".log").getPath(),
+				"--nojournal", "--smallfiles", "--noprealloc");
+	}
+
+	private void start(String name, int port, String... command) throws IOException, InterruptedException {
+		ProcessBuilder builder = new ProcessBuilder(Arrays.asList(command));
+		builder.redirectErrorStream(true);
+		Process process = builder.start();
+		process.getOutputStream().close();
+		processes.add(process);
+
+		long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+		while (true) {
+			try {
+				new Socket("localhost", port).close();
+				return;
+			} catch (IOException e) {
+				if (exited(process)) {
+					throw new IllegalStateException("The " + name + " process exited, see " + name + ".log");
+				}
+				if (System.currentTimeMillis() > deadline) {
+					throw new IllegalStateException("The " + name + " process did not start on port " + port);
+				}
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	private static boolean exited(Process process) {
+		try {
+			process.exitValue();
+			return true;
+		} catch (IllegalThreadStateException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the major and minor version printed by {@code --version}, or null when 
+	 * it cannot be read.
+	 */
+	private static int[] version(String binary) {
+		try {
+			Process process = new ProcessBuilder(binary, "--version").redirectErrorStream(true).start();
+			process.getOutputStream().close();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+			try {
+				// db version v3.2.22, then the build details
+				int[] version = null;
+				for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+					Matcher matcher = VERSION.matcher(line);
+					if (version == null && matcher.find()) {
+						version = new int[] { Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)) };
+					}
+				}
+				process.waitFor();
+				return version;
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	private static void command(Mongo mongo, DBObject command) {
+		DB admin = mongo.getDB("admin");
+		CommandResult result = admin.command(command);
+		if (!result.ok()) {
+			throw new IllegalStateException("Unable to run " + command + ": " + result.getErrorMessage());
+		}
+	}
+
+	private static String binary(String name) {
+		List<String> dirs = new ArrayList<String>();
+		if (System.getProperty("mongo.bin") != null) {
+			dirs.add(System.getProperty("mongo.bin"));
+		}
+		String path = System.getenv("PATH");
+		if (path != null) {
+			dirs.addAll(Arrays.asList(path.split(File.pathSeparator)));
+		}
+		for (String dir : dirs) {
+			File binary = new File(dir, name);
+			if (binary.canExecute()) {
+				return binary.getPath();
+			}
+		}
+		return null;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.test.FakeConnectionFactory;
+import org.springframework.social.test.FakeConnectionFactoryLocator;
+import org.springframework.social.test.FakeProvider;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+import com.mongodb.WriteConcern;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * The test class for the connection service on a collection sharded on the user id.
+ * It runs on a local {@link ShardedCluster}, where "joey" and "tommy" live on two 
+ * different shards, and is skipped when the mongod and mongos binaries are not found
+ * or are too recent for the legacy cluster it starts.
+ */
+public class ShardedClusterTests {
+
+	private static final String DATABASE_NAME = "shardeddb";
+
+	private static ShardedCluster cluster;
+	private static MongoTemplate mongoOps;
+
+	private final FakeConnectionFactory<FakeProvider> factory = 
+			new FakeConnectionFactory<FakeProvider>("fake", null, null);
+
+	private RecordingShardKeyGuard guard;
+	private MongoConnectionService service;
+
+	@BeforeClass
+	public static void startCluster() throws Exception {
+		assumeTrue(ShardedCluster.isAvailable());
+
+		cluster = new ShardedCluster();
+		cluster.start();
+
+		Mongo mongo = new Mongo("localhost", cluster.getMongosPort());
+		mongoOps = new MongoTemplate(mongo, DATABASE_NAME);
+		mongoOps.setWriteConcern(WriteConcern.SAFE);
+		new ConnectionIndexManager(mongoOps).ensureIndexes();
+		new ConnectionSharding(mongoOps).shardCollection();
+		cluster.splitAndMove(mongo, DATABASE_NAME + "." + MongoConnection.COLLECTION_NAME, 
+				ConnectionSharding.SHARD_KEY, "m");
+	}
+
+	@AfterClass
+	public static void stopCluster() {
+		if (cluster != null) {
+			cluster.stop();
+		}
+	}
+
+	@Before
+	public void setup() {
+		guard = new RecordingShardKeyGuard();
+		guard.setMode(ShardKeyGuard.Mode.FAIL);
+
+		service = new MongoConnectionService(mongoOps, 
+				new ConnectionConverter(new FakeConnectionFactoryLocator(), Encryptors.noOpText()));
+		service.setShardKeyGuard(guard);
+
+		service.create("joey", factory.createConnection("twitter", "@joey_ramones", "joey r."));
+		service.create("joey", factory.createConnection("twitter", "@JeffreyHyman", "joey r."));
+		service.create("joey", factory.createConnection("facebook", "joey.ramones", "joey r."));
+		service.create("tommy", factory.createConnection("twitter", "@joey_ramones", "joey r."));
+	}
+
+	@After
+	public void tearDown() {
+		mongoOps.remove(new Query(), MongoConnection.class);
+	}
+
+	@Test
+	public void shouldRouteThePerUserQueriesToOneShard() {
+		service.getConnections("joey");
+		service.getConnections("joey", "twitter");
+		service.getPrimaryConnection("joey", "twitter");
+		service.getConnection("joey", "twitter", "@JeffreyHyman");
+
+		MultiValueMap<String, String> providerUsers = new LinkedMultiValueMap<String, String>();
+		providerUsers.add("twitter", "@joey_ramones");
+		service.getConnections("joey", providerUsers);
+
+		Connection<?> connection = service.getConnection("tommy", "twitter", "@joey_ramones");
+		service.update("tommy", connection);
+		service.remove("joey", new ConnectionKey("twitter", "@JeffreyHyman"));
+		service.remove("joey", "facebook");
+
+		assertEquals(0, guard.getFlaggedCount());
+		assertFalse(guard.queries.isEmpty());
+		for (DBObject query : guard.queries) {
+			assertEquals(query.toString(), 1, ShardedCluster.shardsQueried(collection().find(query).explain()));
+		}
+	}
+
+	@Test
+	public void shouldBroadcastTheReverseLookups() {
+		assertEquals(2, service.getUserIds("twitter", "@joey_ramones").size());
+
+		DBObject query = new BasicDBObject("providerId", "twitter").append("providerUserId", "@joey_ramones");
+		assertEquals(2, ShardedCluster.shardsQueried(collection().find(query).explain()));
+		assertEquals(0, guard.getFlaggedCount());
+	}
+
+	// helper methods
+
+	private DBCollection collection() {
+		return mongoOps.getCollection(MongoConnection.COLLECTION_NAME);
+	}
+
+	private static class RecordingShardKeyGuard extends ShardKeyGuard {
+		private final List<DBObject> queries = new ArrayList<DBObject>();
+
+		@Override
+		public void check(String operation, DBObject query) {
+			super.check(operation, query);
+			queries.add(query);
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2012 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.mongo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.test.FakeConnectionFactory;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * The test class for the write-behind connection service.
+ */
+public class WriteBehindConnectionServiceTests {
+
+	private final FakeConnectionFactory<Object> factory = new FakeConnectionFactory<Object>("twitter", null, null);
+
+	private ConnectionService service;
+	private WriteBehindConnectionService writeBehind;
+
+	@Before
+	public void setup() {
+		service = mock(ConnectionService.class);
+		// flushed by the tests only
+		writeBehind = new WriteBehindConnectionService(service, 1, TimeUnit.HOURS, 2);
+	}
+
+	@After
+	public void tearDown() {
+		writeBehind.destroy();
+	}
+
+	@Test
+	public void shouldWriteOnlyTheLatestUpdate() {
+		writeBehind.update("joey", factory.createConnection("@joey_ramones", "joey"));
+		writeBehind.update("joey", factory.createConnection("@joey_ramones", "joey r."));
+		Connection<?> latest = factory.createConnection("@joey_ramones", "joey ramone");
+		writeBehind.update("joey", latest);
+		verifyZeroInteractions(service);
+
+		writeBehind.flush();
+
+		verify(service).update("joey", latest);
+		assertEquals(3, writeBehind.getUpdateCount());
+		assertEquals(1, writeBehind.getWriteCount());
+		assertEquals(0, writeBehind.getPendingCount());
+	}
+
+	@Test
+	public void shouldWriteThePendingUpdatesOfTheUserBeforeARead() {
+		Connection<?> joey = factory.createConnection("@joey_ramones", "joey r.");
+		Connection<?> tommy = factory.createConnection("@tommy_ramone", "tommy r.");
+		writeBehind.update("joey", joey);
+		writeBehind.update("tommy", tommy);
+
+		writeBehind.getConnections("joey");
+
+		InOrder inOrder = inOrder(service);
+		inOrder.verify(service).update("joey", joey);
+		inOrder.verify(service).getConnections("joey");
+		verify(service, never()).update("tommy", tommy);
+		assertEquals(1, writeBehind.getPendingCount());
+	}
+
+	@Test
+	public void shouldWriteThePendingUpdatesWhenFull() {
+		writeBehind.update("joey", factory.createConnection("@joey_ramones", "joey r."));
+		writeBehind.update("tommy", factory.createConnection("@tommy_ramone", "tommy r."));
+		verifyZeroInteractions(service);
+
+		writeBehind.update("johnny", factory.createConnection("@johnny_ramone", "johnny r."));
+
+		verify(service, times(2)).update(anyString(), any(Connection.class));
+		assertEquals(1, writeBehind.getPendingCount());
+	}
+
+	@Test
+	public void shouldKeepTheUpdateOfTheSameConnectionMadeDuringAWrite() {
+		final Connection<?> joey = factory.createConnection("@joey_ramones", "joey r.");
+		doAnswer(new Answer<Void>() {
+			public Void answer(InvocationOnMock invocation) {
+				// a token refresh of the same instance while it is written
+				writeBehind.update("joey", joey);
+				return null;
+			}
+		}).doNothing().when(service).update("joey", joey);
+		writeBehind.update("joey", joey);
+
+		writeBehind.flush();
+		assertEquals(1, writeBehind.getPendingCount());
+
+		writeBehind.flush();
+		verify(service, times(2)).update("joey", joey);
+		assertEquals(0, writeBehind.getPendingCount());
+	}
+
+	@Test
+	public void shouldRetryAFailedWriteOnTheNextFlush() {
+		Connection<?> joey = factory.createConnection("@joey_ramones", "joey r.");
+		doThrow(new IllegalStateException()).doNothing().when(service).update("joey", joey);
+		writeBehind.update("joey", joey);
+
+		writeBehind.flush();
+		assertEquals(1, writeBehind.getFailureCount());
+		assertEquals(1, writeBehind.getPendingCount());
+
+		writeBehind.flush();
+		verify(service, times(2)).update("joey", joey);
+		assertEquals(1, writeBehind.getWriteCount());
+		assertEquals(0, writeBehind.getPendingCount());
+	}
+
+	@Test
+	public void shouldWriteAtOnceWhenTheFailedWritesFillThePendingSet() {
+		Connection<?> joey = factory.createConnection("@joey_ramones", "joey r.");
+		Connection<?> tommy = factory.createConnection("@tommy_ramone", "tommy r.");
+		doThrow(new IllegalStateException()).when(service).update("joey", joey);
+		doThrow(new IllegalStateException()).when(service).update("tommy", tommy);
+		writeBehind.update("joey", joey);
+		writeBehind.update("tommy", tommy);
+
+		Connection<?> johnny = factory.createConnection("@johnny_ramone", "johnny r.");
+		writeBehind.update("johnny", johnny);
+
+		verify(service).update("johnny", johnny);
+		assertEquals(2, writeBehind.getFailureCount());
+		assertEquals(2, writeBehind.getPendingCount());
+	}
+
+	@Test
+	public void shouldWriteTheUpdatesMadeAfterDestroy() {
+		writeBehind.destroy();
+
+		Connection<?> joey = factory.createConnection("@joey_ramones", "joey r.");
+		writeBehind.update("joey", joey);
+
+		verify(service).update("joey", joey);
+		assertEquals(0, writeBehind.getPendingCount());
+	}
+
+	@Test
+	public void shouldWriteThePendingUpdatesOnDestroy() {
+		Connection<?> joey = factory.createConnection("@joey_ramones", "joey r.");
+		writeBehind.update("joey", joey);
+
+		writeBehind.destroy();
+
+		verify(service).update("joey", joey);
+	}
+}